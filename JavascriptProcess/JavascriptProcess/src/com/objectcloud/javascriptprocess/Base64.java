@@ -189,6 +189,15 @@ public class Base64
       * <a href="http://www.faqs.org/qa/rfcc-1940.html">http://www.faqs.org/qa/rfcc-1940.html</a>.
       */
      public final static int ORDERED = 32;
+     
+     
+     /**
+      * Arrays of at least this many bytes are encoded or decoded in pieces
+      * on a fork/join pool, when there's more than one processor. It's set
+      * with the <tt>objectcloud.base64.parallelthreshold</tt> system property;
+      * zero or less turns this off. The default is one megabyte.
+      */
+     public final static int PARALLEL_THRESHOLD = Integer.getInteger( "objectcloud.base64.parallelthreshold", 1024 * 1024 );
     
     
 /* ********  P R I V A T E   F I E L D S  ******** */  
@@ -206,6 +215,10 @@ public class Base64
     private final static byte NEW_LINE = (byte)'\n';
     
     
+    /** The number of input bytes that make one line of {@link #MAX_LINE_LENGTH} characters. */
+    private final static int MAX_LINE_BYTES = MAX_LINE_LENGTH / 4 * 3;
+    
+    
     /** Preferred encoding. */
     private final static String PREFERRED_ENCODING = "US-ASCII";
     
@@ -437,6 +450,79 @@ public class Base64
     }	// end getAlphabet
 
 
+
+/* ********  L O O K U P   T A B L E S  ******** */
+
+
+    /**
+     * Twelve bits of input in, two Base64 characters out. Each entry holds
+     * the first character in its high byte and the second in its low byte,
+     * so that three input bytes take two lookups instead of four, and
+     * the alphabet is chosen once per call instead of once per three bytes.
+     */
+    private final static short[] _STANDARD_ENCODE_TABLE = makeEncodeTable( _STANDARD_ALPHABET );
+    private final static short[] _URL_SAFE_ENCODE_TABLE = makeEncodeTable( _URL_SAFE_ALPHABET );
+    private final static short[] _ORDERED_ENCODE_TABLE = makeEncodeTable( _ORDERED_ALPHABET );
+    
+    /**
+     * The DECODABETs widened to ints, with every character that isn't
+     * in the alphabet (white space and equals signs included) set to -1.
+     * A quartet whose four values are ORed together is negative if, and
+     * only if, it needs the careful decoding path.
+     */
+    private final static int[] _STANDARD_DECODE_TABLE = makeDecodeTable( _STANDARD_DECODABET );
+    private final static int[] _URL_SAFE_DECODE_TABLE = makeDecodeTable( _URL_SAFE_DECODABET );
+    private final static int[] _ORDERED_DECODE_TABLE = makeDecodeTable( _ORDERED_DECODABET );
+    
+    
+    private static short[] makeEncodeTable( byte[] alphabet ) {
+        short[] table = new short[ 4096 ];
+        for( int i = 0; i < table.length; i++ ) {
+            table[i] = (short)( ( alphabet[ i >>> 6 ] << 8 ) | alphabet[ i & 0x3f ] );
+        }   // end for: each pair of characters
+        return table;
+    }   // end makeEncodeTable
+    
+    
+    private static int[] makeDecodeTable( byte[] decodabet ) {
+        int[] table = new int[ 256 ];
+        for( int i = 0; i < table.length; i++ ) {
+            table[i] = decodabet[i] >= 0 ? decodabet[i] : -1;
+        }   // end for: each byte value
+        return table;
+    }   // end makeDecodeTable
+    
+    
+    /**
+     * Returns the encode table for the alphabet that
+     * {@link #getAlphabet(int)} would pick.
+     */
+    private final static short[] getEncodeTable( int options ) {
+        if ((options & URL_SAFE) == URL_SAFE) {
+            return _URL_SAFE_ENCODE_TABLE;
+        } else if ((options & ORDERED) == ORDERED) {
+            return _ORDERED_ENCODE_TABLE;
+        } else {
+            return _STANDARD_ENCODE_TABLE;
+        }
+    }   // end getEncodeTable
+    
+    
+    /**
+     * Returns the decode table for the alphabet that
+     * {@link #getDecodabet(int)} would pick.
+     */
+    private final static int[] getDecodeTable( int options ) {
+        if ((options & URL_SAFE) == URL_SAFE) {
+            return _URL_SAFE_DECODE_TABLE;
+        } else if ((options & ORDERED) == ORDERED) {
+            return _ORDERED_DECODE_TABLE;
+        } else {
+            return _STANDARD_DECODE_TABLE;
+        }
+    }   // end getDecodeTable
+
+
     
     /** Defeats instantiation. */
     private Base64(){}
@@ -540,6 +626,307 @@ public class Base64
         }   // end switch
     }   // end encode3to4
 
+    
+    /**
+     * Encodes <var>len</var> bytes of <var>source</var>, which must be a
+     * multiple of three, to <var>destination</var> without padding or
+     * line breaks, and returns the number of Base64 bytes written.
+     * Six bytes are gathered into a <tt>long</tt> at a time and written
+     * out as eight characters with four lookups in <var>table</var>.
+     * Like {@link #encode3to4(byte[],int,int,byte[],int,int)}, this
+     * doesn't check that the arrays are large enough.
+     */
+    private static int encodeGroups(
+    byte[] source, int srcOffset, int len,
+    byte[] destination, int destOffset, short[] table ) {
+        
+        int s = srcOffset;
+        int e = destOffset;
+        int end = srcOffset + len;
+        int blocksEnd = end - len % 6;
+        
+        for( ; s < blocksEnd; s += 6, e += 8 ) {
+            long inBuff =   ( ( source[ s     ] & 0xFFL ) << 40 )
+                          | ( ( source[ s + 1 ] & 0xFFL ) << 32 )
+                          | ( ( source[ s + 2 ] & 0xFFL ) << 24 )
+                          | ( ( source[ s + 3 ] & 0xFFL ) << 16 )
+                          | ( ( source[ s + 4 ] & 0xFFL ) <<  8 )
+                          | ( ( source[ s + 5 ] & 0xFFL )       );
+            
+            int pair0 = table[ (int)( inBuff >>> 36 )          ];
+            int pair1 = table[ (int)( inBuff >>> 24 ) & 0xfff ];
+            int pair2 = table[ (int)( inBuff >>> 12 ) & 0xfff ];
+            int pair3 = table[ (int)( inBuff        ) & 0xfff ];
+            
+            destination[ e     ] = (byte)( pair0 >>> 8 );
+            destination[ e + 1 ] = (byte)( pair0       );
+            destination[ e + 2 ] = (byte)( pair1 >>> 8 );
+            destination[ e + 3 ] = (byte)( pair1       );
+            destination[ e + 4 ] = (byte)( pair2 >>> 8 );
+            destination[ e + 5 ] = (byte)( pair2       );
+            destination[ e + 6 ] = (byte)( pair3 >>> 8 );
+            destination[ e + 7 ] = (byte)( pair3       );
+        }   // end for: each six bytes
+        
+        if( s < end ) {
+            int inBuff =   ( ( source[ s     ] & 0xFF ) << 16 )
+                         | ( ( source[ s + 1 ] & 0xFF ) <<  8 )
+                         | ( ( source[ s + 2 ] & 0xFF )       );
+            
+            int pair0 = table[ inBuff >>> 12    ];
+            int pair1 = table[ inBuff &  0xfff ];
+            
+            destination[ e     ] = (byte)( pair0 >>> 8 );
+            destination[ e + 1 ] = (byte)( pair0       );
+            destination[ e + 2 ] = (byte)( pair1 >>> 8 );
+            destination[ e + 3 ] = (byte)( pair1       );
+            e += 4;
+        }   // end if: three bytes left over
+        
+        return e - destOffset;
+    }   // end encodeGroups
+    
+    
+    /**
+     * Like {@link #encodeGroups(byte[],int,int,byte[],int,short[])},
+     * but writes the Base64 characters to a <tt>char</tt> array.
+     */
+    private static int encodeGroups(
+    byte[] source, int srcOffset, int len,
+    char[] destination, int destOffset, short[] table ) {
+        
+        int s = srcOffset;
+        int e = destOffset;
+        int end = srcOffset + len;
+        int blocksEnd = end - len % 6;
+        
+        for( ; s < blocksEnd; s += 6, e += 8 ) {
+            long inBuff =   ( ( source[ s     ] & 0xFFL ) << 40 )
+                          | ( ( source[ s + 1 ] & 0xFFL ) << 32 )
+                          | ( ( source[ s + 2 ] & 0xFFL ) << 24 )
+                          | ( ( source[ s + 3 ] & 0xFFL ) << 16 )
+                          | ( ( source[ s + 4 ] & 0xFFL ) <<  8 )
+                          | ( ( source[ s + 5 ] & 0xFFL )       );
+            
+            int pair0 = table[ (int)( inBuff >>> 36 )          ];
+            int pair1 = table[ (int)( inBuff >>> 24 ) & 0xfff ];
+            int pair2 = table[ (int)( inBuff >>> 12 ) & 0xfff ];
+            int pair3 = table[ (int)( inBuff        ) & 0xfff ];
+            
+            destination[ e     ] = (char)( pair0 >>> 8   );
+            destination[ e + 1 ] = (char)( pair0 &  0xFF );
+            destination[ e + 2 ] = (char)( pair1 >>> 8   );
+            destination[ e + 3 ] = (char)( pair1 &  0xFF );
+            destination[ e + 4 ] = (char)( pair2 >>> 8   );
+            destination[ e + 5 ] = (char)( pair2 &  0xFF );
+            destination[ e + 6 ] = (char)( pair3 >>> 8   );
+            destination[ e + 7 ] = (char)( pair3 &  0xFF );
+        }   // end for: each six bytes
+        
+        if( s < end ) {
+            int inBuff =   ( ( source[ s     ] & 0xFF ) << 16 )
+                         | ( ( source[ s + 1 ] & 0xFF ) <<  8 )
+                         | ( ( source[ s + 2 ] & 0xFF )       );
+            
+            int pair0 = table[ inBuff >>> 12    ];
+            int pair1 = table[ inBuff &  0xfff ];
+            
+            destination[ e     ] = (char)( pair0 >>> 8   );
+            destination[ e + 1 ] = (char)( pair0 &  0xFF );
+            destination[ e + 2 ] = (char)( pair1 >>> 8   );
+            destination[ e + 3 ] = (char)( pair1 &  0xFF );
+            e += 4;
+        }   // end if: three bytes left over
+        
+        return e - destOffset;
+    }   // end encodeGroups
+    
+    
+    /**
+     * Encodes the last one or two bytes of the input, which are given
+     * in the high bits of <var>inBuff</var> as in
+     * {@link #encode3to4(byte[],int,int,byte[],int,int)}, and returns the
+     * four padded Base64 characters packed into an <tt>int</tt>, first
+     * character in the high byte.
+     */
+    private static int encodeTail( int inBuff, int numSigBytes, short[] table ) {
+        int pair0 = table[ inBuff >>> 12 ];
+        int third = numSigBytes > 1 ? table[ inBuff & 0xfff ] >>> 8 : EQUALS_SIGN;
+        return ( pair0 << 16 ) | ( third << 8 ) | EQUALS_SIGN;
+    }   // end encodeTail
+    
+    
+    /**
+     * Returns the exact number of bytes (or characters) that encoding
+     * <var>len</var> bytes with the given options produces, so that a
+     * buffer of exactly the right size can be handed to
+     * {@link #encode(byte[],int,int,byte[],int,int)} and friends.
+     * Compressed output can't be predicted, so {@link #GZIP} isn't allowed.
+     *
+     * @param len the number of bytes to encode
+     * @param options alphabet type and {@link #DO_BREAK_LINES}
+     * @return the length of the Base64 output
+     * @throws IllegalArgumentException if <var>len</var> is negative or {@link #GZIP} is set
+     */
+    public static int encodedLength( int len, int options ) {
+        if( len < 0 ){
+            throw new IllegalArgumentException( "Cannot have length offset: " + len );
+        }   // end if: len < 0
+        if( (options & GZIP) != 0 ){
+            throw new IllegalArgumentException( "The length of gzipped output cannot be known in advance." );
+        }   // end if: gzip
+        
+        int encLen = ( len / 3 ) * 4 + ( len % 3 > 0 ? 4 : 0 );
+        if( (options & DO_BREAK_LINES) != 0 ){
+            encLen += len / MAX_LINE_BYTES;     // A new line follows every full line
+        }   // end if: breaking lines
+        return encLen;
+    }   // end encodedLength
+    
+    
+    /**
+     * Checks the arguments of the encode methods that write to a
+     * caller-supplied array, and returns the length of the output.
+     */
+    private static int checkEncodeArguments(
+    byte[] source, int off, int len, int destLength, int destOffset, int options ) {
+        
+        if( source == null ){
+            throw new NullPointerException( "Cannot serialize a null array." );
+        }   // end if: null
+        if( off < 0 ){
+            throw new IllegalArgumentException( "Cannot have negative offset: " + off );
+        }   // end if: off < 0
+        if( off + len > source.length  ){
+            throw new IllegalArgumentException(
+            String.format( "Cannot have offset of %d and length of %d with array of length %d", off,len,source.length));
+        }   // end if: off < 0
+        
+        int encLen = encodedLength( len, options );
+        if( destOffset < 0 || destOffset + encLen > destLength ){
+            throw new IllegalArgumentException( String.format(
+            "Destination array with length %d cannot have offset of %d and still store %d bytes.", destLength, destOffset, encLen ) );
+        }   // end if: no room
+        return encLen;
+    }   // end checkEncodeArguments
+    
+    
+    /**
+     * Encodes <var>len</var> bytes of <var>source</var> to <var>destination</var>
+     * without allocating anything. The destination needs room for
+     * {@link #encodedLength(int,int)} bytes from <var>destOffset</var>.
+     * All options except {@link #GZIP} are supported.
+     *
+     * @param source The data to convert
+     * @param off Offset in array where conversion should begin
+     * @param len Length of data to convert
+     * @param destination The array to hold the Base64 bytes
+     * @param destOffset The index where output will be put
+     * @param options Specified options
+     * @return the number of bytes written
+     * @throws NullPointerException if either array is null
+     * @throws IllegalArgumentException if the offsets or length are invalid,
+     *         there isn't enough room, or {@link #GZIP} is set
+     */
+    public static int encode( byte[] source, int off, int len, byte[] destination, int destOffset, int options ) {
+        
+        if( destination == null ){
+            throw new NullPointerException( "Destination array was null." );
+        }   // end if
+        int encLen = checkEncodeArguments( source, off, len, destination.length, destOffset, options );
+        
+        if( isParallel( len ) ) {
+            ParallelPool.POOL.invoke( new EncodeTask( source, off, len, destination, destOffset, options ) );
+        } else {
+            encodeInto( source, off, len, destination, destOffset, options );
+        }   // end else: one piece
+        
+        return encLen;
+    }   // end encode
+    
+    
+    /**
+     * Does the work of {@link #encode(byte[],int,int,byte[],int,int)}
+     * once the arguments are checked.
+     */
+    private static void encodeInto( byte[] source, int off, int len, byte[] destination, int destOffset, int options ) {
+        
+        short[] ENCODE_TABLE = getEncodeTable( options );
+        
+        int d = off;
+        int e = destOffset;
+        int fullEnd = off + len - len % 3;  // End of the bytes that need no padding
+        if( (options & DO_BREAK_LINES) != 0 ) {
+            for( ; d + MAX_LINE_BYTES <= fullEnd; d += MAX_LINE_BYTES ) {
+                e += encodeGroups( source, d, MAX_LINE_BYTES, destination, e, ENCODE_TABLE );
+                destination[e++] = NEW_LINE;
+            }   // end for: each full line
+        }   // end if: breaking lines
+        e += encodeGroups( source, d, fullEnd - d, destination, e, ENCODE_TABLE );
+        
+        if( fullEnd < off + len ) {
+            int numSigBytes = off + len - fullEnd;
+            int inBuff =   ( ( source[ fullEnd ] & 0xFF ) << 16 )
+                         | ( numSigBytes > 1 ? ( source[ fullEnd + 1 ] & 0xFF ) << 8 : 0 );
+            int tail = encodeTail( inBuff, numSigBytes, ENCODE_TABLE );
+            destination[ e     ] = (byte)( tail >>> 24 );
+            destination[ e + 1 ] = (byte)( tail >>> 16 );
+            destination[ e + 2 ] = (byte)( tail >>>  8 );
+            destination[ e + 3 ] = (byte)( tail        );
+        }   // end if: some padding needed
+    }   // end encodeInto
+    
+    
+    /**
+     * Like {@link #encode(byte[],int,int,byte[],int,int)}, but writes
+     * the Base64 characters to a <tt>char</tt> array, so that they
+     * can go straight to a Writer without becoming a String first.
+     *
+     * @param source The data to convert
+     * @param off Offset in array where conversion should begin
+     * @param len Length of data to convert
+     * @param destination The array to hold the Base64 characters
+     * @param destOffset The index where output will be put
+     * @param options Specified options
+     * @return the number of characters written
+     * @throws NullPointerException if either array is null
+     * @throws IllegalArgumentException if the offsets or length are invalid,
+     *         there isn't enough room, or {@link #GZIP} is set
+     */
+    public static int encode( byte[] source, int off, int len, char[] destination, int destOffset, int options ) {
+        
+        if( destination == null ){
+            throw new NullPointerException( "Destination array was null." );
+        }   // end if
+        int encLen = checkEncodeArguments( source, off, len, destination.length, destOffset, options );
+        
+        short[] ENCODE_TABLE = getEncodeTable( options );
+        
+        int d = off;
+        int e = destOffset;
+        int fullEnd = off + len - len % 3;  // End of the bytes that need no padding
+        if( (options & DO_BREAK_LINES) != 0 ) {
+            for( ; d + MAX_LINE_BYTES <= fullEnd; d += MAX_LINE_BYTES ) {
+                e += encodeGroups( source, d, MAX_LINE_BYTES, destination, e, ENCODE_TABLE );
+                destination[e++] = (char)NEW_LINE;
+            }   // end for: each full line
+        }   // end if: breaking lines
+        e += encodeGroups( source, d, fullEnd - d, destination, e, ENCODE_TABLE );
+        
+        if( fullEnd < off + len ) {
+            int numSigBytes = off + len - fullEnd;
+            int inBuff =   ( ( source[ fullEnd ] & 0xFF ) << 16 )
+                         | ( numSigBytes > 1 ? ( source[ fullEnd + 1 ] & 0xFF ) << 8 : 0 );
+            int tail = encodeTail( inBuff, numSigBytes, ENCODE_TABLE );
+            destination[ e     ] = (char)( tail >>> 24          );
+            destination[ e + 1 ] = (char)( ( tail >>> 16 ) & 0xFF );
+            destination[ e + 2 ] = (char)( ( tail >>>  8 ) & 0xFF );
+            destination[ e + 3 ] = (char)( tail & 0xFF          );
+        }   // end if: some padding needed
+        
+        return encLen;
+    }   // end encode
+
 
 
     /**
@@ -554,15 +941,63 @@ public class Base64
      * @since 2.3
      */
     public static void encode( java.nio.ByteBuffer raw, java.nio.ByteBuffer encoded ){
-        byte[] raw3 = new byte[3];
-        byte[] enc4 = new byte[4];
-
-        while( raw.hasRemaining() ){
-            int rem = Math.min(3,raw.remaining());
-            raw.get(raw3,0,rem);
-            Base64.encode3to4(enc4, raw3, rem, Base64.NO_OPTIONS );
-            encoded.put(enc4);
-        }   // end input remaining
+        encode( raw, encoded, NO_OPTIONS );
+    }
+    
+    
+    /**
+     * Performs Base64 encoding on the remaining bytes of the <code>raw</code>
+     * ByteBuffer, writing it to the <code>encoded</code> ByteBuffer, which
+     * may be direct. Nothing is allocated; when both buffers are backed
+     * by arrays, they're encoded with
+     * {@link #encode(byte[],int,int,byte[],int,int)}.
+     * All options except {@link #GZIP} are supported.
+     *
+     * @param raw input buffer
+     * @param encoded output buffer
+     * @param options Specified options
+     * @throws java.nio.BufferOverflowException if <code>encoded</code> doesn't have
+     *         room for {@link #encodedLength(int,int)} bytes, in which case
+     *         neither buffer is changed
+     */
+    public static void encode( java.nio.ByteBuffer raw, java.nio.ByteBuffer encoded, int options ){
+        int len = raw.remaining();
+        int encLen = encodedLength( len, options );
+        if( encoded.remaining() < encLen ){
+            throw new java.nio.BufferOverflowException();
+        }   // end if: no room
+        
+        if( raw.hasArray() && encoded.hasArray() ){
+            encode( raw.array(), raw.arrayOffset() + raw.position(), len,
+                    encoded.array(), encoded.arrayOffset() + encoded.position(), options );
+            raw.position( raw.limit() );
+            encoded.position( encoded.position() + encLen );
+            return;
+        }   // end if: arrays
+        
+        short[] ENCODE_TABLE = getEncodeTable( options );
+        boolean breakLines = (options & DO_BREAK_LINES) != 0;
+        int lineLength = 0;
+        
+        while( raw.remaining() >= 3 ){
+            int inBuff = ( ( raw.get() & 0xFF ) << 16 ) | ( ( raw.get() & 0xFF ) << 8 ) | ( raw.get() & 0xFF );
+            int pair0 = ENCODE_TABLE[ inBuff >>> 12 ];
+            int pair1 = ENCODE_TABLE[ inBuff & 0xfff ];
+            encoded.put( (byte)( pair0 >>> 8 ) ).put( (byte)pair0 ).put( (byte)( pair1 >>> 8 ) ).put( (byte)pair1 );
+            
+            lineLength += 4;
+            if( breakLines && lineLength >= MAX_LINE_LENGTH ){
+                encoded.put( NEW_LINE );
+                lineLength = 0;
+            }   // end if: end of line
+        }   // end while: whole groups
+        
+        if( raw.hasRemaining() ){
+            int numSigBytes = raw.remaining();
+            int inBuff = ( ( raw.get() & 0xFF ) << 16 ) | ( numSigBytes > 1 ? ( raw.get() & 0xFF ) << 8 : 0 );
+            int tail = encodeTail( inBuff, numSigBytes, ENCODE_TABLE );
+            encoded.put( (byte)( tail >>> 24 ) ).put( (byte)( tail >>> 16 ) ).put( (byte)( tail >>> 8 ) ).put( (byte)tail );
+        }   // end if: some padding needed
     }
 
 
@@ -578,17 +1013,59 @@ public class Base64
      * @since 2.3
      */
     public static void encode( java.nio.ByteBuffer raw, java.nio.CharBuffer encoded ){
-        byte[] raw3 = new byte[3];
-        byte[] enc4 = new byte[4];
-
-        while( raw.hasRemaining() ){
-            int rem = Math.min(3,raw.remaining());
-            raw.get(raw3,0,rem);
-            Base64.encode3to4(enc4, raw3, rem, Base64.NO_OPTIONS );
-            for( int i = 0; i < 4; i++ ){
-                encoded.put( (char)(enc4[i] & 0xFF) );
-            }
-        }   // end input remaining
+        encode( raw, encoded, NO_OPTIONS );
+    }
+    
+    
+    /**
+     * Like {@link #encode(java.nio.ByteBuffer,java.nio.ByteBuffer,int)},
+     * but writes the Base64 characters to a CharBuffer.
+     *
+     * @param raw input buffer
+     * @param encoded output buffer
+     * @param options Specified options
+     * @throws java.nio.BufferOverflowException if <code>encoded</code> doesn't have
+     *         room for {@link #encodedLength(int,int)} characters, in which case
+     *         neither buffer is changed
+     */
+    public static void encode( java.nio.ByteBuffer raw, java.nio.CharBuffer encoded, int options ){
+        int len = raw.remaining();
+        int encLen = encodedLength( len, options );
+        if( encoded.remaining() < encLen ){
+            throw new java.nio.BufferOverflowException();
+        }   // end if: no room
+        
+        if( raw.hasArray() && encoded.hasArray() ){
+            encode( raw.array(), raw.arrayOffset() + raw.position(), len,
+                    encoded.array(), encoded.arrayOffset() + encoded.position(), options );
+            raw.position( raw.limit() );
+            encoded.position( encoded.position() + encLen );
+            return;
+        }   // end if: arrays
+        
+        short[] ENCODE_TABLE = getEncodeTable( options );
+        boolean breakLines = (options & DO_BREAK_LINES) != 0;
+        int lineLength = 0;
+        
+        while( raw.remaining() >= 3 ){
+            int inBuff = ( ( raw.get() & 0xFF ) << 16 ) | ( ( raw.get() & 0xFF ) << 8 ) | ( raw.get() & 0xFF );
+            int pair0 = ENCODE_TABLE[ inBuff >>> 12 ];
+            int pair1 = ENCODE_TABLE[ inBuff & 0xfff ];
+            encoded.put( (char)( pair0 >>> 8 ) ).put( (char)( pair0 & 0xFF ) ).put( (char)( pair1 >>> 8 ) ).put( (char)( pair1 & 0xFF ) );
+            
+            lineLength += 4;
+            if( breakLines && lineLength >= MAX_LINE_LENGTH ){
+                encoded.put( (char)NEW_LINE );
+                lineLength = 0;
+            }   // end if: end of line
+        }   // end while: whole groups
+        
+        if( raw.hasRemaining() ){
+            int numSigBytes = raw.remaining();
+            int inBuff = ( ( raw.get() & 0xFF ) << 16 ) | ( numSigBytes > 1 ? ( raw.get() & 0xFF ) << 8 : 0 );
+            int tail = encodeTail( inBuff, numSigBytes, ENCODE_TABLE );
+            encoded.put( (char)( tail >>> 24 ) ).put( (char)( ( tail >>> 16 ) & 0xFF ) ).put( (char)( ( tail >>> 8 ) & 0xFF ) ).put( (char)( tail & 0xFF ) );
+        }   // end if: some padding needed
     }
 
 
@@ -934,59 +1411,10 @@ public class Base64
 
         // Else, don't compress. Better not to use streams at all then.
         else {
-            boolean breakLines = (options & DO_BREAK_LINES) != 0;
-
-            //int    len43   = len * 4 / 3;
-            //byte[] outBuff = new byte[   ( len43 )                      // Main 4:3
-            //                           + ( (len % 3) > 0 ? 4 : 0 )      // Account for padding
-            //                           + (breakLines ? ( len43 / MAX_LINE_LENGTH ) : 0) ]; // New lines
-            // Try to determine more precisely how big the array needs to be.
-            // If we get it right, we don't have to do an array copy, and
-            // we save a bunch of memory.
-            int encLen = ( len / 3 ) * 4 + ( len % 3 > 0 ? 4 : 0 ); // Bytes needed for actual encoding
-            if( breakLines ){
-                encLen += encLen / MAX_LINE_LENGTH; // Plus extra newline characters
-            }
-            byte[] outBuff = new byte[ encLen ];
-
-
-            int d = 0;
-            int e = 0;
-            int len2 = len - 2;
-            int lineLength = 0;
-            for( ; d < len2; d+=3, e+=4 ) {
-                encode3to4( source, d+off, 3, outBuff, e, options );
-
-                lineLength += 4;
-                if( breakLines && lineLength >= MAX_LINE_LENGTH )
-                {
-                    outBuff[e+4] = NEW_LINE;
-                    e++;
-                    lineLength = 0;
-                }   // end if: end of line
-            }   // en dfor: each piece of array
-
-            if( d < len ) {
-                encode3to4( source, d+off, len - d, outBuff, e, options );
-                e += 4;
-            }   // end if: some padding needed
-
-
-            // Only resize array if we didn't guess it right.
-            if( e <= outBuff.length - 1 ){
-                // If breaking lines and the last byte falls right at
-                // the line length (76 bytes per line), there will be
-                // one extra byte, and the array will need to be resized.
-                // Not too bad of an estimate on array size, I'd say.
-                byte[] finalOut = new byte[e];
-                System.arraycopy(outBuff,0, finalOut,0,e);
-                //System.err.println("Having to resize array from " + outBuff.length + " to " + e );
-                return finalOut;
-            } else {
-                //System.err.println("No need to resize array.");
-                return outBuff;
-            }
-        
+            // The length is known exactly, so the array never needs resizing
+            byte[] outBuff = new byte[ encodedLength( len, options ) ];
+            encode( source, off, len, outBuff, 0, options );
+            return outBuff;
         }   // end else: don't compress
 
     }   // end encodeBytesToBytes
@@ -1163,18 +1591,259 @@ public class Base64
             "Base64-encoded string must have at least four characters, but length specified was " + len );
         }   // end if
         
+        byte[] outBuff = new byte[ maxDecodedLength( len ) ]; // Upper limit on size of output
+        int    outBuffPosn = decodeArray( source, off, len, outBuff, 0, outBuff.length, options );
+        
+        if( outBuffPosn == outBuff.length ){
+            return outBuff;
+        }   // end if: guessed right
+        
+        byte[] out = new byte[ outBuffPosn ];
+        System.arraycopy( outBuff, 0, out, 0, outBuffPosn ); 
+        return out;
+    }   // end decode
+    
+    
+    /**
+     * Returns the most bytes that decoding <var>len</var> Base64 characters
+     * can produce. For input without white space or padding, this is
+     * exactly the decoded length.
+     *
+     * @param len the number of Base64 characters
+     * @return the size of a buffer that's always large enough
+     */
+    public static int maxDecodedLength( int len ) {
+        return (int)( len * 3L / 4 );
+    }   // end maxDecodedLength
+    
+    
+    /**
+     * Decodes <var>len</var> Base64 characters from <var>source</var> to
+     * <var>destination</var> without allocating anything. The input is
+     * handled exactly as in {@link #decode(byte[],int,int,int)}. A destination
+     * with room for {@link #maxDecodedLength(int)} bytes is always large enough.
+     *
+     * @param source The Base64 encoded data
+     * @param off    The offset of where to begin decoding
+     * @param len    The length of characters to decode
+     * @param destination The array to hold the decoded bytes
+     * @param destOffset The index where output will be put
+     * @param options Can specify options such as alphabet type to use
+     * @return the number of bytes written
+     * @throws java.io.IOException If bogus characters exist in source data
+     * @throws NullPointerException if either array is null
+     * @throws IllegalArgumentException if the offsets or length are invalid,
+     *         or there isn't enough room in the destination
+     */
+    public static int decode( byte[] source, int off, int len, byte[] destination, int destOffset, int options )
+    throws java.io.IOException {
+        
+        if( source == null ){
+            throw new NullPointerException( "Cannot decode null source array." );
+        }   // end if
+        if( destination == null ){
+            throw new NullPointerException( "Destination array was null." );
+        }   // end if
+        if( off < 0 || off + len > source.length ){
+            throw new IllegalArgumentException( String.format(
+            "Source array with length %d cannot have offset of %d and process %d bytes.", source.length, off, len ) );
+        }   // end if
+        if( destOffset < 0 || destOffset > destination.length ){
+            throw new IllegalArgumentException( String.format(
+            "Destination array with length %d cannot have offset of %d.", destination.length, destOffset ) );
+        }   // end if
+        
+        if( len == 0 ){
+            return 0;
+        }else if( len < 4 ){
+            throw new IllegalArgumentException( 
+            "Base64-encoded string must have at least four characters, but length specified was " + len );
+        }   // end if
+        
+        return decodeArray( source, off, len, destination, destOffset, destination.length, options ) - destOffset;
+    }   // end decode
+    
+    
+    /**
+     * Decodes the remaining characters of the <code>encoded</code> ByteBuffer,
+     * writing the bytes to the <code>raw</code> ByteBuffer, which may be direct.
+     * The input is handled exactly as in {@link #decode(byte[],int,int,int)},
+     * and all of it is consumed. Nothing is allocated; when both buffers
+     * are backed by arrays, they're decoded as arrays.
+     *
+     * @param encoded input buffer
+     * @param raw output buffer
+     * @param options Can specify options such as alphabet type to use
+     * @throws java.io.IOException If bogus characters exist in source data
+     * @throws IllegalArgumentException if there are between one and three
+     *         characters, or <code>raw</code> runs out of room
+     */
+    public static void decode( java.nio.ByteBuffer encoded, java.nio.ByteBuffer raw, int options )
+    throws java.io.IOException {
+        
+        int len = encoded.remaining();
+        if( len == 0 ){
+            return;
+        }else if( len < 4 ){
+            throw new IllegalArgumentException( 
+            "Base64-encoded string must have at least four characters, but length specified was " + len );
+        }   // end if
+        
+        if( encoded.hasArray() && raw.hasArray() ){
+            int rawStart = raw.arrayOffset() + raw.position();
+            int encodedStart = encoded.arrayOffset() + encoded.position();
+            int rawEnd = decodeInto(
+                encoded.array(), encodedStart, len,
+                raw.array(), rawStart, raw.arrayOffset() + raw.limit(), options, null, encoded.position() );
+            encoded.position( encoded.limit() );
+            raw.position( raw.position() + rawEnd - rawStart );
+            return;
+        }   // end if: arrays
+        
         byte[] DECODABET = getDecodabet( options );
-	
-        int    len34   = len * 3 / 4;       // Estimate on array size
-        byte[] outBuff = new byte[ len34 ]; // Upper limit on size of output
-        int    outBuffPosn = 0;             // Keep track of where we're writing
+        int    quad      = 0;               // Up to four characters, packed into an int
+        int    b4Posn    = 0;
         
-        byte[] b4        = new byte[4];     // Four byte buffer from source, eliminating white space
-        int    b4Posn    = 0;               // Keep track of four byte input buffer
+        while( encoded.hasRemaining() ) {
+            int i = encoded.position();
+            byte c = encoded.get();
+            byte sbiDecode = DECODABET[ c & 0xFF ];
+            
+            if( sbiDecode >= WHITE_SPACE_ENC )  {
+                if( sbiDecode >= EQUALS_SIGN_ENC ) {
+                    quad = ( quad << 8 ) | ( c & 0xFF );
+                    if( ++b4Posn > 3 ) {
+                        int decoded = decodeQuartet( quad, DECODABET );
+                        int numBytes = decoded >>> 24;
+                        if( raw.remaining() < numBytes ){
+                            throw new IllegalArgumentException( String.format(
+                            "Destination buffer with %d bytes remaining cannot store %d bytes.", raw.remaining(), numBytes ) );
+                        }   // end if: no room
+                        
+                        raw.put( (byte)( decoded >>> 16 ) );
+                        if( numBytes > 1 ) raw.put( (byte)( decoded >>> 8 ) );
+                        if( numBytes > 2 ) raw.put( (byte)decoded );
+                        b4Posn = 0;
+                        
+                        if( c == EQUALS_SIGN ) {
+                            encoded.position( encoded.limit() );
+                            break;
+                        }   // end if: equals sign
+                    }   // end if: quartet built
+                }   // end if: equals sign or better
+            }   // end if: white space, equals sign or better
+            else {
+                throw new java.io.IOException( String.format(
+                "Bad Base64 input character decimal %d in array position %d", ((int)c)&0xFF, i ) );
+            }   // end else: 
+        }   // end while: each input character
+    }   // end decode
+    
+    
+    /**
+     * Decodes four characters, packed into <var>quad</var> with the first
+     * in the high byte, exactly as {@link #decode4to3(byte[],int,byte[],int,int)}
+     * would. Returns the number of bytes in the high byte of the result,
+     * and the bytes themselves in the low three.
+     */
+    private static int decodeQuartet( int quad, byte[] DECODABET ) {
+        int c2 = ( quad >>> 8 ) & 0xFF;
+        int c3 = ( quad       ) & 0xFF;
+        int outBuff =   ( ( DECODABET[ quad >>> 24          ] & 0xFF ) << 18 )
+                      | ( ( DECODABET[ ( quad >>> 16 ) & 0xFF ] & 0xFF ) << 12 );
+        
+        // Example: Dk==
+        if( c2 == EQUALS_SIGN ) {
+            return ( 1 << 24 ) | ( outBuff & 0xFFFFFF );
+        }   // end if
+        
+        outBuff |= ( DECODABET[ c2 ] & 0xFF ) << 6;
+        
+        // Example: DkL=
+        if( c3 == EQUALS_SIGN ) {
+            return ( 2 << 24 ) | ( outBuff & 0xFFFFFF );
+        }   // end if
+        
+        // Example: DkLE
+        outBuff |= DECODABET[ c3 ] & 0xFF;
+        return ( 3 << 24 ) | ( outBuff & 0xFFFFFF );
+    }   // end decodeQuartet
+    
+    
+    /**
+     * Decodes <var>len</var> characters of <var>source</var>, which are
+     * already checked to be at least four, to <var>destination</var>
+     * from <var>destOffset</var> up to <var>destLimit</var>, and returns
+     * the index after the last byte written.
+     * <p>When the input comes in pieces, <var>state</var> carries an
+     * unfinished quartet from one piece to the next: the characters
+     * packed into an int, how many there are, and whether the padding
+     * has been reached. It's null for one piece. Bad characters are
+     * reported at <var>sourcePosition</var> plus their index in the piece.</p>
+     */
+    private static int decodeInto(
+    byte[] source, int off, int len,
+    byte[] destination, int destOffset, int destLimit, int options,
+    int[] state, long sourcePosition )
+    throws java.io.IOException {
+        
+        byte[] DECODABET = getDecodabet( options );
+        int[]  DECODE_TABLE = getDecodeTable( options );
+        
+        int    outBuffPosn = destOffset;    // Keep track of where we're writing
+        int    quad      = state == null ? 0 : state[0];    // Up to four characters from source, eliminating white space
+        int    b4Posn    = state == null ? 0 : state[1];    // Keep track of how many characters are in quad
         int    i         = 0;               // Source array counter
         byte   sbiDecode = 0;               // Special value from DECODABET
         
-        for( i = off; i < off+len; i++ ) {  // Loop through source
+        int    end       = off + len;       // End of the source
+        
+        for( i = off; i < end; i++ ) {      // Loop through source
+            
+            // Between quartets, decode as many whole quartets as possible
+            // with one lookup per character, eight characters at a time.
+            // White space, equals signs and bad characters drop through
+            // to the careful loop below, as does running out of room.
+            if( b4Posn == 0 ) {
+                for( ; i + 8 <= end && outBuffPosn + 6 <= destLimit; i += 8, outBuffPosn += 6 ) {
+                    int hi =   ( DECODE_TABLE[ source[ i     ] & 0xFF ] << 18 )
+                             | ( DECODE_TABLE[ source[ i + 1 ] & 0xFF ] << 12 )
+                             | ( DECODE_TABLE[ source[ i + 2 ] & 0xFF ] <<  6 )
+                             | ( DECODE_TABLE[ source[ i + 3 ] & 0xFF ]       );
+                    int lo =   ( DECODE_TABLE[ source[ i + 4 ] & 0xFF ] << 18 )
+                             | ( DECODE_TABLE[ source[ i + 5 ] & 0xFF ] << 12 )
+                             | ( DECODE_TABLE[ source[ i + 6 ] & 0xFF ] <<  6 )
+                             | ( DECODE_TABLE[ source[ i + 7 ] & 0xFF ]       );
+                    if( ( hi | lo ) < 0 ) {
+                        break;
+                    }   // end if: not eight alphabet characters
+                    
+                    destination[ outBuffPosn     ] = (byte)( hi >> 16 );
+                    destination[ outBuffPosn + 1 ] = (byte)( hi >>  8 );
+                    destination[ outBuffPosn + 2 ] = (byte)( hi       );
+                    destination[ outBuffPosn + 3 ] = (byte)( lo >> 16 );
+                    destination[ outBuffPosn + 4 ] = (byte)( lo >>  8 );
+                    destination[ outBuffPosn + 5 ] = (byte)( lo       );
+                }   // end for: each eight characters
+                
+                for( ; i + 4 <= end && outBuffPosn + 3 <= destLimit; i += 4, outBuffPosn += 3 ) {
+                    int bits =   ( DECODE_TABLE[ source[ i     ] & 0xFF ] << 18 )
+                               | ( DECODE_TABLE[ source[ i + 1 ] & 0xFF ] << 12 )
+                               | ( DECODE_TABLE[ source[ i + 2 ] & 0xFF ] <<  6 )
+                               | ( DECODE_TABLE[ source[ i + 3 ] & 0xFF ]       );
+                    if( bits < 0 ) {
+                        break;
+                    }   // end if: not four alphabet characters
+                    
+                    destination[ outBuffPosn     ] = (byte)( bits >> 16 );
+                    destination[ outBuffPosn + 1 ] = (byte)( bits >>  8 );
+                    destination[ outBuffPosn + 2 ] = (byte)( bits       );
+                }   // end for: each four characters
+                
+                if( i == end ) {
+                    break;
+                }   // end if: nothing left
+            }   // end if: between quartets
             
             sbiDecode = DECODABET[ source[i]&0xFF ];
             
@@ -1183,13 +1852,25 @@ public class Base64
             // DECODABETs at the top of the file.
             if( sbiDecode >= WHITE_SPACE_ENC )  {
                 if( sbiDecode >= EQUALS_SIGN_ENC ) {
-                    b4[ b4Posn++ ] = source[i];         // Save non-whitespace
-                    if( b4Posn > 3 ) {                  // Time to decode?
-                        outBuffPosn += decode4to3( b4, 0, outBuff, outBuffPosn, options );
+                    quad = ( quad << 8 ) | ( source[i] & 0xFF );    // Save non-whitespace
+                    if( ++b4Posn > 3 ) {                            // Time to decode?
+                        int decoded = decodeQuartet( quad, DECODABET );
+                        int numBytes = decoded >>> 24;
+                        if( outBuffPosn + numBytes > destLimit ){
+                            throw new IllegalArgumentException( String.format(
+                            "Destination array with length %d cannot have offset of %d and still store %d bytes.", destLimit, outBuffPosn, numBytes ) );
+                        }   // end if: no room
+                        
+                        destination[ outBuffPosn++ ] = (byte)( decoded >>> 16 );
+                        if( numBytes > 1 ) destination[ outBuffPosn++ ] = (byte)( decoded >>> 8 );
+                        if( numBytes > 2 ) destination[ outBuffPosn++ ] = (byte)decoded;
                         b4Posn = 0;
                         
                         // If that was the equals sign, break out of 'for' loop
                         if( source[i] == EQUALS_SIGN ) {
+                            if( state != null ) {
+                                state[2] = 1;
+                            }   // end if: more pieces
                             break;
                         }   // end if: equals sign
                     }   // end if: quartet built
@@ -1198,14 +1879,16 @@ public class Base64
             else {
                 // There's a bad input character in the Base64 stream.
                 throw new java.io.IOException( String.format(
-                "Bad Base64 input character decimal %d in array position %d", ((int)source[i])&0xFF, i ) );
+                "Bad Base64 input character decimal %d in array position %d", ((int)source[i])&0xFF, sourcePosition + i - off ) );
             }   // end else: 
         }   // each input character
-                                   
-        byte[] out = new byte[ outBuffPosn ];
-        System.arraycopy( outBuff, 0, out, 0, outBuffPosn ); 
-        return out;
-    }   // end decode
+        
+        if( state != null ) {
+            state[0] = quad;
+            state[1] = b4Posn;
+        }   // end if: more pieces
+        return outBuffPosn;
+    }   // end decodeInto
     
     
 	
@@ -1571,6 +2254,7 @@ public class Base64
     
     /**
      * Reads <tt>infile</tt> and encodes it to <tt>outfile</tt>.
+     * The file is streamed, so it doesn't need to fit in memory.
      *
      * @param infile Input file
      * @param outfile Output file
@@ -1580,17 +2264,19 @@ public class Base64
     public static void encodeFileToFile( String infile, String outfile )
     throws java.io.IOException {
         
-        String encoded = Base64.encodeFromFile( infile );
-        java.io.OutputStream out = null;
+        java.io.FileInputStream in = null;
+        java.io.FileOutputStream out = null;
         try{
-            out = new java.io.BufferedOutputStream(
-                  new java.io.FileOutputStream( outfile ) );
-            out.write( encoded.getBytes("US-ASCII") ); // Strict, 7-bit output.
+            in = new java.io.FileInputStream( infile );
+            out = new java.io.FileOutputStream( outfile );
+            Base64.encode( in.getChannel(), out.getChannel(), NO_OPTIONS ); // Strict, 7-bit output.
         }   // end try
         catch( java.io.IOException e ) {
             throw e; // Catch and release to execute finally{}
         }   // end catch
         finally {
+            try { in.close(); }
+            catch( Exception ex ){}
             try { out.close(); }
             catch( Exception ex ){}
         }   // end finally    
@@ -1599,6 +2285,7 @@ public class Base64
 
     /**
      * Reads <tt>infile</tt> and decodes it to <tt>outfile</tt>.
+     * The file is streamed, so it doesn't need to fit in memory.
      *
      * @param infile Input file
      * @param outfile Output file
@@ -1608,23 +2295,443 @@ public class Base64
     public static void decodeFileToFile( String infile, String outfile )
     throws java.io.IOException {
         
-        byte[] decoded = Base64.decodeFromFile( infile );
-        java.io.OutputStream out = null;
+        java.io.FileInputStream in = null;
+        java.io.FileOutputStream out = null;
         try{
-            out = new java.io.BufferedOutputStream(
-                  new java.io.FileOutputStream( outfile ) );
-            out.write( decoded );
+            in = new java.io.FileInputStream( infile );
+            out = new java.io.FileOutputStream( outfile );
+            Base64.decode( in.getChannel(), out.getChannel(), NO_OPTIONS );
         }   // end try
         catch( java.io.IOException e ) {
             throw e; // Catch and release to execute finally{}
         }   // end catch
         finally {
+            try { in.close(); }
+            catch( Exception ex ){}
             try { out.close(); }
             catch( Exception ex ){}
         }   // end finally    
     }   // end decodeFileToFile
     
     
+    
+/* ********  P A R A L L E L   C O D I N G  ******** */
+    
+    
+    /** Input bytes encoded per task: whole lines, so that line breaks fall where they would in one piece. */
+    private final static int PARALLEL_ENCODE_BYTES = MAX_LINE_BYTES * 4096;
+    
+    /** Base64 characters counted and decoded per task. */
+    private final static int PARALLEL_DECODE_BYTES = 256 * 1024;
+    
+    
+    /** The pool is only started the first time that something large is coded. */
+    private static class ParallelPool {
+        static final java.util.concurrent.ForkJoinPool POOL = new java.util.concurrent.ForkJoinPool();
+    }   // end ParallelPool
+    
+    
+    private static boolean isParallel( int len ) {
+        return PARALLEL_THRESHOLD > 0 && len >= PARALLEL_THRESHOLD && Runtime.getRuntime().availableProcessors() > 1;
+    }   // end isParallel
+    
+    
+    /**
+     * Encodes a range by splitting it in two at a whole number of lines,
+     * until the pieces are small. Each piece's output starts where
+     * {@link #encodedLength(int,int)} says the pieces before it end.
+     */
+    private static class EncodeTask extends java.util.concurrent.RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final byte[] source;
+        private final int    off;
+        private final int    len;
+        private final byte[] destination;
+        private final int    destOffset;
+        private final int    options;
+        
+        EncodeTask( byte[] source, int off, int len, byte[] destination, int destOffset, int options ) {
+            this.source = source;
+            this.off = off;
+            this.len = len;
+            this.destination = destination;
+            this.destOffset = destOffset;
+            this.options = options;
+        }   // end constructor
+        
+        @Override
+        protected void compute() {
+            if( this.len <= PARALLEL_ENCODE_BYTES ) {
+                encodeInto( this.source, this.off, this.len, this.destination, this.destOffset, this.options );
+                return;
+            }   // end if: small enough
+            
+            int half = this.len / 2 / MAX_LINE_BYTES * MAX_LINE_BYTES;
+            invokeAll(
+                new EncodeTask( this.source, this.off, half,
+                                this.destination, this.destOffset, this.options ),
+                new EncodeTask( this.source, this.off + half, this.len - half,
+                                this.destination, this.destOffset + encodedLength( half, this.options ), this.options ) );
+        }   // end compute
+    }   // end EncodeTask
+    
+    
+    /**
+     * Decodes like {@link #decodeInto decodeInto} with no state, on the
+     * fork/join pool when the input is large.
+     */
+    private static int decodeArray(
+    byte[] source, int off, int len,
+    byte[] destination, int destOffset, int destLimit, int options )
+    throws java.io.IOException {
+        
+        if( !isParallel( len ) ) {
+            return decodeInto( source, off, len, destination, destOffset, destLimit, options, null, off );
+        }   // end if: one piece
+        
+        // First count the characters that make up quartets in each piece,
+        // and find the first piece with an equals sign or a bad character
+        int pieces = ( len + PARALLEL_DECODE_BYTES - 1 ) / PARALLEL_DECODE_BYTES;
+        int[] counts = new int[ pieces ];
+        boolean[] special = new boolean[ pieces ];
+        ParallelPool.POOL.invoke( new DecodeTask( source, off, len, counts, special, 0, pieces, options ) );
+        
+        int clean = 0;
+        int[] quartetsBefore = new int[ pieces + 1 ];
+        long characters = 0;
+        while( clean < pieces && !special[ clean ] ) {
+            characters += counts[ clean ];
+            clean++;
+            quartetsBefore[ clean ] = (int)( characters / 4 );
+        }   // end while: pieces with only the alphabet and white space
+        
+        // The pieces before that can be decoded independently: where each
+        // one's output starts, and the unfinished quartet that it picks up
+        // from the piece before it, both follow from the counts
+        if( quartetsBefore[ clean ] * 3L > destLimit - destOffset ) {
+            throw new IllegalArgumentException( String.format(
+            "Destination array with length %d cannot have offset of %d and still store %d bytes.", destLimit, destOffset, quartetsBefore[ clean ] * 3 ) );
+        }   // end if: no room
+        if( clean > 0 ) {
+            int[] destOffsets = new int[ clean + 1 ];
+            int[] carried = new int[ clean ];
+            long charactersBefore = 0;
+            for( int piece = 0; piece <= clean; piece++ ) {
+                destOffsets[ piece ] = destOffset + quartetsBefore[ piece ] * 3;
+                if( piece < clean ) {
+                    carried[ piece ] = (int)( charactersBefore % 4 );
+                    charactersBefore += counts[ piece ];
+                }   // end if: not the end
+            }   // end for: each piece
+            ParallelPool.POOL.invoke( new DecodeTask( source, off, len, carried, destination, destOffsets, 0, clean, options ) );
+        }   // end if: anything clean
+        
+        if( clean == pieces ) {
+            return destOffset + quartetsBefore[ clean ] * 3;    // An unfinished quartet at the end is dropped
+        }   // end if: no padding
+        
+        // Everything from the first equals sign or bad character is decoded in
+        // one piece, so that it stops or fails exactly where it would have
+        int start = off + clean * PARALLEL_DECODE_BYTES;
+        int[] state = carriedQuartet( source, off, start, (int)( characters % 4 ), options );
+        return decodeInto( source, start, off + len - start,
+                           destination, destOffset + quartetsBefore[ clean ] * 3, destLimit, options, state, start );
+    }   // end decodeArray
+    
+    
+    /**
+     * Returns the state for {@link #decodeInto decodeInto} that holds the
+     * last <var>numChars</var> quartet characters before <var>start</var>,
+     * of which there are only white space and alphabet characters.
+     */
+    private static int[] carriedQuartet( byte[] source, int off, int start, int numChars, int options ) {
+        byte[] DECODABET = getDecodabet( options );
+        int quad = 0;
+        int found = 0;
+        for( int i = start - 1; found < numChars && i >= off; i-- ) {
+            if( DECODABET[ source[i] & 0xFF ] != WHITE_SPACE_ENC ) {
+                quad |= ( source[i] & 0xFF ) << ( 8 * found );
+                found++;
+            }   // end if: not white space
+        }   // end for: back to the start of the quartet
+        return new int[] { quad, numChars, 0 };
+    }   // end carriedQuartet
+    
+    
+    /**
+     * Works on a range of pieces of the input to {@link #decodeArray decodeArray}.
+     * Without a destination, it counts each piece's quartet characters
+     * and notes whether it has an equals sign or a bad character; with
+     * one, it decodes each piece to where its output starts, carrying
+     * in the given number of characters from before the piece.
+     */
+    private static class DecodeTask extends java.util.concurrent.RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final byte[]    source;
+        private final int       off;
+        private final int       len;
+        private final int[]     counts;         // Counted, or carried when decoding
+        private final boolean[] special;
+        private final byte[]    destination;
+        private final int[]     destOffsets;
+        private final int       firstPiece;
+        private final int       endPiece;
+        private final int       options;
+        
+        /** Counts pieces <var>firstPiece</var> up to <var>endPiece</var>. */
+        DecodeTask( byte[] source, int off, int len, int[] counts, boolean[] special,
+                    int firstPiece, int endPiece, int options ) {
+            this( source, off, len, counts, special, null, null, firstPiece, endPiece, options );
+        }   // end constructor
+        
+        /** Decodes pieces <var>firstPiece</var> up to <var>endPiece</var>. */
+        DecodeTask( byte[] source, int off, int len, int[] carried,
+                    byte[] destination, int[] destOffsets, int firstPiece, int endPiece, int options ) {
+            this( source, off, len, carried, null, destination, destOffsets, firstPiece, endPiece, options );
+        }   // end constructor
+        
+        private DecodeTask( byte[] source, int off, int len, int[] counts, boolean[] special,
+                            byte[] destination, int[] destOffsets, int firstPiece, int endPiece, int options ) {
+            this.source = source;
+            this.off = off;
+            this.len = len;
+            this.counts = counts;
+            this.special = special;
+            this.destination = destination;
+            this.destOffsets = destOffsets;
+            this.firstPiece = firstPiece;
+            this.endPiece = endPiece;
+            this.options = options;
+        }   // end constructor
+        
+        @Override
+        protected void compute() {
+            if( this.endPiece - this.firstPiece > 1 ) {
+                int middle = ( this.firstPiece + this.endPiece ) >>> 1;
+                invokeAll(
+                    new DecodeTask( this.source, this.off, this.len, this.counts, this.special,
+                                    this.destination, this.destOffsets, this.firstPiece, middle, this.options ),
+                    new DecodeTask( this.source, this.off, this.len, this.counts, this.special,
+                                    this.destination, this.destOffsets, middle, this.endPiece, this.options ) );
+                return;
+            }   // end if: more than one piece
+            
+            int piece = this.firstPiece;
+            int start = this.off + piece * PARALLEL_DECODE_BYTES;
+            int end = Math.min( this.off + this.len, start + PARALLEL_DECODE_BYTES );
+            
+            if( this.destination == null ) {
+                byte[] DECODABET = getDecodabet( this.options );
+                int count = 0;
+                boolean found = false;
+                for( int i = start; i < end; i++ ) {
+                    byte sbiDecode = DECODABET[ this.source[i] & 0xFF ];
+                    if( sbiDecode >= 0 ) {
+                        count++;
+                    } else if( sbiDecode != WHITE_SPACE_ENC ) {
+                        found = true;
+                        break;
+                    }   // end else: equals sign or bad character
+                }   // end for: each character
+                this.counts[ piece ] = count;
+                this.special[ piece ] = found;
+                return;
+            }   // end if: counting
+            
+            int[] state = carriedQuartet( this.source, this.off, start, this.counts[ piece ], this.options );
+            try {
+                decodeInto( this.source, start, end - start, this.destination,
+                            this.destOffsets[ piece ], this.destOffsets[ piece + 1 ], this.options, state, start );
+            } catch( java.io.IOException e ) {
+                throw new IllegalStateException( "A piece with only Base64 characters and white space failed to decode.", e );
+            }   // end catch: can't happen
+        }   // end compute
+    }   // end DecodeTask
+    
+    
+    
+/* ********  C H A N N E L S  ******** */
+    
+    
+    /** Input bytes encoded per piece: whole lines, so that line breaks fall where they would in one piece. */
+    private final static int CHANNEL_ENCODE_BYTES = MAX_LINE_BYTES * 1024;
+    
+    /** Base64 characters decoded per piece. */
+    private final static int CHANNEL_DECODE_BYTES = 64 * 1024;
+    
+    /** Files with at least this much left to read are memory-mapped instead of read. */
+    private final static long MAP_THRESHOLD = 4L * 1024 * 1024;
+    
+    /** How much of a file is mapped at once, a whole number of pieces. */
+    private final static long MAP_WINDOW = CHANNEL_ENCODE_BYTES * 256L;
+    
+    
+    /**
+     * Encodes the rest of <var>in</var>, from its position to its end,
+     * to <var>out</var>. Memory use doesn't depend on the size of the file:
+     * the input is read, or for large files memory-mapped, a piece at a time,
+     * and each piece is written to <var>out</var> as soon as it's encoded.
+     * The output is the same as {@link #encodeBytesToBytes(byte[],int,int,int)}
+     * would give for the whole file. The position of <var>in</var> is left
+     * at its end.
+     *
+     * @param in the file to encode
+     * @param out where the Base64 bytes are written
+     * @param options alphabet type and {@link #DO_BREAK_LINES}
+     * @return the number of Base64 bytes written
+     * @throws java.io.IOException if there is an error reading or writing
+     * @throws IllegalArgumentException if {@link #GZIP} is set
+     */
+    public static long encode( java.nio.channels.FileChannel in, java.nio.channels.WritableByteChannel out, int options )
+    throws java.io.IOException {
+        
+        if( (options & GZIP) != 0 ){
+            throw new IllegalArgumentException( "Channels cannot be gzipped." );
+        }   // end if: gzip
+        
+        ChannelSource source = new ChannelSource( in );
+        byte[] raw = new byte[ (int)Math.min( CHANNEL_ENCODE_BYTES, source.remaining() ) ];
+        byte[] encoded = new byte[ encodedLength( raw.length, options ) ];
+        java.nio.ByteBuffer encodedBuffer = java.nio.ByteBuffer.wrap( encoded );
+        long written = 0;
+        
+        int numBytes;
+        while( ( numBytes = source.read( raw ) ) > 0 ) {
+            int encLen = encode( raw, 0, numBytes, encoded, 0, options );
+            encodedBuffer.clear().limit( encLen );
+            writeFully( out, encodedBuffer );
+            written += encLen;
+        }   // end while: each piece
+        
+        source.close();
+        return written;
+    }   // end encode
+    
+    
+    /**
+     * Decodes the rest of <var>in</var>, from its position to its end,
+     * to <var>out</var>, a piece at a time like
+     * {@link #encode(java.nio.channels.FileChannel,java.nio.channels.WritableByteChannel,int)}.
+     * The input is handled exactly as {@link #decode(byte[],int,int,int)}
+     * would handle the whole file; bad characters are reported at their
+     * position in the file. The position of <var>in</var> is left at its end.
+     *
+     * @param in the Base64 file to decode
+     * @param out where the decoded bytes are written
+     * @param options alphabet type
+     * @return the number of decoded bytes written
+     * @throws java.io.IOException if there is an error reading or writing,
+     *         or bogus characters exist in the file
+     * @throws IllegalArgumentException if there are between one and three characters
+     */
+    public static long decode( java.nio.channels.FileChannel in, java.nio.channels.WritableByteChannel out, int options )
+    throws java.io.IOException {
+        
+        ChannelSource source = new ChannelSource( in );
+        if( source.remaining() > 0 && source.remaining() < 4 ){
+            throw new IllegalArgumentException( 
+            "Base64-encoded string must have at least four characters, but length specified was " + source.remaining() );
+        }   // end if
+        
+        byte[] encoded = new byte[ (int)Math.min( CHANNEL_DECODE_BYTES, source.remaining() ) ];
+        byte[] raw = new byte[ maxDecodedLength( encoded.length ) + 3 ];  // Plus a quartet carried over
+        java.nio.ByteBuffer rawBuffer = java.nio.ByteBuffer.wrap( raw );
+        int[] state = new int[3];
+        long written = 0;
+        
+        int numBytes;
+        while( state[2] == 0 && ( numBytes = source.read( encoded ) ) > 0 ) {
+            int rawLen = decodeInto( encoded, 0, numBytes, raw, 0, raw.length, options, state, source.position - numBytes );
+            rawBuffer.clear().limit( rawLen );
+            writeFully( out, rawBuffer );
+            written += rawLen;
+        }   // end while: each piece, up to the padding
+        
+        source.close();
+        return written;
+    }   // end decode
+    
+    
+    private static void writeFully( java.nio.channels.WritableByteChannel out, java.nio.ByteBuffer buffer )
+    throws java.io.IOException {
+        while( buffer.hasRemaining() ) {
+            out.write( buffer );
+        }   // end while
+    }   // end writeFully
+    
+    
+    /**
+     * Reads a FileChannel from its position to its end, a piece at a time.
+     * Large files are mapped a window at a time and copied out of the
+     * mapping, which saves a system call and a copy per piece; small
+     * files are read with positional reads.
+     */
+    private static class ChannelSource {
+        
+        private final java.nio.channels.FileChannel channel;
+        private final long end;
+        private final boolean mapped;
+        private long position;                  // Next byte to read
+        private java.nio.MappedByteBuffer window;
+        
+        ChannelSource( java.nio.channels.FileChannel channel ) throws java.io.IOException {
+            this.channel = channel;
+            this.position = channel.position();
+            this.end = Math.max( this.position, channel.size() );
+            this.mapped = this.end - this.position >= MAP_THRESHOLD;
+        }   // end constructor
+        
+        long remaining() {
+            return this.end - this.position;
+        }   // end remaining
+        
+        /**
+         * Fills <var>buffer</var>, unless the end of the file comes first,
+         * and returns the number of bytes read.
+         */
+        int read( byte[] buffer ) throws java.io.IOException {
+            int len = (int)Math.min( buffer.length, remaining() );
+            int done = 0;
+            
+            if( this.mapped ) {
+                while( done < len ) {
+                    if( this.window == null || !this.window.hasRemaining() ) {
+                        this.window = this.channel.map( java.nio.channels.FileChannel.MapMode.READ_ONLY,
+                            this.position, Math.min( MAP_WINDOW, remaining() ) );
+                    }   // end if: next window
+                    int numBytes = Math.min( len - done, this.window.remaining() );
+                    this.window.get( buffer, done, numBytes );
+                    done += numBytes;
+                    this.position += numBytes;
+                }   // end while
+            }   // end if: mapped
+            else {
+                java.nio.ByteBuffer wrapped = java.nio.ByteBuffer.wrap( buffer, 0, len );
+                while( wrapped.hasRemaining() ) {
+                    int numBytes = this.channel.read( wrapped, this.position );
+                    if( numBytes < 0 ) {
+                        break;
+                    }   // end if: file got shorter
+                    this.position += numBytes;
+                }   // end while
+                done = wrapped.position();
+            }   // end else: read
+            
+            return done;
+        }   // end read
+        
+        /** Leaves the channel's position after the bytes that were read. */
+        void close() throws java.io.IOException {
+            this.window = null;
+            this.channel.position( this.position );
+        }   // end close
+    }   // end ChannelSource
+    
+    
     /* ********  I N N E R   C L A S S   I N P U T S T R E A M  ******** */
     
     
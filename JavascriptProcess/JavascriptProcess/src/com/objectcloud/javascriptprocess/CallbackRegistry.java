@@ -0,0 +1,174 @@
+package com.objectcloud.javascriptprocess;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.mozilla.javascript.Function;
+
+// Tracks the Javascript functions that were passed to the parent process as callbacks, by their callback ID
+// IDs come from a counter, so no locking is needed to pick one
+// Normally a callback only lives while the call that it was passed to is running; the parent process can retain a callback
+// so that it can keep calling it until it sends ReleaseCallback, or until the callback goes unused for its TTL
+public class CallbackRegistry {
+
+	private final AtomicInteger nextCallbackID = new AtomicInteger();
+	private final ConcurrentMap<Integer, Function> callbacks = new ConcurrentHashMap<Integer, Function>();
+
+	private static class Retained {
+
+		Retained(long ttlMillis) {
+			this.ttlMillis = ttlMillis;
+			expires = computeExpires(ttlMillis);
+		}
+
+		// 0 means that the callback lives until it's released
+		final long ttlMillis;
+		volatile long expires;
+
+		// Each call to the callback restarts its TTL
+		void touch() {
+			expires = computeExpires(ttlMillis);
+		}
+
+		boolean isExpired(long now) {
+			return now > expires;
+		}
+
+		private static long computeExpires(long ttlMillis) {
+			return ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : Long.MAX_VALUE;
+		}
+	}
+
+	private final ConcurrentMap<Integer, Retained> retained = new ConcurrentHashMap<Integer, Retained>();
+
+	private final AtomicLong retainedTotal = new AtomicLong();
+	private final AtomicLong releasedTotal = new AtomicLong();
+	private final AtomicLong expiredTotal = new AtomicLong();
+	private final AtomicLong retainedCalls = new AtomicLong();
+
+	// Registers the callback and returns its ID; the ID is also added to frameCallbackIDs so the caller can remove all of its
+	// callbacks at once
+	public Integer register(Function callback, Collection<Object> frameCallbackIDs) {
+
+		Integer callbackID;
+
+		// The counter only repeats after it wraps around, and then only collides with a callback that lived that long
+		do {
+			callbackID = nextCallbackID.incrementAndGet();
+		} while (null != callbacks.putIfAbsent(callbackID, callback));
+
+		frameCallbackIDs.add(callbackID);
+		return callbackID;
+	}
+
+	// Returns null if there is no callback with the ID, or if it was retained and expired
+	public Function get(Object callbackID) {
+
+		// The parent process might send the ID back as a different kind of number
+		if (!(callbackID instanceof Number))
+			return null;
+
+		Integer id = ((Number)callbackID).intValue();
+
+		Retained retainedCallback = retained.get(id);
+		if (null != retainedCallback) {
+
+			if (retainedCallback.isExpired(System.currentTimeMillis())) {
+				expire(id, retainedCallback);
+				return null;
+			}
+
+			retainedCallback.touch();
+			retainedCalls.incrementAndGet();
+		}
+
+		return callbacks.get(id);
+	}
+
+	// Removes the callbacks of a call frame, except for callbacks that the parent process retained
+	public void removeAll(Collection<Object> frameCallbackIDs) {
+
+		for (Object callbackID : frameCallbackIDs)
+			if (!retained.containsKey(callbackID))
+				callbacks.remove(callbackID);
+	}
+
+	// Keeps the callback after its call frame is complete; if ttlMillis is more than 0, the callback is removed after it goes unused
+	// for that long.  Returns false if the callback no longer exists
+	public boolean retain(Object callbackID, long ttlMillis) {
+
+		if (!(callbackID instanceof Number))
+			return false;
+
+		Integer id = ((Number)callbackID).intValue();
+
+		if (!callbacks.containsKey(id))
+			return false;
+
+		if (null == retained.put(id, new Retained(ttlMillis)))
+			retainedTotal.incrementAndGet();
+
+		removeExpired();
+		return true;
+	}
+
+	// Returns false if the callback wasn't retained
+	public boolean release(Object callbackID) {
+
+		if (!(callbackID instanceof Number))
+			return false;
+
+		Integer id = ((Number)callbackID).intValue();
+
+		if (null == retained.remove(id))
+			return false;
+
+		callbacks.remove(id);
+		releasedTotal.incrementAndGet();
+		return true;
+	}
+
+	public int size() {
+		return callbacks.size();
+	}
+
+	// Counts of live and retained callbacks, for the parent process to monitor leaks
+	public JSONObject getMetrics() throws JSONException {
+
+		removeExpired();
+
+		JSONObject metrics = new JSONObject();
+		metrics.put("Live", callbacks.size());
+		metrics.put("Retained", retained.size());
+		metrics.put("RetainedTotal", retainedTotal.get());
+		metrics.put("ReleasedTotal", releasedTotal.get());
+		metrics.put("ExpiredTotal", expiredTotal.get());
+		metrics.put("RetainedCalls", retainedCalls.get());
+
+		return metrics;
+	}
+
+	private void removeExpired() {
+
+		long now = System.currentTimeMillis();
+
+		for (Map.Entry<Integer, Retained> retainedCallback : retained.entrySet())
+			if (retainedCallback.getValue().isExpired(now))
+				expire(retainedCallback.getKey(), retainedCallback.getValue());
+	}
+
+	private void expire(Integer callbackID, Retained retainedCallback) {
+
+		// Only the thread that removes the entry counts it
+		if (retained.remove(callbackID, retainedCallback)) {
+			callbacks.remove(callbackID);
+			expiredTotal.incrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package com.objectcloud.javascriptprocess;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONString;
+
+// The serialized description of each function in a scope, as sent back in RespondCreateScope, along with a
+// fingerprint that lets the parent process recognize a set of functions that it already has
+public class FunctionsMetadata {
+
+	public FunctionsMetadata(SortedMap<String, String> functions) {
+		this.functions = Collections.unmodifiableSortedMap(functions);
+	}
+
+	// Each function's JSON, by function name
+	private final SortedMap<String, String> functions;
+	private String fingerprint = null;
+
+	public SortedMap<String, String> getFunctions() {
+		return functions;
+	}
+
+	// The fingerprint is only computed when it's asked for, because it's only needed when the parent process caches functions
+	public synchronized String getFingerprint() throws Exception {
+
+		if (null != fingerprint)
+			return fingerprint;
+
+		MessageDigest messageDigest = MessageDigest.getInstance("SHA-1");
+
+		for (Map.Entry<String, String> function : functions.entrySet()) {
+			messageDigest.update(function.getKey().getBytes("UTF-8"));
+			messageDigest.update((byte)0);
+			messageDigest.update(function.getValue().getBytes("UTF-8"));
+			messageDigest.update((byte)0);
+		}
+
+		fingerprint = Base64.encodeBytes(messageDigest.digest());
+		return fingerprint;
+	}
+
+	// Builds the Functions object for all of the functions
+	public JSONObject toJSONObject() throws JSONException {
+		return toJSONObject(functions);
+	}
+
+	// Builds a Functions object that only contains functions that are new or different from the template
+	public JSONObject getChangedFunctions(FunctionsMetadata template) throws JSONException {
+
+		SortedMap<String, String> changedFunctions = new TreeMap<String, String>();
+
+		for (Map.Entry<String, String> function : functions.entrySet())
+			if (!function.getValue().equals(template.functions.get(function.getKey())))
+				changedFunctions.put(function.getKey(), function.getValue());
+
+		return toJSONObject(changedFunctions);
+	}
+
+	// Lists the functions in the template that aren't in this set of functions
+	public List<String> getRemovedFunctions(FunctionsMetadata template) {
+
+		List<String> removedFunctions = new ArrayList<String>();
+
+		for (String functionName : template.functions.keySet())
+			if (!functions.containsKey(functionName))
+				removedFunctions.add(functionName);
+
+		return removedFunctions;
+	}
+
+	private static JSONObject toJSONObject(SortedMap<String, String> functions) throws JSONException {
+
+		JSONObject toReturn = new JSONObject();
+
+		for (final Map.Entry<String, String> function : functions.entrySet())
+			toReturn.put(function.getKey(), new JSONString() {
+
+				@Override
+				public String toJSONString() {
+					return function.getValue();
+				}
+
+			});
+
+		return toReturn;
+	}
+}
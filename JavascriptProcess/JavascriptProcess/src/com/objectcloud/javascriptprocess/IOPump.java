@@ -2,15 +2,28 @@ package com.objectcloud.javascriptprocess;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.util.concurrent.ExecutorService;
+import java.io.Writer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
@@ -20,10 +33,17 @@ public class IOPump {
 	 * @param args
 	 */
 	public static void main(String[] args) {
-		IOPump me = new IOPump(System.in, System.out);
 		
 		try {
-			me.start();
+			// Each connection to the port gets its own IOPump
+			if (SocketIOPumpServer.PORT >= 0)
+				new SocketIOPumpServer(SocketIOPumpServer.PORT, System.in).start();
+			
+			// One process can host an IOPump per channel, so that they share the compiled Javascript and RootScope
+			else if (MultiplexedIOPump.ENABLED)
+				new MultiplexedIOPump(System.in, System.out).start();
+			else
+				new IOPump(System.in, System.out).start();
 
 		} catch (Exception e) {
 			
@@ -40,24 +60,120 @@ public class IOPump {
 		System.exit(0);
 	}
 	
+	// Every command from the parent process repeats these keys, so the reader thread shares one String for each instead of allocating them
+	static {
+		JSONObject.internKeys(
+			"ParentScopeID", "ScopeID", "ThreadID", "Command", "Data", "DataFormat", "ChannelID",
+			"Scripts", "Functions", "KnownFunctionsFingerprint", "FunctionName", "Arguments", "Commands",
+			"Result", "Exception", "CallID", "CacheID", "SharedCache", "CallbackId", "RetainCallbacks", "CallbackTTLs");
+	}
+
 	public IOPump(InputStream inStream, OutputStream outStream) {
 		this.inStream = inStream;
 		this.outStream = outStream;
 	}
 	
+	// For when something else reads the commands and calls handleInCommand, such as MultiplexedIOPump
+	public IOPump(Writer outputStreamWriter) {
+		this.outputStreamWriter = outputStreamWriter;
+	}
+	
 	InputStream inStream;
 	OutputStream outStream;
+	Writer outputStreamWriter;
+	
+	// Every command looks these up, so they're concurrent maps instead of synchronized maps
+	final ConcurrentMap<Integer, ParentScope> parentScopes = new ConcurrentHashMap<Integer, ParentScope>();
+	final ConcurrentMap<Integer, ScopeWrapper> scopeWrappers = new ConcurrentHashMap<Integer, ScopeWrapper>();
+	
+	// Scopes that the parent process stops using are disposed after this long; 0 means that scopes are only disposed by the parent process
+	// Set with -Dobjectcloud.scope.maxidleseconds
+	static final long MAX_SCOPE_IDLE_MILLIS = Long.getLong("objectcloud.scope.maxidleseconds", 0) * 1000;
+	
+	// When there are more scopes than this, the least recently used idle scopes are disposed; 0 means there is no limit
+	// Set with -Dobjectcloud.scope.maxlive
+	static final int MAX_LIVE_SCOPES = Integer.getInteger("objectcloud.scope.maxlive", 0);
+	
+	// The most commands that run Javascript at once; a scope runs at most one of them
+	// A command that's waiting on the parent process doesn't count, because the response it waits for might need another command
+	// to run first
+	// Set with -Dobjectcloud.pump.maxthreads
+	static final int MAX_THREADS = Integer.getInteger("objectcloud.pump.maxthreads", 256);
+	
+	// When this many commands are queued or running, Busy is sent to the parent process, and when the number falls back to
+	// RESUME_IN_FLIGHT, Ready is sent; 0 means that the parent process isn't told
+	// Set with -Dobjectcloud.pump.maxinflight and -Dobjectcloud.pump.resumeinflight
+	static final int MAX_IN_FLIGHT = Integer.getInteger("objectcloud.pump.maxinflight", 0);
+	static final int RESUME_IN_FLIGHT = Integer.getInteger("objectcloud.pump.resumeinflight", MAX_IN_FLIGHT / 2);
+	
+	// How many evicted ScopeIDs are remembered, so that commands that the parent process sent before it heard about an eviction
+	// are answered instead of running against a new, empty scope
+	// Set with -Dobjectcloud.scope.maxevictedids
+	static final int MAX_EVICTED_SCOPE_IDS = Integer.getInteger("objectcloud.scope.maxevictedids", 65536);
+	
+	// The ScopeIDs of evicted scopes, oldest first; an ID is forgotten when the parent process creates the scope again
+	private final Map<Integer, String> evictedScopeIDs = Collections.synchronizedMap(new LinkedHashMap<Integer, String>() {
+		
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+			return size() > MAX_EVICTED_SCOPE_IDS;
+		}
+	});
+	
+	private final AtomicInteger inFlightCommands = new AtomicInteger();
+	private volatile boolean busy = false;
+	private final Object flowControlLock = new Object();
+	
+	private ThreadPoolExecutor executorService;
+	private ScheduledExecutorService scopeEvictionService = null;
+	private final AtomicBoolean capacityEvictionQueued = new AtomicBoolean();
+	private final Semaphore runningCommands = new Semaphore(MAX_THREADS);
+	
+	// Each scope runs its commands on this through its own SerialExecutor
+	// A command holds one of the MAX_THREADS permits while it runs, except while it waits on the parent process
+	private final Executor commandExecutor = new Executor() {
+		
+		@Override
+		public void execute(final Runnable command) {
+			executorService.execute(new Runnable() {
+				
+				@Override
+				public void run() {
+					runningCommands.acquireUninterruptibly();
+					
+					try {
+						command.run();
+					} finally {
+						runningCommands.release();
+					}
+				}
+			});
+		}
+	};
 	
-	final Map<Integer, ParentScope> parentScopes = new HashMap<Integer, ParentScope>();
-	final Map<Integer, ScopeWrapper> scopeWrappers = new HashMap<Integer, ScopeWrapper>();
+	Executor getCommandExecutor() {
+		return commandExecutor;
+	}
+	
+	// Called by a command before it blocks waiting on the parent process, so that other commands can run in the meantime
+	void waitingOnParent() {
+		runningCommands.release();
+	}
+	
+	// Called when a command that was waiting on the parent process runs again
+	void doneWaitingOnParent() {
+		runningCommands.acquireUninterruptibly();
+	}
 
 	public void start() throws Exception {
 		
-		ExecutorService executorService = Executors.newCachedThreadPool();
+		outputStreamWriter = new Utf8Writer(outStream);
+		open();
 		
 		try {
-			JSONTokener tokener = new JSONTokener(new InputStreamReader(inStream));
-			final OutputStreamWriter outputStreamWriter = new OutputStreamWriter(outStream);
+			JSONTokener tokener = new JSONTokener(new Utf8Reader(inStream));
 			
 			// Create the parent scope
 			JSONObject inCommand = new JSONObject(tokener);
@@ -66,133 +182,461 @@ public class IOPump {
 			//inCommand = new JSONObject(tokener);
 			
 			while (inCommand.length() > 0) {
+				
+				handleInCommand(inCommand);
+				
+				// This is done last before the loop
+				inCommand = new JSONObject(tokener);
+			}
+		}
+		finally {
+			close();
+		}
+	}
+	
+	// Starts the threads that run commands
+	public void open() {
+		
+		// Threads are only limited by runningCommands, so commands that wait on the parent process never keep the commands that
+		// it's waiting on from starting; idle threads time out
+		executorService = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+		
+		// Tell the parent process how many commands it can send at once
+		if (MAX_IN_FLIGHT > 0)
+			sendFlowControl("Ready", 0);
+		
+		// Scopes are evicted on their own thread, so that reading commands never waits on walking scopes
+		if ((MAX_SCOPE_IDLE_MILLIS > 0) || (MAX_LIVE_SCOPES > 0))
+			scopeEvictionService = Executors.newSingleThreadScheduledExecutor();
+		
+		if (MAX_SCOPE_IDLE_MILLIS > 0) {
+			long sweepMillis = Math.max(MAX_SCOPE_IDLE_MILLIS / 4, 1000);
+			scopeEvictionService.scheduleWithFixedDelay(new Runnable() {
+				
+				@Override
+				public void run() {
+					evictIdleScopes();
+				}
+				
+			}, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	// Queues a command from the parent process to run
+	public void handleInCommand(JSONObject inCommand) {
+		
+		// Data that's sent as MessagePack is decoded here, so everything else only sees org.json values
+		try {
+			MessagePack.decodeData(inCommand);
+		} catch (Exception e) {
+			System.err.println(JSONObject.quote("Can not decode Data: " + e.getMessage()));
+			return;
+		}
+		
+		if (inCommand.has("ScopeID")) {
+			// Commands for a scope run in order on the scope's lane
+			// The lookup reserves the scope, so that it isn't evicted before the command is on its lane
+			ScopeWrapper scopeWrapper;
+			
+			try {
+				scopeWrapper = getOrCreateScopeWrapper(inCommand);
+			} catch (Exception e) {
+				respondWithException(inCommand, e);
+				return;
+			}
+			
+			try {
+				scopeWrapper.execute(inCommand);
+			} catch (Exception e) {
+				StringBuilder toReturn = new StringBuilder();
+				toReturn.append(e.getMessage());
+				
+				for (StackTraceElement ste : e.getStackTrace())
+					toReturn.append("\n" + ste.toString());
+				
+				System.err.println(JSONObject.quote(toReturn.toString()));
+			} finally {
+				scopeWrapper.unreserve();
+			}
+		} else {
+			final JSONObject inCommandFinal = inCommand;
+			final IOPump me = this;
 			
-				Runnable command;
+			commandStarted();
+			executorService.execute(new Runnable() {
 				
-				if (inCommand.has("ScopeID")) {
-					// Get or create the scope wrapper
-					final JSONObject inCommandFinal = inCommand;
+				@Override
+				public void run() {
+					try {
+						handleParentScopeCommand();
+					} finally {
+						commandFinished();
+					}
+				}
+				
+				private void handleParentScopeCommand() {
+					int parentScopeID;
+					ParentScope parentScope = null;
+					JSONObject outCommand = null;
 
-					command = new Runnable() {
+					try {
+						parentScopeID = inCommandFinal.getInt("ParentScopeID");
 						
-						@Override
-						public void run() {
-							
-							ScopeWrapper scopeWrapper = null;
-
-							try {
-								int scopeID = inCommandFinal.getInt("ScopeID");
-								
-								boolean scopeExists;
-								synchronized(scopeWrappers) {
-									
-									scopeExists = scopeWrappers.containsKey(scopeID);
+						if (inCommandFinal.has("Data")) {
+							parentScope = new ParentScope(me, inCommandFinal.getJSONObject("Data"), outputStreamWriter);
 
-									if (scopeExists)
-										scopeWrapper = scopeWrappers.get(scopeID);
-								}
-								
-								if (!scopeExists) {
-									int parentScopeID = inCommandFinal.getInt("ParentScopeID");
-									
-									ParentScope parentScope;
-									synchronized(parentScopes) {
-										parentScope = parentScopes.get(parentScopeID);
-									}
-									
-									scopeWrapper = parentScope.createScopeWrapper(scopeID);
-									synchronized(scopeWrappers) {
-										scopeWrappers.put(scopeID, scopeWrapper);
-									}
-								}
-							} catch (Exception e) {
-								StringBuilder toReturn = new StringBuilder();
-								toReturn.append(e.getMessage());
-								
-								for (StackTraceElement ste : e.getStackTrace())
-									toReturn.append("\n" + ste.toString());
-								
-								System.err.println(JSONObject.quote(toReturn.toString()));
-								
-								return;
-							}
-							
-							scopeWrapper.handle(inCommandFinal);
+							outCommand = new JSONObject();
+							outCommand.put("ThreadID", inCommandFinal.get("ThreadID"));
+							outCommand.put("ParentScopeID", parentScopeID);
+							outCommand.put("Data", new JSONObject());
+							outCommand.put("Command", "RespondCreateParentScope");
 						}
-					};
-				} else {
-					final JSONObject inCommandFinal = inCommand;
-					final IOPump me = this;
-					
-					command = new Runnable() {
-						
-						@Override
-						public void run() {
-							int parentScopeID;
-							ParentScope parentScope = null;
-							JSONObject outCommand = null;
-
-							try {
-								parentScopeID = inCommandFinal.getInt("ParentScopeID");
-								
-								if (inCommandFinal.has("Data")) {
-									parentScope = new ParentScope(me, inCommandFinal.getJSONObject("Data"), outputStreamWriter);
 
-									outCommand = new JSONObject();
-									outCommand.put("ThreadID", inCommandFinal.get("ThreadID"));
-									outCommand.put("ParentScopeID", parentScopeID);
-									outCommand.put("Data", new JSONObject());
-									outCommand.put("Command", "RespondCreateParentScope");
-								}
-
-							} catch (Exception e) {
-								StringBuilder toReturn = new StringBuilder();
-								toReturn.append(e.getMessage());
-								
-								for (StackTraceElement ste : e.getStackTrace())
-									toReturn.append("\n" + ste.toString());
-								
-								System.err.println(JSONObject.quote(toReturn.toString()));
-								
-								return;
-							}
-							
-							synchronized(parentScopes) {
-								if (null != parentScope) {
-									parentScopes.put(parentScopeID, parentScope);
-								} else {
-									parentScopes.remove(parentScopeID);
-								}
-							}
+					} catch (Exception e) {
+						StringBuilder toReturn = new StringBuilder();
+						toReturn.append(e.getMessage());
+						
+						for (StackTraceElement ste : e.getStackTrace())
+							toReturn.append("\n" + ste.toString());
+						
+						System.err.println(JSONObject.quote(toReturn.toString()));
+						
+						return;
+					}
+					
+					if (null != parentScope) {
+						parentScopes.put(parentScopeID, parentScope);
+					} else {
+						parentScopes.remove(parentScopeID);
+					}
 
-							if (null != outCommand)
-								synchronized (outputStreamWriter) {
-									try {
-										outputStreamWriter.write(outCommand.toString() + "\r\n");
-										outputStreamWriter.flush();
-									} catch (IOException e) {
-										e.printStackTrace();
-									}
-								}
+					if (null != outCommand)
+						try {
+							writeCommand(outCommand);
+						} catch (Exception e) {
+							e.printStackTrace();
 						}
-					};
 				}
+			});
+		}
+	}
+	
+	// Waits for the commands that are already queued to finish, and then stops the threads that run commands
+	public void close() throws InterruptedException {
+		
+		if (null != scopeEvictionService)
+			scopeEvictionService.shutdownNow();
+		
+		executorService.shutdown();
+		executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+	}
+	
+	// Returns the command's scope wrapper, reserved for the command, creating it if this is the first command for the scope
+	// When two commands for a new scope arrive at once, both might construct a wrapper, but only the one that's put in
+	// scopeWrappers is ever used; constructing a wrapper is cheap because the scope itself is created by CreateScope
+	ScopeWrapper getOrCreateScopeWrapper(JSONObject inCommand) throws Exception {
+		
+		Integer scopeID = inCommand.getInt("ScopeID");
+		
+		while (true) {
+			ScopeWrapper scopeWrapper = scopeWrappers.get(scopeID);
+			
+			if (null != scopeWrapper) {
+				if (scopeWrapper.reserve())
+					return scopeWrapper;
 				
-				executorService.execute(command);
+				// The scope is being evicted; it's looked up again once it's evicted, or once it turns out that it can't be
+				Thread.yield();
+				continue;
+			}
+			
+			// Only CreateScope can bring back an evicted scope; anything else was meant for the scope that's gone
+			if (evictedScopeIDs.containsKey(scopeID)) {
+				if (!createsScope(inCommand))
+					throw new ScopeEvictedException(scopeID, evictedScopeIDs.get(scopeID));
 				
-				// This is done last before the loop
-				inCommand = new JSONObject(tokener);
+				evictedScopeIDs.remove(scopeID);
 			}
+			
+			// Only CreateScope, or a Batch that starts with it, says which parent scope a new scope belongs to
+			if (!inCommand.has("ParentScopeID"))
+				throw new Exception("Scope " + scopeID + " does not exist");
+			
+			int parentScopeID = inCommand.getInt("ParentScopeID");
+			ParentScope parentScope = parentScopes.get(parentScopeID);
+			
+			if (null == parentScope)
+				throw new Exception("Parent scope " + parentScopeID + " does not exist");
+			
+			// The new wrapper is reserved before it's shared, so it can't be evicted to make room for itself
+			scopeWrapper = parentScope.createScopeWrapper(scopeID);
+			scopeWrapper.reserve();
+			
+			if (null != scopeWrappers.putIfAbsent(scopeID, scopeWrapper))
+				continue;
+			
+			if ((MAX_LIVE_SCOPES > 0) && (scopeWrappers.size() > MAX_LIVE_SCOPES))
+				queueCapacityEviction();
+			
+			return scopeWrapper;
 		}
-		finally {
-			executorService.shutdown();
-			executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+	}
+	
+	// True for CreateScope, and for a Batch whose first command is CreateScope
+	private static boolean createsScope(JSONObject inCommand) {
+		
+		String command = inCommand.optString("Command");
+		
+		if (command.equals("Batch")) {
+			JSONObject data = inCommand.optJSONObject("Data");
+			JSONArray commands = (null == data) ? null : data.optJSONArray("Commands");
+			JSONObject firstCommand = (null == commands) ? null : commands.optJSONObject(0);
+			
+			if (null != firstCommand)
+				command = firstCommand.optString("Command");
+		}
+		
+		return command.equals("CreateScope");
+	}
+	
+	// Tells the parent process that a command for a scope can't run, so that the thread that sent it doesn't wait forever
+	// Responses from the parent process and commands that it doesn't wait on are only logged
+	private void respondWithException(JSONObject inCommand, Exception e) {
+		
+		String command = inCommand.optString("Command");
+		
+		if (command.startsWith("Respond") || command.equals("DisposeScope") || command.equals("ReleaseCallback")) {
+			System.err.println(JSONObject.quote("Can not handle " + command + ": " + e.getMessage()));
+			return;
+		}
+		
+		try {
+			JSONObject data = new JSONObject();
+			data.put("Exception", e.getMessage());
+			
+			if (e instanceof ScopeEvictedException)
+				data.put("ScopeEvicted", ((ScopeEvictedException)e).reason);
+			
+			JSONObject inData = inCommand.optJSONObject("Data");
+			if ((null != inData) && inData.has("CallID"))
+				data.put("CallID", inData.get("CallID"));
+			
+			JSONObject outCommand = new JSONObject();
+			outCommand.put("ScopeID", inCommand.get("ScopeID"));
+			outCommand.put("ThreadID", inCommand.opt("ThreadID"));
+			outCommand.put("Command", "Respond" + command);
+			outCommand.put("Data", data);
+			
+			writeCommand(outCommand);
+		} catch (Exception we) {
+			StringBuilder toReturn = new StringBuilder();
+			toReturn.append(we.getMessage());
+			
+			for (StackTraceElement ste : we.getStackTrace())
+				toReturn.append("\n" + ste.toString());
+			
+			System.err.println(JSONObject.quote(toReturn.toString()));
 		}
 	}
 	
+	// Thrown when a command is for a scope that was evicted
+	static class ScopeEvictedException extends Exception {
+		
+		private static final long serialVersionUID = 1L;
+		
+		ScopeEvictedException(int scopeID, String reason) {
+			super("Scope " + scopeID + " was evicted (" + reason + ")");
+			this.reason = reason;
+		}
+		
+		final String reason;
+	}
+	
+	// Called when a command is queued; commands that go straight to a thread that's waiting on the parent process aren't counted,
+	// because they're part of a command that's already in flight
+	void commandStarted() {
+		
+		if (MAX_IN_FLIGHT <= 0)
+			return;
+		
+		if (inFlightCommands.incrementAndGet() >= MAX_IN_FLIGHT && !busy)
+			updateFlowControl();
+	}
+	
+	void commandFinished() {
+		
+		if (MAX_IN_FLIGHT <= 0)
+			return;
+		
+		if (inFlightCommands.decrementAndGet() <= RESUME_IN_FLIGHT && busy)
+			updateFlowControl();
+	}
+	
+	// The state is re-checked while locked so that Busy and Ready always alternate, even when commands start and finish on many threads
+	private void updateFlowControl() {
+		
+		synchronized (flowControlLock) {
+			int inFlight = inFlightCommands.get();
+			
+			if ((!busy) && (inFlight >= MAX_IN_FLIGHT)) {
+				busy = true;
+				sendFlowControl("Busy", inFlight);
+				
+			} else if (busy && (inFlight <= RESUME_IN_FLIGHT)) {
+				busy = false;
+				sendFlowControl("Ready", inFlight);
+			}
+		}
+	}
+	
+	// Reading commands never stops, because responses that threads are waiting for have to keep coming in; instead the parent
+	// process is expected to stop sending new commands, or send them to a different sub process, until it gets Ready
+	private void sendFlowControl(String command, int inFlight) {
+		
+		try {
+			JSONObject data = new JSONObject();
+			data.put("Credits", Math.max(0, MAX_IN_FLIGHT - inFlight));
+			data.put("InFlight", inFlight);
+			
+			JSONObject outCommand = new JSONObject();
+			outCommand.put("ThreadID", JSONObject.NULL);
+			outCommand.put("Command", command);
+			outCommand.put("Data", data);
+			
+			writeCommand(outCommand);
+		} catch (Exception e) {
+			StringBuilder toReturn = new StringBuilder();
+			toReturn.append(e.getMessage());
+			
+			for (StackTraceElement ste : e.getStackTrace())
+				toReturn.append("\n" + ste.toString());
+			
+			System.err.println(JSONObject.quote(toReturn.toString()));
+		}
+	}
+	
+	private void writeCommand(JSONObject outCommand) throws JSONException, IOException {
+		ResponseWriter.writeLine(outCommand, outputStreamWriter);
+	}
+	
 	public void DisposeScopeWrapper(int scopeID) {
-		synchronized(scopeWrappers) {
-			scopeWrappers.remove(scopeID);
+		scopeWrappers.remove(scopeID);
+	}
+	
+	// Disposes scopes that the parent process hasn't used for MAX_SCOPE_IDLE_MILLIS
+	void evictIdleScopes() {
+		
+		long now = System.currentTimeMillis();
+		Map<Integer, ScopeWrapper> toEvict = new HashMap<Integer, ScopeWrapper>();
+		
+		for (Map.Entry<Integer, ScopeWrapper> scopeWrapper : scopeWrappers.entrySet())
+			if ((!scopeWrapper.getValue().isActive()) && (now - scopeWrapper.getValue().getLastAccessed() > MAX_SCOPE_IDLE_MILLIS))
+				toEvict.put(scopeWrapper.getKey(), scopeWrapper.getValue());
+		
+		for (Map.Entry<Integer, ScopeWrapper> scopeWrapper : toEvict.entrySet())
+			evictScope(scopeWrapper.getKey(), scopeWrapper.getValue(), "Idle");
+	}
+	
+	// Evicts scopes on scopeEvictionService to get back under MAX_LIVE_SCOPES; while an eviction is queued, more aren't
+	private void queueCapacityEviction() {
+		
+		if (!capacityEvictionQueued.compareAndSet(false, true))
+			return;
+		
+		scopeEvictionService.execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				// Cleared first, so that scopes that are created while this runs queue another eviction
+				capacityEvictionQueued.set(false);
+				evictLeastRecentlyUsedScopes();
+			}
+		});
+	}
+	
+	// Disposes the least recently used idle scopes until there are no more than MAX_LIVE_SCOPES
+	void evictLeastRecentlyUsedScopes() {
+		
+		int toEvict = scopeWrappers.size() - MAX_LIVE_SCOPES;
+		
+		if (toEvict <= 0)
+			return;
+		
+		// When the scopes were last used is copied, so that it doesn't change while they're sorted
+		List<EvictionCandidate> candidates = new ArrayList<EvictionCandidate>();
+		
+		for (Map.Entry<Integer, ScopeWrapper> scopeWrapper : scopeWrappers.entrySet())
+			if (!scopeWrapper.getValue().isActive())
+				candidates.add(new EvictionCandidate(scopeWrapper.getKey(), scopeWrapper.getValue()));
+		
+		Collections.sort(candidates);
+		
+		// Scopes that are running can't be evicted, so the limit can be exceeded while they run
+		for (EvictionCandidate candidate : candidates) {
+			if (toEvict <= 0)
+				return;
+			
+			if (evictScope(candidate.scopeID, candidate.scopeWrapper, "Capacity"))
+				toEvict--;
+		}
+	}
+	
+	private static class EvictionCandidate implements Comparable<EvictionCandidate> {
+		
+		EvictionCandidate(int scopeID, ScopeWrapper scopeWrapper) {
+			this.scopeID = scopeID;
+			this.scopeWrapper = scopeWrapper;
+			this.lastAccessed = scopeWrapper.getLastAccessed();
 		}
+		
+		final int scopeID;
+		final ScopeWrapper scopeWrapper;
+		final long lastAccessed;
+		
+		@Override
+		public int compareTo(EvictionCandidate other) {
+			return (lastAccessed < other.lastAccessed) ? -1 : ((lastAccessed == other.lastAccessed) ? 0 : 1);
+		}
+	}
+	
+	// Disposes the scope and tells the parent process, so that it can recreate the scope if it's still needed
+	// Returns false if the scope is in use, or was disposed or replaced while deciding to evict it
+	private boolean evictScope(int scopeID, ScopeWrapper scopeWrapper, String reason) {
+		
+		// Once the scope is marked, commands that look it up wait until it's out of scopeWrappers
+		if (!scopeWrapper.markEvicted())
+			return false;
+		
+		if (scopeWrapper != scopeWrappers.get(scopeID))
+			return false;
+		
+		// The ID is remembered first, so that a command that looks up the scope once it's gone is told that it was evicted
+		evictedScopeIDs.put(scopeID, reason);
+		scopeWrappers.remove(scopeID, scopeWrapper);
+		
+		try {
+			JSONObject data = new JSONObject();
+			data.put("Reason", reason);
+			data.put("IdleMilliseconds", System.currentTimeMillis() - scopeWrapper.getLastAccessed());
+			data.put("EstimatedSize", scopeWrapper.estimateRetainedSize());
+			
+			JSONObject outCommand = new JSONObject();
+			outCommand.put("ScopeID", scopeID);
+			outCommand.put("ThreadID", JSONObject.NULL);
+			outCommand.put("Command", "ScopeEvicted");
+			outCommand.put("Data", data);
+			
+			writeCommand(outCommand);
+		} catch (Exception e) {
+			StringBuilder toReturn = new StringBuilder();
+			toReturn.append(e.getMessage());
+			
+			for (StackTraceElement ste : e.getStackTrace())
+				toReturn.append("\n" + ste.toString());
+			
+			System.err.println(JSONObject.quote(toReturn.toString()));
+		}
+		
+		return true;
 	}
-}
\ No newline at end of file
+}
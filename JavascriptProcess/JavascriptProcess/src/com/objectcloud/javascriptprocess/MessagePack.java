@@ -0,0 +1,549 @@
+package com.objectcloud.javascriptprocess;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONString;
+import org.json.JSONTokener;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+
+// Encodes and decodes command Data as MessagePack, so that numbers don't go through decimal text and strings aren't escaped
+// A command that has "DataFormat": "MessagePack" carries its Data as a Base64 string of MessagePack bytes; the responses to it,
+// and the parent function calls that it makes, are sent the same way
+// Values are bridged to and from both org.json and Rhino, so Javascript values never have to go through JSON text
+public class MessagePack {
+
+	public static final String DATA_FORMAT = "MessagePack";
+
+	// Replaces Data, if it's MessagePack, with the org.json values that it holds
+	public static void decodeData(JSONObject inCommand) throws JSONException {
+
+		if (DATA_FORMAT.equals(inCommand.optString("DataFormat", null)))
+			try {
+				inCommand.put("Data", decode(Base64.decode(inCommand.getString("Data"))));
+			} catch (IOException ioe) {
+				throw new JSONException(ioe);
+			}
+	}
+
+	// Holds a Javascript value in data that's sent to the parent process, so that it can be encoded directly from Rhino
+	public static class JavascriptValue implements JSONString {
+
+		public JavascriptValue(Object value) {
+			this.value = value;
+		}
+
+		final Object value;
+
+		// Only used if the data ends up being sent as JSON anyway
+		@Override
+		public String toJSONString() {
+			try {
+				// Wrapping the value in an array is the simplest way to get org.json to write any kind of value
+				String json = new JSONArray().put(decode(encode(value))).toString();
+				return json.substring(1, json.length() - 1);
+			} catch (JSONException je) {
+				throw new RuntimeException(je);
+			}
+		}
+	}
+
+	// Encodes an org.json value, a Javascript value, or a mix of both; Javascript values are encoded the same way as JSON.stringify
+	public static byte[] encode(Object value) throws JSONException {
+
+		Packer packer = new Packer();
+		packer.pack(value);
+
+		return packer.toByteArray();
+	}
+
+	// Decodes into org.json values
+	public static Object decode(byte[] bytes) throws JSONException {
+
+		Unpacker unpacker = new Unpacker(bytes);
+		Object value = unpacker.unpack();
+
+		if (unpacker.position != bytes.length)
+			throw new JSONException("Unexpected bytes after the MessagePack value");
+
+		return value;
+	}
+
+	// Converts an org.json value into the same Javascript value that JSON.parse would return for it
+	public static Object toJavascript(Context context, Scriptable scope, Object value) throws JSONException {
+
+		if (value instanceof JSONObject) {
+			JSONObject jsonObject = (JSONObject)value;
+			Scriptable toReturn = context.newObject(scope);
+
+			for (Iterator<?> keys = jsonObject.keys(); keys.hasNext();) {
+				String key = keys.next().toString();
+				toReturn.put(key, toReturn, toJavascript(context, scope, jsonObject.get(key)));
+			}
+
+			return toReturn;
+		}
+
+		if (value instanceof JSONArray) {
+			JSONArray jsonArray = (JSONArray)value;
+			Object[] elements = new Object[jsonArray.length()];
+
+			for (int index = 0; index < elements.length; index++)
+				elements[index] = toJavascript(context, scope, jsonArray.opt(index));
+
+			return context.newArray(scope, elements);
+		}
+
+		// Javascript only has doubles
+		if (value instanceof Number)
+			return ((Number)value).doubleValue();
+
+		if (JSONObject.NULL.equals(value))
+			return null;
+
+		return value;
+	}
+
+	private static class Packer {
+
+		private byte[] buffer = new byte[256];
+		private int position = 0;
+
+		// Javascript objects that are being encoded, to catch cycles the same way that JSON.stringify does
+		private final Map<Object, Object> encoding = new IdentityHashMap<Object, Object>();
+
+		byte[] toByteArray() {
+			byte[] toReturn = new byte[position];
+			System.arraycopy(buffer, 0, toReturn, 0, position);
+			return toReturn;
+		}
+
+		void pack(Object value) throws JSONException {
+
+			if ((null == value) || (value instanceof Undefined) || JSONObject.NULL.equals(value))
+				writeByte(0xc0);
+
+			else if (value instanceof Boolean)
+				writeByte(((Boolean)value).booleanValue() ? 0xc3 : 0xc2);
+
+			else if (value instanceof CharSequence)
+				packString(value.toString());
+
+			else if ((value instanceof Integer) || (value instanceof Long) || (value instanceof Short) || (value instanceof Byte))
+				packLong(((Number)value).longValue());
+
+			else if (value instanceof Number)
+				packDouble(((Number)value).doubleValue());
+
+			else if (value instanceof JSONObject)
+				packJSONObject((JSONObject)value);
+
+			else if (value instanceof JSONArray)
+				packJSONArray((JSONArray)value);
+
+			else if (value instanceof JavascriptValue)
+				pack(((JavascriptValue)value).value);
+
+			else if (value instanceof JSONString)
+				pack(new JSONTokener(((JSONString)value).toJSONString()).nextValue());
+
+			else if (value instanceof Function)
+				writeByte(0xc0);
+
+			else if (value instanceof Scriptable)
+				packScriptable((Scriptable)value);
+
+			else
+				packString(value.toString());
+		}
+
+		// Whole numbers are sent as integers, because that's how JSON.stringify writes them
+		void packDouble(double value) {
+
+			if ((value == Math.rint(value)) && (Math.abs(value) < 9007199254740992d))
+				packLong((long)value);
+
+			// JSON.stringify writes NaN and Infinity as null
+			else if (Double.isNaN(value) || Double.isInfinite(value))
+				writeByte(0xc0);
+
+			else {
+				writeByte(0xcb);
+				writeLong(Double.doubleToLongBits(value));
+			}
+		}
+
+		void packLong(long value) {
+
+			if ((value >= -32) && (value <= 127))
+				writeByte((int)value);
+
+			else if ((value >= Byte.MIN_VALUE) && (value <= Byte.MAX_VALUE)) {
+				writeByte(0xd0);
+				writeByte((int)value);
+
+			} else if ((value >= Short.MIN_VALUE) && (value <= Short.MAX_VALUE)) {
+				writeByte(0xd1);
+				writeShort((int)value);
+
+			} else if ((value >= Integer.MIN_VALUE) && (value <= Integer.MAX_VALUE)) {
+				writeByte(0xd2);
+				writeInt((int)value);
+
+			} else {
+				writeByte(0xd3);
+				writeLong(value);
+			}
+		}
+
+		void packString(String value) throws JSONException {
+
+			byte[] utf8;
+			try {
+				utf8 = value.getBytes("UTF-8");
+			} catch (UnsupportedEncodingException uee) {
+				throw new JSONException(uee);
+			}
+
+			if (utf8.length < 32)
+				writeByte(0xa0 | utf8.length);
+
+			else if (utf8.length <= 0xff) {
+				writeByte(0xd9);
+				writeByte(utf8.length);
+
+			} else if (utf8.length <= 0xffff) {
+				writeByte(0xda);
+				writeShort(utf8.length);
+
+			} else {
+				writeByte(0xdb);
+				writeInt(utf8.length);
+			}
+
+			writeBytes(utf8);
+		}
+
+		void packArrayHeader(int length) {
+
+			if (length < 16)
+				writeByte(0x90 | length);
+
+			else if (length <= 0xffff) {
+				writeByte(0xdc);
+				writeShort(length);
+
+			} else {
+				writeByte(0xdd);
+				writeInt(length);
+			}
+		}
+
+		void packMapHeader(int length) {
+
+			if (length < 16)
+				writeByte(0x80 | length);
+
+			else if (length <= 0xffff) {
+				writeByte(0xde);
+				writeShort(length);
+
+			} else {
+				writeByte(0xdf);
+				writeInt(length);
+			}
+		}
+
+		void packJSONObject(JSONObject jsonObject) throws JSONException {
+
+			packMapHeader(jsonObject.length());
+
+			for (Iterator<?> keys = jsonObject.keys(); keys.hasNext();) {
+				String key = keys.next().toString();
+
+				packString(key);
+				pack(jsonObject.opt(key));
+			}
+		}
+
+		void packJSONArray(JSONArray jsonArray) throws JSONException {
+
+			packArrayHeader(jsonArray.length());
+
+			for (int index = 0; index < jsonArray.length(); index++)
+				pack(jsonArray.opt(index));
+		}
+
+		void packScriptable(Scriptable scriptable) throws JSONException {
+
+			// Objects like Date convert themselves, as they do in JSON.stringify
+			Object toJSON = ScriptableObject.getProperty(scriptable, "toJSON");
+			Context context = Context.getCurrentContext();
+
+			if ((toJSON instanceof Function) && (null != context)) {
+				pack(((Function)toJSON).call(context, scriptable, scriptable, new Object[0]));
+				return;
+			}
+
+			if (null != encoding.put(scriptable, scriptable))
+				throw new JSONException("Cyclic values can not be sent to the parent process");
+
+			try {
+				if (scriptable instanceof NativeArray) {
+					long length = ((NativeArray)scriptable).getLength();
+
+					packArrayHeader((int)length);
+
+					// Functions, undefined and holes in arrays become null, as in JSON.stringify
+					for (int index = 0; index < length; index++) {
+						Object element = scriptable.get(index, scriptable);
+
+						if ((Scriptable.NOT_FOUND == element) || (element instanceof Undefined))
+							writeByte(0xc0);
+						else
+							pack(element);
+					}
+
+					return;
+				}
+
+				// Properties that are functions or undefined are left out, as in JSON.stringify
+				Object[] ids = scriptable.getIds();
+				Object[] values = new Object[ids.length];
+				int count = 0;
+
+				for (int index = 0; index < ids.length; index++) {
+					if (ids[index] instanceof Integer)
+						values[index] = scriptable.get((Integer)ids[index], scriptable);
+					else
+						values[index] = scriptable.get(ids[index].toString(), scriptable);
+
+					if (!((values[index] instanceof Function) || (values[index] instanceof Undefined) || (Scriptable.NOT_FOUND == values[index])))
+						count++;
+				}
+
+				packMapHeader(count);
+
+				for (int index = 0; index < ids.length; index++)
+					if (!((values[index] instanceof Function) || (values[index] instanceof Undefined) || (Scriptable.NOT_FOUND == values[index]))) {
+						packString(ids[index].toString());
+						pack(values[index]);
+					}
+
+			} finally {
+				encoding.remove(scriptable);
+			}
+		}
+
+		void ensureCapacity(int additional) {
+
+			if (position + additional > buffer.length) {
+				byte[] newBuffer = new byte[Math.max(buffer.length * 2, position + additional)];
+				System.arraycopy(buffer, 0, newBuffer, 0, position);
+				buffer = newBuffer;
+			}
+		}
+
+		void writeByte(int value) {
+			ensureCapacity(1);
+			buffer[position++] = (byte)value;
+		}
+
+		void writeShort(int value) {
+			ensureCapacity(2);
+			buffer[position++] = (byte)(value >>> 8);
+			buffer[position++] = (byte)value;
+		}
+
+		void writeInt(int value) {
+			ensureCapacity(4);
+			buffer[position++] = (byte)(value >>> 24);
+			buffer[position++] = (byte)(value >>> 16);
+			buffer[position++] = (byte)(value >>> 8);
+			buffer[position++] = (byte)value;
+		}
+
+		void writeLong(long value) {
+			writeInt((int)(value >>> 32));
+			writeInt((int)value);
+		}
+
+		void writeBytes(byte[] bytes) {
+			ensureCapacity(bytes.length);
+			System.arraycopy(bytes, 0, buffer, position, bytes.length);
+			position += bytes.length;
+		}
+	}
+
+	private static class Unpacker {
+
+		Unpacker(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		private final byte[] bytes;
+		int position = 0;
+
+		Object unpack() throws JSONException {
+
+			int type = readByte();
+
+			if (type <= 0x7f)
+				return type;
+
+			if (type >= 0xe0)
+				return (int)(byte)type;
+
+			if ((type & 0xe0) == 0xa0)
+				return readString(type & 0x1f);
+
+			if ((type & 0xf0) == 0x90)
+				return readArray(type & 0x0f);
+
+			if ((type & 0xf0) == 0x80)
+				return readMap(type & 0x0f);
+
+			switch (type) {
+			case 0xc0: return JSONObject.NULL;
+			case 0xc2: return Boolean.FALSE;
+			case 0xc3: return Boolean.TRUE;
+
+			// Binary has no JSON equivalent, so it's given to Javascript as Base64
+			case 0xc4: return Base64.encodeBytes(readBytes(readByte()));
+			case 0xc5: return Base64.encodeBytes(readBytes(readShort()));
+			case 0xc6: return Base64.encodeBytes(readBytes(readLength()));
+
+			case 0xca: return (double)Float.intBitsToFloat(readInt());
+			case 0xcb: return Double.longBitsToDouble(readLong());
+
+			case 0xcc: return readByte();
+			case 0xcd: return readShort();
+			case 0xce: return toNumber(readInt() & 0xffffffffL);
+			case 0xcf: {
+				long value = readLong();
+				return value >= 0 ? toNumber(value) : (Object)(value + 18446744073709551616d);
+			}
+
+			case 0xd0: return (int)(byte)readByte();
+			case 0xd1: return (int)(short)readShort();
+			case 0xd2: return readInt();
+			case 0xd3: return toNumber(readLong());
+
+			case 0xd9: return readString(readByte());
+			case 0xda: return readString(readShort());
+			case 0xdb: return readString(readLength());
+
+			case 0xdc: return readArray(readShort());
+			case 0xdd: return readArray(readLength());
+
+			case 0xde: return readMap(readShort());
+			case 0xdf: return readMap(readLength());
+			}
+
+			throw new JSONException("Unsupported MessagePack type 0x" + Integer.toHexString(type) + " at " + (position - 1));
+		}
+
+		private static Object toNumber(long value) {
+
+			if ((value >= Integer.MIN_VALUE) && (value <= Integer.MAX_VALUE))
+				return (int)value;
+
+			return value;
+		}
+
+		private JSONArray readArray(int length) throws JSONException {
+
+			JSONArray toReturn = new JSONArray();
+
+			for (int index = 0; index < length; index++)
+				toReturn.put(unpack());
+
+			return toReturn;
+		}
+
+		private JSONObject readMap(int length) throws JSONException {
+
+			JSONObject toReturn = new JSONObject();
+
+			for (int index = 0; index < length; index++) {
+				String key = unpack().toString();
+				toReturn.put(key, unpack());
+			}
+
+			return toReturn;
+		}
+
+		private String readString(int length) throws JSONException {
+
+			checkAvailable(length);
+
+			try {
+				String toReturn = new String(bytes, position, length, "UTF-8");
+				position += length;
+
+				return toReturn;
+			} catch (UnsupportedEncodingException uee) {
+				throw new JSONException(uee);
+			}
+		}
+
+		private byte[] readBytes(int length) throws JSONException {
+
+			checkAvailable(length);
+
+			byte[] toReturn = new byte[length];
+			System.arraycopy(bytes, position, toReturn, 0, length);
+			position += length;
+
+			return toReturn;
+		}
+
+		// Lengths over 2GB can't be held in a Java array anyway
+		private int readLength() throws JSONException {
+
+			int length = readInt();
+
+			if (length < 0)
+				throw new JSONException("MessagePack length is too long at " + (position - 4));
+
+			return length;
+		}
+
+		private void checkAvailable(int length) throws JSONException {
+			if (position + length > bytes.length)
+				throw new JSONException("MessagePack data ends too soon");
+		}
+
+		private int readByte() throws JSONException {
+			checkAvailable(1);
+			return bytes[position++] & 0xff;
+		}
+
+		private int readShort() throws JSONException {
+			checkAvailable(2);
+			return ((bytes[position++] & 0xff) << 8) | (bytes[position++] & 0xff);
+		}
+
+		private int readInt() throws JSONException {
+			checkAvailable(4);
+			return ((bytes[position++] & 0xff) << 24) | ((bytes[position++] & 0xff) << 16) | ((bytes[position++] & 0xff) << 8) | (bytes[position++] & 0xff);
+		}
+
+		private long readLong() throws JSONException {
+			long high = readInt() & 0xffffffffL;
+			long low = readInt() & 0xffffffffL;
+			return (high << 32) | low;
+		}
+	}
+}
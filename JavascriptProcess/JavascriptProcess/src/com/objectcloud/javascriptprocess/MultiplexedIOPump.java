@@ -0,0 +1,169 @@
+package com.objectcloud.javascriptprocess;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+// Hosts an IOPump for each channel on one pair of streams, so that several logical sub processes share one JVM, and with it
+// RootScope, the compiled Javascript and the JIT-compiled code; each channel still has its own parent scopes and scopes
+// Every command carries a ChannelID, which is removed before the command goes to the channel's IOPump and is added to everything
+// that the channel sends back.  A channel starts with its first command; {"ChannelID": n} ends channel n and {} ends all of them
+public class MultiplexedIOPump {
+
+	// Set with -Dobjectcloud.pump.multiplex=true
+	public static final boolean ENABLED = Boolean.getBoolean("objectcloud.pump.multiplex");
+
+	public MultiplexedIOPump(InputStream inStream, OutputStream outStream) {
+		this.inStream = inStream;
+		this.outStream = outStream;
+	}
+
+	private final InputStream inStream;
+	private final OutputStream outStream;
+
+	// Only the thread that reads commands uses this, so it isn't synchronized
+	private final Map<Object, IOPump> ioPumpsByChannelID = new HashMap<Object, IOPump>();
+
+	public void start() throws Exception {
+
+		Writer outputStreamWriter = new Utf8Writer(outStream);
+		List<Thread> closingThreads = new ArrayList<Thread>();
+
+		try {
+			JSONTokener tokener = new JSONTokener(new Utf8Reader(inStream));
+			JSONObject inCommand = new JSONObject(tokener);
+
+			while (inCommand.length() > 0) {
+
+				Object channelID = inCommand.remove("ChannelID");
+
+				if (null == channelID)
+					System.err.println(JSONObject.quote("Commands must have a ChannelID: " + inCommand.toString()));
+
+				else if (inCommand.length() == 0) {
+					IOPump ioPump = ioPumpsByChannelID.remove(channelID);
+
+					// Closing waits for the channel's commands, which might be waiting for responses that this thread has to read
+					if (null != ioPump)
+						closingThreads.add(close(ioPump));
+
+				} else {
+					IOPump ioPump = ioPumpsByChannelID.get(channelID);
+
+					if (null == ioPump) {
+						ioPump = new IOPump(new ChannelWriter(channelID, outputStreamWriter));
+						ioPump.open();
+
+						ioPumpsByChannelID.put(channelID, ioPump);
+					}
+
+					ioPump.handleInCommand(inCommand);
+				}
+
+				// This is done last before the loop
+				inCommand = new JSONObject(tokener);
+			}
+		}
+		finally {
+			for (IOPump ioPump : ioPumpsByChannelID.values())
+				closingThreads.add(close(ioPump));
+
+			for (Thread closingThread : closingThreads)
+				closingThread.join();
+		}
+	}
+
+	private static Thread close(final IOPump ioPump) {
+
+		Thread closingThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					ioPump.close();
+				} catch (InterruptedException ie) { }
+			}
+		});
+
+		closingThread.start();
+		return closingThread;
+	}
+
+	// Adds the ChannelID to each line that a channel writes, and then writes the line to the shared stream
+	// The IOPump, and the scopes in it, lock on their ChannelWriter while they write a command, so only the shared stream is locked here
+	private static class ChannelWriter extends Writer {
+
+		ChannelWriter(Object channelID, Writer sharedWriter) throws JSONException {
+
+			String channelIDObject = new JSONObject().put("ChannelID", channelID).toString();
+
+			this.channelIDProperty = channelIDObject.substring(1, channelIDObject.length() - 1);
+			this.sharedWriter = sharedWriter;
+		}
+
+		private final String channelIDProperty;
+		private final Writer sharedWriter;
+		private final StringBuilder buffer = new StringBuilder();
+
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+			buffer.append(cbuf, off, len);
+		}
+
+		@Override
+		public void write(String str) {
+			buffer.append(str);
+		}
+
+		@Override
+		public void flush() throws IOException {
+
+			int lineEnd = buffer.lastIndexOf("\n");
+			if (lineEnd < 0)
+				return;
+
+			String lines = buffer.substring(0, lineEnd + 1);
+			buffer.delete(0, lineEnd + 1);
+
+			StringBuilder toWrite = new StringBuilder(lines.length() + channelIDProperty.length() + 2);
+			int lineStart = 0;
+
+			while (lineStart < lines.length()) {
+				int nextLineStart = lines.indexOf('\n', lineStart) + 1;
+
+				// Each line is one JSON object, so the ChannelID goes right after its opening brace
+				if (lines.charAt(lineStart) == '{') {
+					toWrite.append('{');
+					toWrite.append(channelIDProperty);
+
+					if (lines.charAt(lineStart + 1) != '}')
+						toWrite.append(',');
+
+					toWrite.append(lines, lineStart + 1, nextLineStart);
+				} else
+					toWrite.append(lines, lineStart, nextLineStart);
+
+				lineStart = nextLineStart;
+			}
+
+			synchronized (sharedWriter) {
+				sharedWriter.write(toWrite.toString());
+				sharedWriter.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package com.objectcloud.javascriptprocess;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+// Holds objects that the parent process returned with a CacheID, so that later calls only need to send the CacheID
+// The cache is bounded by the number of objects and by how long they've gone unused; when the parent process refers to
+// an object that was evicted, the call is re-sent with CacheMiss so that the parent process sends the object again
+public class ParentObjectCache {
+
+	// Defaults can be overridden with -Dobjectcloud.objectcache.maxentries and -Dobjectcloud.objectcache.maxidleseconds
+	public static final int DEFAULT_MAX_ENTRIES = Integer.getInteger("objectcloud.objectcache.maxentries", 512);
+	public static final long DEFAULT_MAX_IDLE_MILLIS = Long.getLong("objectcloud.objectcache.maxidleseconds", 600) * 1000;
+
+	public ParentObjectCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_IDLE_MILLIS);
+	}
+
+	public ParentObjectCache(int maxEntries, long maxIdleMillis) {
+		this.maxEntries = maxEntries;
+		this.maxIdleMillis = maxIdleMillis;
+	}
+
+	private final int maxEntries;
+	private final long maxIdleMillis;
+	private final ConcurrentMap<Object, Entry> entries = new ConcurrentHashMap<Object, Entry>();
+
+	private static class Entry {
+
+		Entry(Object value) {
+			this.value = value;
+			lastAccessed = System.currentTimeMillis();
+		}
+
+		final Object value;
+		volatile long lastAccessed;
+	}
+
+	// Wraps what's in the cache so that a cached null can be told apart from a miss
+	public static class Hit {
+
+		Hit(Object value) {
+			this.value = value;
+		}
+
+		public final Object value;
+	}
+
+	// Returns null if the object isn't in the cache or has gone unused for too long
+	public Hit get(Object cacheID) {
+
+		Entry entry = entries.get(cacheID);
+
+		if (null == entry)
+			return null;
+
+		long now = System.currentTimeMillis();
+
+		if (now - entry.lastAccessed > maxIdleMillis) {
+			entries.remove(cacheID, entry);
+			return null;
+		}
+
+		entry.lastAccessed = now;
+		return new Hit(entry.value);
+	}
+
+	public void put(Object cacheID, Object value) {
+
+		entries.put(cacheID, new Entry(value));
+
+		if (entries.size() > maxEntries)
+			evict();
+	}
+
+	// Seals the object, and everything it refers to, before caching it so that scopes sharing the cache can't change it
+	public void putSealed(Object cacheID, Object value) {
+
+		seal(value);
+		put(cacheID, value);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	// Drops expired objects, then the least recently used objects until the cache is an eighth under its limit
+	// Evicting in bulk keeps this from running on every put once the cache is full
+	private synchronized void evict() {
+
+		if (entries.size() <= maxEntries)
+			return;
+
+		long now = System.currentTimeMillis();
+		List<Map.Entry<Object, Entry>> liveEntries = new ArrayList<Map.Entry<Object, Entry>>(entries.size());
+
+		for (Map.Entry<Object, Entry> entry : entries.entrySet())
+			if (now - entry.getValue().lastAccessed > maxIdleMillis)
+				entries.remove(entry.getKey(), entry.getValue());
+			else
+				liveEntries.add(entry);
+
+		int toRemove = entries.size() - (maxEntries - (maxEntries / 8));
+
+		if (toRemove <= 0)
+			return;
+
+		Collections.sort(liveEntries, new Comparator<Map.Entry<Object, Entry>>() {
+
+			@Override
+			public int compare(Map.Entry<Object, Entry> a, Map.Entry<Object, Entry> b) {
+				long aLastAccessed = a.getValue().lastAccessed;
+				long bLastAccessed = b.getValue().lastAccessed;
+
+				return aLastAccessed < bLastAccessed ? -1 : (aLastAccessed == bLastAccessed ? 0 : 1);
+			}
+		});
+
+		for (int entryCtr = 0; (entryCtr < liveEntries.size()) && (toRemove > 0); entryCtr++)
+			if (entries.remove(liveEntries.get(entryCtr).getKey(), liveEntries.get(entryCtr).getValue()))
+				toRemove--;
+	}
+
+	private static void seal(Object value) {
+
+		if (!(value instanceof ScriptableObject))
+			return;
+
+		ScriptableObject scriptableObject = (ScriptableObject)value;
+
+		// Objects are sealed before their properties are walked, so cycles end here
+		if (scriptableObject.isSealed())
+			return;
+
+		scriptableObject.sealObject();
+
+		for (Object id : scriptableObject.getIds()) {
+			Object property;
+
+			if (id instanceof Integer)
+				property = scriptableObject.get((Integer)id, scriptableObject);
+			else
+				property = scriptableObject.get(id.toString(), scriptableObject);
+
+			if (property != Scriptable.NOT_FOUND)
+				seal(property);
+		}
+	}
+}
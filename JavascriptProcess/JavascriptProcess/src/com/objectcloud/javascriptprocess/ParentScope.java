@@ -1,7 +1,7 @@
 package com.objectcloud.javascriptprocess;
 
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 
 import org.json.JSONArray;
@@ -26,9 +26,11 @@ public class ParentScope {
 	private final NativeFunction getJsonParseFunction = new Json2parse();
 	private final Function jsonStringifyFunction;
 	private final ArrayList<String> functions = new ArrayList<String>();
-	private final OutputStreamWriter outputStreamWriter;
+	private final Writer outputStreamWriter;
+	private FunctionsMetadata functionsTemplate = null;
+	private final ParentObjectCache sharedCachedObjects = new ParentObjectCache();
 
-	public ParentScope(IOPump ioPump, JSONObject data, OutputStreamWriter outputStreamWriter) throws Exception {
+	public ParentScope(IOPump ioPump, JSONObject data, Writer outputStreamWriter) throws Exception {
 		
 		this.ioPump = ioPump;
 		this.outputStreamWriter = outputStreamWriter;
@@ -122,9 +124,7 @@ public class ParentScope {
 				});		
 			}
 		
-		outputStreamWriter.write(outData.toString());
-		outputStreamWriter.write("\r\n");
-		outputStreamWriter.flush();
+		ResponseWriter.writeLine(outData, outputStreamWriter);
 	}
 	
 	public ScopeWrapper createScopeWrapper(int scopeID) {
@@ -151,6 +151,20 @@ public class ParentScope {
 		return toReturn;
 	}
 
+	// The functions of the first scope created from this parent scope; later scopes only need to send what differs from it
+	public synchronized FunctionsMetadata getOrSetFunctionsTemplate(FunctionsMetadata functionsMetadata) {
+		
+		if (null == functionsTemplate)
+			functionsTemplate = functionsMetadata;
+		
+		return functionsTemplate;
+	}
+
+	// Sealed objects that all scopes created from this parent scope can use
+	public ParentObjectCache getSharedCachedObjects() {
+		return sharedCachedObjects;
+	}
+
 	public ArrayList<NativeFunction> getCompiledScripts() {
 		return compiledScripts;
 	}
@@ -0,0 +1,119 @@
+package com.objectcloud.javascriptprocess;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Writes a command to the parent process as one line of JSON, without building a JSONObject for the envelope or a String for the line
+// Each thread has its own ResponseWriter, whose buffer is reused for every command that the thread sends; the finished line is
+// written to the parent process in one call, so the lock on the output is only held while the line is copied
+final class ResponseWriter {
+
+	// A thread that once sent a very large command doesn't keep a buffer that large forever
+	private static final int MAX_RETAINED_CHARS = 64 * 1024;
+
+	private static final ThreadLocal<ResponseWriter> responseWriter = new ThreadLocal<ResponseWriter>() {
+
+		@Override
+		protected ResponseWriter initialValue() {
+			return new ResponseWriter();
+		}
+	};
+
+	// Returns this thread's ResponseWriter, ready for a new command
+	static ResponseWriter begin() {
+		ResponseWriter toReturn = responseWriter.get();
+		toReturn.buffer.reset();
+		toReturn.buffer.write('{');
+		toReturn.needsComma = false;
+		return toReturn;
+	}
+
+	// Writes a whole command to the parent process, using this thread's buffer
+	static void writeLine(JSONObject outCommand, Writer outputStreamWriter) throws JSONException, IOException {
+		ResponseWriter toWrite = responseWriter.get();
+		toWrite.buffer.reset();
+		outCommand.write(toWrite.buffer);
+		toWrite.writeLine(outputStreamWriter);
+	}
+
+	private CharArrayWriter buffer = new CharArrayWriter(1024);
+	private boolean needsComma;
+	private final char[] digits = new char[20];
+	private char[] base64 = new char[256];
+
+	ResponseWriter key(String key) throws IOException {
+		if (needsComma)
+			buffer.write(',');
+
+		JSONObject.quote(key, buffer);
+		buffer.write(':');
+		needsComma = true;
+		return this;
+	}
+
+	ResponseWriter value(Object value) throws JSONException {
+		JSONObject.writeValue(value, buffer);
+		return this;
+	}
+
+	// Writes the digits straight to the buffer, so that IDs aren't boxed or turned into Strings
+	ResponseWriter value(int value) {
+
+		long remaining = value;
+		if (remaining < 0) {
+			buffer.write('-');
+			remaining = -remaining;
+		}
+
+		int start = digits.length;
+		do {
+			digits[--start] = (char)('0' + (remaining % 10));
+			remaining /= 10;
+		} while (remaining > 0);
+
+		buffer.write(digits, start, digits.length - start);
+		return this;
+	}
+
+	// Writes bytes as a Base64 string, encoded straight into the buffer instead of into a String first
+	// Base64 characters never need escaping in JSON
+	ResponseWriter valueBase64(byte[] value) {
+
+		int length = Base64.encodedLength(value.length, Base64.NO_OPTIONS);
+		if (base64.length < length)
+			base64 = new char[length];
+
+		Base64.encode(value, 0, value.length, base64, 0, Base64.NO_OPTIONS);
+
+		buffer.write('"');
+		buffer.write(base64, 0, length);
+		buffer.write('"');
+		return this;
+	}
+
+	// Ends the command and writes it to the parent process
+	void end(Writer outputStreamWriter) throws IOException {
+		buffer.write('}');
+		writeLine(outputStreamWriter);
+	}
+
+	private void writeLine(Writer outputStreamWriter) throws IOException {
+		buffer.write('\r');
+		buffer.write('\n');
+
+		synchronized (outputStreamWriter) {
+			buffer.writeTo(outputStreamWriter);
+			outputStreamWriter.flush();
+		}
+
+		if (buffer.size() > MAX_RETAINED_CHARS)
+			buffer = new CharArrayWriter(1024);
+
+		if (base64.length > MAX_RETAINED_CHARS)
+			base64 = new char[256];
+	}
+}
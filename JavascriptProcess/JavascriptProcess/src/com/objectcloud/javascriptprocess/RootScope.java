@@ -1,11 +1,16 @@
 package com.objectcloud.javascriptprocess;
 
+import java.io.IOException;
+
+import org.mozilla.javascript.BaseFunction;
 import org.mozilla.javascript.Callable;
 import org.mozilla.javascript.ClassShutter;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.NativeFunction;
+import org.mozilla.javascript.ScriptRuntime;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
 
 public class RootScope {
 	private static final ScriptableObject scope;
@@ -34,6 +39,12 @@ public class RootScope {
             // Load JSON methods
             Json2 json2 = new Json2();
             json2.call(context, getScope(), getScope(), null);
+
+            // Base64 is done in Java, because it's very slow in Javascript under Rhino
+            putSealedFunction(new Base64Function("btoa", true, Base64.NO_OPTIONS));
+            putSealedFunction(new Base64Function("atob", false, Base64.NO_OPTIONS));
+            putSealedFunction(new Base64Function("btoaUrlSafe", true, Base64.URL_SAFE));
+            putSealedFunction(new Base64Function("atobUrlSafe", false, Base64.URL_SAFE));
 			
 			// This makes the parent scope sealed and immutable
 			getScope().sealObject();
@@ -71,6 +82,105 @@ public class RootScope {
 		
 	}
 
+	private static void putSealedFunction(BaseFunction function) {
+		ScriptRuntime.setFunctionProtoAndParent(function, getScope());
+		function.sealObject();
+		getScope().put(function.getFunctionName(), getScope(), function);
+	}
+
+	// btoa and atob, and their URL-safe versions, backed by Base64
+	private static class Base64Function extends BaseFunction {
+
+		private static final long serialVersionUID = 1L;
+
+		Base64Function(String name, boolean encode, int options) {
+			this.name = name;
+			this.encode = encode;
+			this.options = options;
+		}
+
+		private final String name;
+		private final boolean encode;
+		private final int options;
+
+		@Override
+		public String getFunctionName() {
+			return name;
+		}
+
+		@Override
+		public int getArity() {
+			return 1;
+		}
+
+		@Override
+		public int getLength() {
+			return 1;
+		}
+
+		@Override
+		public Object call(Context context, Scriptable scope, Scriptable thisObj, Object[] args) {
+
+			String argument = Context.toString(args.length > 0 ? args[0] : Undefined.instance);
+			return encode ? encode(argument) : decode(argument);
+		}
+
+		// Like in browsers, these work on binary strings, where each char is one byte
+		private String encode(String binary) {
+
+			byte[] bytes = new byte[binary.length()];
+
+			for (int ctr = 0; ctr < bytes.length; ctr++) {
+				char c = binary.charAt(ctr);
+
+				if (c > 0xff)
+					throw Context.reportRuntimeError("The string to be encoded contains characters outside of the Latin1 range");
+
+				bytes[ctr] = (byte)c;
+			}
+
+			try {
+				return new String(Base64.encodeBytesToBytes(bytes, 0, bytes.length, options), "US-ASCII");
+			} catch (IOException ioe) {
+				throw Context.reportRuntimeError(ioe.getMessage());
+			}
+		}
+
+		private String decode(String encoded) {
+
+			byte[] bytes = new byte[encoded.length() + 2];
+			int length = 0;
+			int significant = 0;
+
+			// Anything that isn't ASCII is an invalid character, which Base64 rejects
+			for (int ctr = 0; ctr < encoded.length(); ctr++) {
+				char c = encoded.charAt(ctr);
+				bytes[length++] = c < 0x80 ? (byte)c : (byte)0x80;
+
+				if ((c != ' ') && (c != '\t') && (c != '\n') && (c != '\f') && (c != '\r'))
+					significant++;
+			}
+
+			// Like in browsers, the padding is optional
+			if (significant % 4 == 1)
+				throw Context.reportRuntimeError("The string to be decoded is not correctly encoded");
+
+			while (significant % 4 != 0) {
+				bytes[length++] = '=';
+				significant++;
+			}
+
+			try {
+				// Unlike Base64.decode(String), this never tries to gunzip the result
+				return new String(Base64.decode(bytes, 0, length, options), "ISO-8859-1");
+			} catch (IOException ioe) {
+				throw Context.reportRuntimeError("The string to be decoded is not correctly encoded: " + ioe.getMessage());
+			} catch (IllegalArgumentException iae) {
+				throw Context.reportRuntimeError("The string to be decoded is not correctly encoded: " + iae.getMessage());
+			}
+		}
+	}
+
 	public static ScriptableObject getScope() {
 		return scope;
 	}
@@ -0,0 +1,90 @@
+package com.objectcloud.javascriptprocess;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Stack;
+
+import org.mozilla.javascript.Callable;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+// Estimates how much memory a scope holds by walking the objects reachable through its own properties
+// Prototypes and parent scopes aren't followed because they're shared with the parent scope
+// No Javascript runs while measuring, but Javascript mustn't run in the scope at the same time, so this is called on the scope's
+// lane or after the scope is evicted
+public class ScopeSizeEstimator {
+
+	// Rough sizes, in bytes, of what Rhino allocates on a 64-bit JVM
+	private static final long OBJECT_SIZE = 64;
+	private static final long PROPERTY_SIZE = 48;
+	private static final long FUNCTION_SIZE = 256;
+	private static final long STRING_SIZE = 40;
+	private static final long BOXED_SIZE = 16;
+
+	// Keeps a pathological scope from taking too long to measure
+	private static final int MAX_OBJECTS = 1000000;
+
+	public static long estimate(Scriptable root) {
+
+		Map<Object, Object> visited = new IdentityHashMap<Object, Object>();
+		Stack<Scriptable> toVisit = new Stack<Scriptable>();
+		long size = 0;
+
+		visited.put(root, root);
+		toVisit.push(root);
+
+		while (!toVisit.isEmpty() && visited.size() < MAX_OBJECTS) {
+
+			Scriptable scriptable = toVisit.pop();
+			size += scriptable instanceof Function ? FUNCTION_SIZE : OBJECT_SIZE;
+
+			// Arrays only list their dense elements in getIds; other objects list hidden properties in getAllIds
+			Object[] ids = (scriptable instanceof ScriptableObject) && !(scriptable instanceof NativeArray) ?
+				((ScriptableObject)scriptable).getAllIds() : scriptable.getIds();
+
+			for (Object id : ids) {
+
+				size += PROPERTY_SIZE;
+
+				String name = (id instanceof Integer) ? null : id.toString();
+				int index = (id instanceof Integer) ? (Integer)id : 0;
+
+				// Properties with a getter or setter aren't read, because that would run Javascript; the getter and setter
+				// functions are measured instead
+				if (scriptable instanceof ScriptableObject) {
+					Object getter = ((ScriptableObject)scriptable).getGetterOrSetter(name, index, false);
+					Object setter = ((ScriptableObject)scriptable).getGetterOrSetter(name, index, true);
+
+					if ((getter instanceof Callable) || (setter instanceof Callable)) {
+						visit(getter, visited, toVisit);
+						visit(setter, visited, toVisit);
+						continue;
+					}
+				}
+
+				Object property = (null == name) ? scriptable.get(index, scriptable) : scriptable.get(name, scriptable);
+
+				if (property instanceof CharSequence)
+					size += STRING_SIZE + (((CharSequence)property).length() * 2);
+
+				else if ((property instanceof Number) || (property instanceof Boolean))
+					size += BOXED_SIZE;
+
+				else
+					visit(property, visited, toVisit);
+			}
+		}
+
+		return size;
+	}
+
+	private static void visit(Object property, Map<Object, Object> visited, Stack<Scriptable> toVisit) {
+
+		if ((property instanceof Scriptable) && !visited.containsKey(property)) {
+			visited.put(property, property);
+			toVisit.push((Scriptable)property);
+		}
+	}
+}
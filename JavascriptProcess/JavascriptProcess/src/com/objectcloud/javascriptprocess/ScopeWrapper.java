@@ -1,12 +1,18 @@
 package com.objectcloud.javascriptprocess;
 
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.SortedMap;
 import java.util.Stack;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -24,30 +30,39 @@ import org.mozilla.javascript.Undefined;
 
 public class ScopeWrapper {
 	
-	public ScopeWrapper(IOPump ioPump, OutputStreamWriter outputStreamWriter, int scopeID, ParentScope parentScope) {
+	public ScopeWrapper(IOPump ioPump, Writer outputStreamWriter, int scopeID, ParentScope parentScope) {
 	
 		this.ioPump = ioPump;
 		this.outputStreamWriter = outputStreamWriter;
 		this.scopeID = new Integer(scopeID);
 		this.parentScope = parentScope;
+		this.lane = new SerialExecutor(ioPump.getCommandExecutor());
 	}
 
 	private final IOPump ioPump;
-	private final OutputStreamWriter outputStreamWriter;
+	private final Writer outputStreamWriter;
 	Scriptable scope;
 	private final Integer scopeID;
 	Function jsonStringifyFunction;
 	Function jsonParseFunction;
-	private final Map<Object, Object> monitorObjectsByThreadID = new HashMap<Object, Object>();
-	private final Map<Object, JSONObject> inCommandByThreadID = new HashMap<Object, JSONObject>();
-	private final Map<Object, Function> callbacks = new HashMap<Object, Function>();
-	private final Map<Object, Object> cachedObjects = new HashMap<Object, Object>();
+	private final Map<Object, BlockingQueue<JSONObject>> waitingInCommandsByThreadID = new HashMap<Object, BlockingQueue<JSONObject>>();
+	private final Map<Object, PendingParentFunctionCall> pendingParentFunctionCalls = new HashMap<Object, PendingParentFunctionCall>();
+	private final AtomicInteger nextCallID = new AtomicInteger();
+	private volatile long lastAccessed = System.currentTimeMillis();
+	private final AtomicInteger activeCommands = new AtomicInteger();
+	
+	// How many commands were looked up for this scope and aren't on its lane yet, or EVICTED once the scope is evicted
+	private final AtomicInteger reservations = new AtomicInteger();
+	private static final int EVICTED = -1;
+	private final CallbackRegistry callbacks = new CallbackRegistry();
+	private final ParentObjectCache cachedObjects = new ParentObjectCache();
 	private final ParentScope parentScope;
+	
+	// Commands for this scope run here, one at a time, because Rhino scopes aren't thread-safe
+	private final SerialExecutor lane;
 	private static final CompiledJavascriptTracker compiledJavascriptTracker = CompiledJavascriptTracker.getInstance();
 	private static final ThrowFunction throwFunction = new ThrowFunction();
 	
-	static Random random = new Random();
-	
 	// All the current scope and thread ID mapped by their context
 	static final ThreadLocal<Stack<Object>> threadIDStack = new ThreadLocal<Stack<Object>>() {
 		@Override
@@ -56,33 +71,85 @@ public class ScopeWrapper {
 		}
 	};
 	
+	// The DataFormat of the command that's running on the current thread, or null for JSON
+	static final ThreadLocal<Stack<String>> dataFormatStack = new ThreadLocal<Stack<String>>() {
+		@Override
+		protected Stack<String> initialValue() {
+			return new Stack<String>();
+		}
+	};
+	
+	// Callbacks that were passed to then() on an asynchronous call by the command that's running on the current thread
+	// They run after the command's Javascript returns, before its response is sent
+	static final ThreadLocal<Stack<List<Runnable>>> thenCallbacksStack = new ThreadLocal<Stack<List<Runnable>>>() {
+		@Override
+		protected Stack<List<Runnable>> initialValue() {
+			return new Stack<List<Runnable>>();
+		}
+	};
+	
+	// Responses to the commands in the batch that's running on the current thread, or null when responses are sent immediately
+	static final ThreadLocal<Stack<JSONArray>> batchedResponsesStack = new ThreadLocal<Stack<JSONArray>>() {
+		@Override
+		protected Stack<JSONArray> initialValue() {
+			return new Stack<JSONArray>();
+		}
+	};
+	
 	public void handle(JSONObject inCommand) {
+		handle(inCommand, true);
+	}
+	
+	// Runs the command on this scope's lane, after the commands that came before it
+	// A command for a thread that's running in this scope goes straight to that thread instead, because the thread holds the
+	// lane until its command is done; it handles the command the next time it waits on the parent process
+	public void execute(final JSONObject inCommand) throws Exception {
+		
+		if (routeToWaitingThread(inCommand))
+			return;
+		
+		ioPump.commandStarted();
+		lane.execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				Object threadID = inCommand.opt("ThreadID");
+				boolean registered = startThread(threadID);
+				
+				try {
+					handle(inCommand, false);
+				} finally {
+					if (registered)
+						finishThread(threadID);
+					
+					ioPump.commandFinished();
+				}
+			}
+		});
+	}
+	
+	// routeToWaitingThread is false when the thread that's waiting on the ThreadID is the one handling the command
+	private void handle(JSONObject inCommand, boolean routeToWaitingThread) {
+		
+		lastAccessed = System.currentTimeMillis();
+		activeCommands.incrementAndGet();
+		
+		try {
+			handleCommand(inCommand, routeToWaitingThread);
+		} finally {
+			activeCommands.decrementAndGet();
+			lastAccessed = System.currentTimeMillis();
+		}
+	}
+	
+	private void handleCommand(JSONObject inCommand, boolean routeToWaitingThread) {
 		
 		try {
 			
 			Object threadID = inCommand.get("ThreadID");
 			
-			// If there's a thread waiting on the ThreadID, stuff the inCommand into a map, unblock the other thread, and return
-			// The blocked thread will take over handling the command
-			
-			Object monitorObject = null;
-			synchronized (monitorObjectsByThreadID) {
-				if (monitorObjectsByThreadID.containsKey(threadID))
-					monitorObject = monitorObjectsByThreadID.get(threadID);
-			}
-				
-			if (null != monitorObject) {
-				
-				synchronized (inCommandByThreadID) {
-					inCommandByThreadID.put(threadID, inCommand);
-				}
-				
-				synchronized (monitorObject) {
-					monitorObject.notifyAll();
-				}
-				
+			if (routeToWaitingThread && routeToWaitingThread(inCommand))
 				return;
-			}
 			
 			String command = inCommand.getString("Command");
 			JSONObject data = inCommand.getJSONObject("Data");
@@ -104,18 +171,12 @@ public class ScopeWrapper {
 		        } catch (SecurityException se) {}
 				
 				threadIDStack.get().push(threadID);
+				dataFormatStack.get().push(inCommand.optString("DataFormat", null));
+				batchedResponsesStack.get().push(null);
+				thenCallbacksStack.get().push(new ArrayList<Runnable>());
 
-				if (command.equals("CallFunctionInScope"))
-					callFunctionInScope(context, threadID, data);
-				
-				else if (command.equals("CallCallback"))
-					callCallback(context, threadID, data);
-				
-				else if (command.equals("CreateScope"))
-					callCreateScope(context, threadID, data);
-				
-				else if (command.equals("DisposeScope"))
-					ioPump.DisposeScopeWrapper(scopeID);
+				if (command.equals("Batch"))
+					callBatch(context, threadID, data);
 				
 				// If this is a response, it means that somehow the parent process is faster then Java!
 				// It's unlikely that this block will be called; it's just here in case of a potential weirdo
@@ -125,10 +186,13 @@ public class ScopeWrapper {
 					handle(inCommand);
 				}
 
-				else
+				else if (!dispatch(context, threadID, inCommand))
 					System.err.println(JSONObject.quote(command + " is unsupported"));
 		
 			} finally {
+				thenCallbacksStack.get().pop();
+				batchedResponsesStack.get().pop();
+				dataFormatStack.get().pop();
 				threadIDStack.get().pop();
 	            Context.exit();
 	        }
@@ -145,7 +209,218 @@ public class ScopeWrapper {
 	}
 
 	
-	private void callCreateScope(Context context, Object threadID, JSONObject data) throws Exception {
+	// From now until finishThread is called, commands for the ThreadID are queued for the thread that's running it instead of
+	// going to the lane.  Returns false if the ThreadID is already running in this scope
+	private boolean startThread(Object threadID) {
+		
+		if (null == threadID)
+			return false;
+		
+		synchronized (waitingInCommandsByThreadID) {
+			if (waitingInCommandsByThreadID.containsKey(threadID))
+				return false;
+			
+			waitingInCommandsByThreadID.put(threadID, new LinkedBlockingQueue<JSONObject>());
+			return true;
+		}
+	}
+	
+	// Commands that came in for the ThreadID after the thread last waited on the parent process go back through execute, so they
+	// run on the lane after the thread is done
+	private void finishThread(Object threadID) {
+		
+		BlockingQueue<JSONObject> inCommands;
+		
+		synchronized (waitingInCommandsByThreadID) {
+			inCommands = waitingInCommandsByThreadID.remove(threadID);
+		}
+		
+		for (JSONObject inCommand = inCommands.poll(); null != inCommand; inCommand = inCommands.poll())
+			try {
+				execute(inCommand);
+			} catch (Exception e) {
+				System.err.println(JSONObject.quote("Can not run " + inCommand.optString("Command") + " for ThreadID " + threadID.toString() + ": " + e.getMessage()));
+			}
+	}
+	
+	// If the command's ThreadID is running in this scope, queues the command for it and returns true
+	// The running thread will take over handling the command
+	private boolean routeToWaitingThread(JSONObject inCommand) throws Exception {
+		
+		// Responses to asynchronous calls are matched to their call by its CallID, not by ThreadID, because Javascript can wait on
+		// the call from any thread; completing the call wakes whichever thread is waiting on it
+		if (inCommand.getString("Command").equals("RespondCallParentFunction") && inCommand.getJSONObject("Data").has("CallID")) {
+			completePendingParentFunctionCall(inCommand.getJSONObject("Data"));
+			return true;
+		}
+		
+		synchronized (waitingInCommandsByThreadID) {
+			BlockingQueue<JSONObject> waitingInCommands = waitingInCommandsByThreadID.get(inCommand.get("ThreadID"));
+			
+			if (null != waitingInCommands) {
+				waitingInCommands.add(inCommand);
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	// When a command for this scope last started or finished
+	public long getLastAccessed() {
+		return lastAccessed;
+	}
+	
+	// True while a command is running or queued in this scope, including while it waits for the parent process
+	public boolean isActive() {
+		return (reservations.get() > 0) || (activeCommands.get() > 0) || !lane.isIdle();
+	}
+	
+	// Called when a command for this scope is looked up, so that the scope can't be evicted before the command is on its lane
+	// Returns false if the scope is being evicted
+	boolean reserve() {
+		
+		while (true) {
+			int current = reservations.get();
+			
+			if (EVICTED == current)
+				return false;
+			
+			if (reservations.compareAndSet(current, current + 1))
+				return true;
+		}
+	}
+	
+	// Called once the command that reserved this scope is on its lane, or won't run
+	void unreserve() {
+		reservations.decrementAndGet();
+	}
+	
+	// Marks this scope as evicted unless a command is running, queued or reserved; once this returns true, no command can run
+	// in the scope
+	boolean markEvicted() {
+		
+		if (!reservations.compareAndSet(0, EVICTED))
+			return false;
+		
+		// A command that was reserved before the mark keeps the lane busy until it's done
+		if ((activeCommands.get() > 0) || !lane.isIdle()) {
+			reservations.set(0);
+			return false;
+		}
+		
+		return true;
+	}
+	
+	public JSONObject getMetrics() throws JSONException {
+		
+		JSONObject metrics = new JSONObject();
+		metrics.put("IdleMilliseconds", isActive() ? 0 : System.currentTimeMillis() - lastAccessed);
+		metrics.put("EstimatedSize", estimateRetainedSize());
+		metrics.put("Callbacks", callbacks.size());
+		metrics.put("CachedObjects", cachedObjects.size());
+		
+		return metrics;
+	}
+	
+	// Roughly how many bytes this scope holds on to, not counting what it shares with its parent scope
+	// Only call this on the scope's lane, or after markEvicted, so that no Javascript runs in the scope while it's walked
+	public long estimateRetainedSize() {
+		
+		if (null == scope)
+			return 0;
+		
+		// Reading some properties needs a context, and this can be called from a thread that isn't running Javascript
+		Context.enter();
+		
+		try {
+			return ScopeSizeEstimator.estimate(scope);
+		} catch (RuntimeException re) {
+			System.err.println(JSONObject.quote("Can not estimate the size of scope " + scopeID.toString() + ": " + re.getMessage()));
+			return -1;
+		} finally {
+			Context.exit();
+		}
+	}
+	
+	// Runs a command that doesn't need special handling; returns false if the command isn't supported
+	private boolean dispatch(Context context, Object threadID, JSONObject inCommand) throws Exception {
+		
+		String command = inCommand.getString("Command");
+		JSONObject data = inCommand.getJSONObject("Data");
+
+		if (command.equals("CallFunctionInScope"))
+			callFunctionInScope(context, threadID, data);
+		
+		else if (command.equals("CallCallback"))
+			callCallback(context, threadID, data);
+		
+		else if (command.equals("CreateScope"))
+			callCreateScope(context, threadID, data, inCommand.optString("KnownFunctionsFingerprint", null));
+		
+		else if (command.equals("DisposeScope"))
+			ioPump.DisposeScopeWrapper(scopeID);
+		
+		else if (command.equals("ReleaseCallback"))
+			callbacks.release(data.get("CallbackId"));
+		
+		else if (command.equals("GetCallbackMetrics"))
+			sendCommand("RespondGetCallbackMetrics", threadID, callbacks.getMetrics());
+		
+		else if (command.equals("GetScopeMetrics"))
+			sendCommand("RespondGetScopeMetrics", threadID, getMetrics());
+		
+		else
+			return false;
+		
+		return true;
+	}
+	
+	// Runs each command in the batch in order and sends all of their responses back at once
+	private void callBatch(Context context, Object threadID, JSONObject data) throws Exception {
+		
+		JSONArray responses = new JSONArray();
+		JSONArray commands = data.getJSONArray("Commands");
+		
+		batchedResponsesStack.get().push(responses);
+		
+		try {
+			for (int commandCtr = 0; commandCtr < commands.length(); commandCtr++) {
+				
+				JSONObject command = commands.getJSONObject(commandCtr);
+				Exception exception = null;
+				
+				try {
+					if (!dispatch(context, threadID, command))
+						exception = new JSONException(command.optString("Command") + " is unsupported in a batch");
+				} catch (Exception e) {
+					exception = e;
+				}
+				
+				// Later commands usually depend on earlier ones, so the batch stops at the first failure
+				if (null != exception) {
+					JSONObject exceptionData = new JSONObject();
+					exceptionData.put("Exception", exception.getMessage());
+					
+					JSONObject response = new JSONObject();
+					response.put("Command", command.optString("Command"));
+					response.put("Data", exceptionData);
+					
+					responses.put(response);
+					break;
+				}
+			}
+		} finally {
+			batchedResponsesStack.get().pop();
+		}
+		
+		JSONObject outData = new JSONObject();
+		outData.put("Responses", responses);
+		
+		sendCommand("RespondBatch", threadID, outData);
+	}
+	
+	private void callCreateScope(Context context, Object threadID, JSONObject data, String knownFunctionsFingerprint) throws Exception {
 		
 		ParentScope.ScriptableAndResult scriptableAndResult;
 		JSONObject outData = new JSONObject();
@@ -157,6 +432,9 @@ public class ScopeWrapper {
 	    // Inject function callers
 		for (String functionName : parentScope.getFunctions())
 			scope.put(functionName, scope, new ParentProcessFunctionCaller(functionName));
+		
+		if (parentScope.getFunctions().size() > 0)
+			scope.put("callParentFunctionAsync", scope, new AsyncParentProcessFunctionCaller());
 
 	    
 	    // Load properties
@@ -196,6 +474,8 @@ public class ScopeWrapper {
 					results.put((Object)null);
 			}
 			
+			runThenCallbacks();
+			
 		} catch (JavaScriptException je) {
 			returnResult("RespondCreateScope", context, threadID, je.getValue(), outData, "Exception");
 			return;
@@ -205,9 +485,10 @@ public class ScopeWrapper {
 		}
 		
 	    
-	    JSONObject functions = new JSONObject();
-		outData.put("Functions", functions);
 		outData.put("Results", results);
+
+		// Each function's JSON is kept so that it can be compared with the parent scope's template
+		SortedMap<String, String> functions = new TreeMap<String, String>();
 		
         for (Object id : scope.getIds()) {
 
@@ -218,7 +499,6 @@ public class ScopeWrapper {
             // If the value is a Javascript function...
             if (Function.class.isInstance(javascriptMethodObject)) {
             	JSONObject function = new JSONObject();
-            	functions.put(functionName, function);
             	
             	JSONObject properties = new JSONObject();
             	function.put("Properties", properties);
@@ -232,25 +512,96 @@ public class ScopeWrapper {
             	JSONArray arguments = new JSONArray();
             	function.put("Arguments", arguments);
 
-            	//String unbrokenArgs = context.evaluateString(scope, functionName + ".toSource();", "<cmd>", 1, null).toString();
-				Function toSourceFunction = (Function)javascriptMethod.getPrototype().get("toSource", scope);
-				String unbrokenArgs = (String)toSourceFunction.call(context, javascriptMethod, javascriptMethod, new Object[] { javascriptMethod });
+            	for (String argumentName : getArgumentNames(context, javascriptMethod))
+            		arguments.put(argumentName);
 
-				unbrokenArgs = unbrokenArgs.substring(unbrokenArgs.indexOf('(') + 1);
-            	unbrokenArgs = unbrokenArgs.substring(0, unbrokenArgs.indexOf(')'));
-
-            	if (unbrokenArgs.length() > 0) {
-                	
-                	String[] args = unbrokenArgs.split(",");
-                	for (String arg : args)
-                		arguments.put(arg.trim());
-                }
+            	functions.put(functionName, function.toString());
             }
         }
 
+        FunctionsMetadata functionsMetadata = new FunctionsMetadata(functions);
+        
+        // A parent process that doesn't cache functions doesn't send KnownFunctionsFingerprint, so it doesn't need a fingerprint either
+        if (null == knownFunctionsFingerprint) {
+        	outData.put("Functions", functionsMetadata.toJSONObject());
+        	returnResult("RespondCreateScope", context, threadID, null, outData, null);
+        	return;
+        }
+        
+        FunctionsMetadata functionsTemplate = parentScope.getOrSetFunctionsTemplate(functionsMetadata);
+        
+        outData.put("FunctionsFingerprint", functionsMetadata.getFingerprint());
+        
+        // Only send what the parent process doesn't already have; it sends an empty KnownFunctionsFingerprint when it has nothing
+        if (knownFunctionsFingerprint.equals(functionsMetadata.getFingerprint())) {
+        	// The parent process already has all of the functions
+        	
+        } else if (knownFunctionsFingerprint.equals(functionsTemplate.getFingerprint())) {
+        	outData.put("FunctionsDeltaFrom", functionsTemplate.getFingerprint());
+        	outData.put("Functions", functionsMetadata.getChangedFunctions(functionsTemplate));
+        	outData.put("RemovedFunctions", new JSONArray(functionsMetadata.getRemovedFunctions(functionsTemplate)));
+        	
+        } else
+        	outData.put("Functions", functionsMetadata.toJSONObject());
+
 	    returnResult("RespondCreateScope", context, threadID, null, outData, null);
 	}
 
+	// Rhino keeps the parameter names in the compiled function's metadata, but only exposes them to subclasses
+	private static final Method getParamCountMethod;
+	private static final Method getParamOrVarNameMethod;
+	
+	static {
+		Method paramCount = null;
+		Method paramOrVarName = null;
+		
+		try {
+			paramCount = NativeFunction.class.getDeclaredMethod("getParamCount");
+			paramOrVarName = NativeFunction.class.getDeclaredMethod("getParamOrVarName", int.class);
+			
+			paramCount.setAccessible(true);
+			paramOrVarName.setAccessible(true);
+		} catch (Exception e) {
+			// If the metadata can't be reached, argument names fall back to decompiling the function
+			paramCount = null;
+			paramOrVarName = null;
+		}
+		
+		getParamCountMethod = paramCount;
+		getParamOrVarNameMethod = paramOrVarName;
+	}
+	
+	// Gets the names of a function's arguments without generating its source
+	static List<String> getArgumentNames(Context context, Function javascriptMethod) {
+		
+		List<String> argumentNames = new ArrayList<String>();
+		
+		if ((null != getParamCountMethod) && (javascriptMethod instanceof NativeFunction))
+			try {
+				int paramCount = (Integer)getParamCountMethod.invoke(javascriptMethod);
+				
+				for (int paramCtr = 0; paramCtr < paramCount; paramCtr++)
+					argumentNames.add((String)getParamOrVarNameMethod.invoke(javascriptMethod, paramCtr));
+				
+				return argumentNames;
+			} catch (Exception e) {
+				argumentNames.clear();
+			}
+		
+		// Functions that aren't compiled from Javascript don't have parameter metadata, so their source is parsed instead
+		Function toSourceFunction = (Function)javascriptMethod.getPrototype().get("toSource", javascriptMethod);
+		String unbrokenArgs = (String)toSourceFunction.call(context, javascriptMethod, javascriptMethod, new Object[] { javascriptMethod });
+
+		unbrokenArgs = unbrokenArgs.substring(unbrokenArgs.indexOf('(') + 1);
+		unbrokenArgs = unbrokenArgs.substring(0, unbrokenArgs.indexOf(')'));
+
+		if (unbrokenArgs.length() > 0)
+			for (String arg : unbrokenArgs.split(","))
+				argumentNames.add(arg.trim());
+		
+		return argumentNames;
+	}
+
 	// Lets javascript call a function in the parent process
 	private class ParentProcessFunctionCaller implements Callable {
 
@@ -289,9 +640,24 @@ public class ScopeWrapper {
 		Object callbackID = data.get("CallbackId");
 		Function function = callbacks.get(callbackID);
 		
+		if (null == function) {
+			returnResult("RespondCallCallback", context, threadID, "Callback " + callbackID.toString() + " is no longer available", "Exception");
+			return;
+		}
+		
 		callFunction("RespondCallCallback", context, threadID, function, data.getJSONArray("Arguments"));
 	}
 
+	// Arrays that were parsed as only numbers are copied straight into a Javascript array, instead of going back to JSON text
+	private Scriptable toJavascriptArray(Context context, JSONArray numbers) throws JSONException {
+		Object[] elements = new Object[numbers.length()];
+
+		for (int ctr = 0; ctr < elements.length; ctr++)
+			elements[ctr] = Double.valueOf(numbers.getDouble(ctr));
+
+		return context.newArray(scope, elements);
+	}
+
 	private void callFunction(String command, Context context, Object threadID,
 			Function function, JSONArray argumentsJSON)
 				throws JSONException, IOException {
@@ -317,7 +683,15 @@ public class ScopeWrapper {
 			complete = new Date();
 			Logger.log("Time to decode via JSON.parse: " + new Long(complete.getTime() - start.getTime()).toString());*/
 			
-			if ((argument instanceof JSONArray) || (argument instanceof JSONObject))
+			if (isMessagePack())
+				arguments.set(
+					ctr,
+					MessagePack.toJavascript(context, scope, argument));
+			else if ((argument instanceof JSONArray) && ((JSONArray)argument).isNumeric())
+				arguments.set(
+					ctr,
+					toJavascriptArray(context, (JSONArray)argument));
+			else if ((argument instanceof JSONArray) || (argument instanceof JSONObject))
 				arguments.set(
 					ctr,
 					jsonParseFunction.call(context, scope, scope, new Object[] { argument.toString()} ));
@@ -330,6 +704,7 @@ public class ScopeWrapper {
 		
 		try {
 			Object callResults = function.call(context, scope, scope, arguments.toArray());
+			runThenCallbacks();
 			
 			returnResult(command, context, threadID, callResults, "Result");
 		} catch (JavaScriptException je) {
@@ -354,7 +729,11 @@ public class ScopeWrapper {
 	
 	private void returnResult(String command, final Context context, Object threadID, final Object callResults, JSONObject outData, String resultsName) throws JSONException, IOException {
 		
-		if (callResults != null)
+		if (isMessagePack()) {
+			if ((callResults != null) && !(callResults instanceof Undefined))
+				outData.put(resultsName, new MessagePack.JavascriptValue(callResults));
+		}
+		else if (callResults != null)
 			if (!(callResults instanceof Undefined)) {
 				final Object serializedCallResults = jsonStringifyFunction.call(context, scope, scope, new Object[] { callResults });
 				
@@ -374,22 +753,57 @@ public class ScopeWrapper {
 	
 	private void sendCommand(String command, Object threadID, JSONObject data) throws JSONException, IOException {
 		
-		JSONObject outCommand = new JSONObject();
-		outCommand.put("Data", data);
-		outCommand.put("ScopeID", scopeID);
-		outCommand.put("ThreadID", threadID);
-		outCommand.put("Command", command);
-
-		synchronized (outputStreamWriter) {
-			outputStreamWriter.write(outCommand.toString() + "\r\n");
-			outputStreamWriter.flush();
+		// When running in a batch, the response is held until all of the batch's commands are complete
+		Stack<JSONArray> batchedResponsesForThread = batchedResponsesStack.get();
+		JSONArray batchedResponses = batchedResponsesForThread.isEmpty() ? null : batchedResponsesForThread.peek();
+		
+		if (null != batchedResponses) {
+			JSONObject response = new JSONObject();
+			response.put("Command", command);
+			response.put("Data", data);
+			
+			batchedResponses.put(response);
+			return;
 		}
+		
+		writeCommand(command, threadID, data);
+	}
+	
+	private void writeCommand(String command, Object threadID, JSONObject data) throws JSONException, IOException {
+		
+		boolean messagePack = isMessagePack();
+		
+		ResponseWriter responseWriter = ResponseWriter.begin();
+		if (messagePack)
+			responseWriter.key("Data").valueBase64(MessagePack.encode(data));
+		else
+			responseWriter.key("Data").value(data);
+		
+		responseWriter.key("ScopeID").value(scopeID.intValue());
+		responseWriter.key("ThreadID").value(threadID);
+		responseWriter.key("Command").value(command);
+		
+		if (messagePack)
+			responseWriter.key("DataFormat").value(MessagePack.DATA_FORMAT);
+		
+		responseWriter.end(outputStreamWriter);
+	}
+	
+	// True when the command that's running on this thread sends and receives its Data as MessagePack
+	private static boolean isMessagePack() {
+		Stack<String> dataFormats = dataFormatStack.get();
+		return !dataFormats.isEmpty() && MessagePack.DATA_FORMAT.equals(dataFormats.peek());
 	}
 	
 	// Calls a function in the parent process
 	public Object callFunctionInParentProcess(final Context context, Object[] args, String functionName, Object threadID) throws Exception {
+		return callFunctionInParentProcess(context, args, functionName, threadID, null);
+	}
+	
+	// cacheMiss is the CacheID of an object that the parent process thinks is cached, but was evicted
+	private Object callFunctionInParentProcess(final Context context, Object[] args, String functionName, Object threadID, Object cacheMiss) throws Exception {
 
-		JSONArray argumentsForJSON = new JSONArray();
+		Object evictedCacheID;
 		
 		// Extract callbacks so that the parent process can identify them and use them
 		// The callbacks must be destroyed after this part of the call stack is complete.  For now, there is no way for
@@ -398,121 +812,471 @@ public class ScopeWrapper {
 		
 		try {
 			
-			for (int argumentIndex = 0; argumentIndex < args.length; argumentIndex++) {
+			JSONObject data = createCallParentFunctionData(context, args, functionName, callbackIDs);
+			
+			if (null != cacheMiss)
+				data.put("CacheMiss", cacheMiss);
+			
+			// The thread has to be waiting before the call is sent, otherwise a fast response would be put on the lane behind it
+			JSONObject dataFromParent;
+			boolean registered = startThread(threadID);
+			
+			try {
+				// Calls to the parent process can't wait for a batch to complete
+				writeCommand("CallParentFunction", threadID, data);
+				
+				dataFromParent = waitForParentResponse(threadID, null);
+			} finally {
+				if (registered)
+					finishThread(threadID);
+			}
+			
+			retainCallbacks(dataFromParent);
+			
+			try {
+				return decodeParentResponse(context, dataFromParent);
+			} catch (CachedObjectEvictedException coee) {
+				
+				if (null != cacheMiss)
+					throw new RuntimeException("The parent process referred to cached object " + coee.cacheID.toString() + " after being told that it was evicted");
+				
+				evictedCacheID = coee.cacheID;
+			}
+			
+		} finally {
+			// clean up old callbacks
+			// At some time there might be a way for the parent process to hold onto callbacks in the "heap"
+			
+			callbacks.removeAll(callbackIDs);
+		}
+		
+		// Call again, telling the parent process to send the object instead of its CacheID
+		return callFunctionInParentProcess(context, args, functionName, threadID, evictedCacheID);
+	}
+	
+	// Calls a function in the parent process without waiting for the response; the response is matched to the call by its CallID
+	public PendingParentFunctionCall callFunctionInParentProcessAsync(final Context context, Object[] args, String functionName, Object threadID) throws Exception {
+
+		// The callbacks live until the parent process responds
+		ArrayList<Object> callbackIDs = new ArrayList<Object>();
+		
+		try {
+			
+			JSONObject data = createCallParentFunctionData(context, args, functionName, callbackIDs);
+			
+			PendingParentFunctionCall pendingCall = new PendingParentFunctionCall(nextCallID.incrementAndGet(), callbackIDs, args, functionName);
+			data.put("CallID", pendingCall.callID);
+			
+			synchronized (pendingParentFunctionCalls) {
+				pendingParentFunctionCalls.put(pendingCall.callID, pendingCall);
+			}
+			
+			try {
+				writeCommand("CallParentFunction", threadID, data);
+			} catch (Exception e) {
+				synchronized (pendingParentFunctionCalls) {
+					pendingParentFunctionCalls.remove(pendingCall.callID);
+				}
+				
+				throw e;
+			}
+			
+			return pendingCall;
+			
+		} catch (Exception e) {
+			callbacks.removeAll(callbackIDs);
+			throw e;
+		}
+	}
+	
+	// Runs the callbacks that were passed to then() during the current command, in the order that then() was called, including
+	// callbacks that are passed to then() while they run
+	private static void runThenCallbacks() {
+		
+		List<Runnable> thenCallbacks = thenCallbacksStack.get().peek();
+		
+		while (!thenCallbacks.isEmpty())
+			thenCallbacks.remove(0).run();
+	}
+	
+	// Converts the arguments to a parent function into JSON, replacing functions with callback indicators
+	private JSONObject createCallParentFunctionData(final Context context, Object[] args, String functionName, ArrayList<Object> callbackIDs) throws JSONException {
+		
+		JSONArray argumentsForJSON = new JSONArray();
+		
+		for (int argumentIndex = 0; argumentIndex < args.length; argumentIndex++) {
 
-				Object argument = args[argumentIndex];
+			Object argument = args[argumentIndex];
+			
+			if (Function.class.isInstance(argument)) {
 				
-				if (Function.class.isInstance(argument)) {
-					
-					Object callbackID;
-					do {
-						callbackID = random.nextInt();
-					} while (callbacks.containsKey(callbackID));
-					
-					callbacks.put(callbackID, (Function)argument);
-					callbackIDs.add(callbackID);
-					
-					JSONObject callbackIndicator = new JSONObject();
-					callbackIndicator.put("Callback", true);
-					callbackIndicator.put("CallbackID", callbackID);
+				Object callbackID = callbacks.register((Function)argument, callbackIDs);
+				
+				JSONObject callbackIndicator = new JSONObject();
+				callbackIndicator.put("Callback", true);
+				callbackIndicator.put("CallbackID", callbackID);
+				
+				argumentsForJSON.put(argumentIndex, callbackIndicator);
+
+			} else if (Scriptable.class.isInstance(argument) && isMessagePack())
+				argumentsForJSON.put(argumentIndex, new MessagePack.JavascriptValue(argument));
+			
+			else if (Scriptable.class.isInstance(argument))
+				// use the wrapper that converts to a JSONString
+				argumentsForJSON.put(argumentIndex, new JSONStringFromScriptable(context, (Scriptable)argument));
+			
+			else
+				argumentsForJSON.put(argumentIndex, argument);
+		}
+		
+		JSONObject data = new JSONObject();
+		data.put("FunctionName", functionName);
+		data.put("Arguments", argumentsForJSON);
+		
+		return data;
+	}
+	
+	// Blocks until the parent process responds, handling any other commands that the parent process sends to this thread in the meantime
+	// If pendingCall is null, this waits for the response to a synchronous call, else it waits until pendingCall is complete
+	// The ThreadID must already be running in this scope, see startThread
+	private JSONObject waitForParentResponse(Object threadID, PendingParentFunctionCall pendingCall) throws Exception {
+		
+		// Nested waits on the same thread share the queue; only the innermost wait is running so it gets the commands
+		BlockingQueue<JSONObject> inCommands;
+		
+		synchronized (waitingInCommandsByThreadID) {
+			inCommands = waitingInCommandsByThreadID.get(threadID);
+		}
+		
+		if (null == inCommands)
+			throw new IllegalStateException("ThreadID " + threadID.toString() + " is not running in scope " + scopeID.toString());
+		
+		// Nested waits put back the pending call that the outer wait is waiting on when they return
+		BlockingQueue<JSONObject> outerWaitingInCommands = null;
+		if (null != pendingCall)
+			outerWaitingInCommands = pendingCall.setWaitingInCommands(inCommands);
+		
+		try {
+			do {
+				
+				if ((null != pendingCall) && pendingCall.isComplete())
+					return pendingCall.getDataFromParent();
+				
+				JSONObject inCommand;
+				
+				ioPump.waitingOnParent();
+				try {
+					inCommand = inCommands.take();
+				} finally {
+					ioPump.doneWaitingOnParent();
+				}
+				
+				// If the command is a response to the function call, return the data; PENDING_CALL_COMPLETE only wakes the thread
+				if (PENDING_CALL_COMPLETE == inCommand)
+					continue;
+				
+				else if (inCommand.getString("Command").equals("RespondCallParentFunction")) {
 					
-					argumentsForJSON.put(argumentIndex, callbackIndicator);
+					if (null == pendingCall)
+						return inCommand.getJSONObject("Data");
+					else
+						System.err.println(JSONObject.quote("Unexpected RespondCallParentFunction for ThreadID " + threadID.toString()));
+				}
+				else
+					handle(inCommand, false);
+				
+			} while (true);
+			
+		} finally {
+			if (null != pendingCall)
+				pendingCall.setWaitingInCommands(outerWaitingInCommands);
+		}
+	}
+	
+	// Put in a waiting thread's queue when an asynchronous call that it's waiting on completes
+	private static final JSONObject PENDING_CALL_COMPLETE = new JSONObject();
+	
+	// The parent process can hold on to callbacks after the call returns by listing them in RetainCallbacks.  They then live until
+	// the parent process sends ReleaseCallback, or until they go unused for their TTL; CallbackTTLs has the TTL in seconds of each
+	// callback that has one, by callback ID
+	private void retainCallbacks(JSONObject dataFromParent) {
+		
+		JSONArray retainCallbacks = dataFromParent.optJSONArray("RetainCallbacks");
+		
+		if (null == retainCallbacks)
+			return;
+		
+		JSONObject callbackTTLs = dataFromParent.optJSONObject("CallbackTTLs");
+		
+		for (int callbackCtr = 0; callbackCtr < retainCallbacks.length(); callbackCtr++) {
+			Object callbackID = retainCallbacks.opt(callbackCtr);
+			
+			long ttlMillis = 0;
+			if ((null != callbackTTLs) && (callbackID instanceof Number))
+				ttlMillis = (long)(callbackTTLs.optDouble(String.valueOf(((Number)callbackID).intValue()), 0) * 1000);
+			
+			if (!callbacks.retain(callbackID, ttlMillis))
+				System.err.println(JSONObject.quote("Can not retain callback " + String.valueOf(callbackID)));
+		}
+	}
+	
+	private void completePendingParentFunctionCall(JSONObject dataFromParent) throws JSONException {
+		
+		PendingParentFunctionCall pendingCall;
+		synchronized (pendingParentFunctionCalls) {
+			pendingCall = pendingParentFunctionCalls.remove(dataFromParent.get("CallID"));
+		}
+		
+		if (null != pendingCall)
+			pendingCall.complete(dataFromParent);
+		else
+			System.err.println(JSONObject.quote("Unknown CallID: " + dataFromParent.get("CallID").toString()));
+	}
 
-				} else if (Scriptable.class.isInstance(argument))
-					// use the wrapper that converts to a JSONString
-					argumentsForJSON.put(argumentIndex, new JSONStringFromScriptable(context, (Scriptable)argument));
+	// Converts the parent process's response into what's returned to Javascript
+	private Object decodeParentResponse(final Context context, JSONObject dataFromParent) throws Exception {
+		
+		if (dataFromParent.has("Exception")) {
+			
+			// Try to throw the exception in Javascript
+			Scriptable exceptionScope = parentScope.createDummyScope(context);
+			exceptionScope.put("toThrow", exceptionScope, dataFromParent.get("Exception").toString());
+			throwFunction.call(context, exceptionScope, exceptionScope, null);
+			
+			// if that didn't throw, then throw a meaner exception
+			throw new RuntimeException(dataFromParent.get("Exception").toString());
+		}
+		else if (dataFromParent.has("Result")) {
+			Object toReturn = dataFromParent.get("Result");
+
+			// If the object is a JSONArray or JSONObject, then it can't be directly consumed in Rhino and must be
+			// re-de-serialized in Rhino
+			if (isMessagePack())
+				toReturn = MessagePack.toJavascript(context, scope, toReturn);
+			else if ((toReturn instanceof JSONArray) && ((JSONArray)toReturn).isNumeric())
+				toReturn = toJavascriptArray(context, (JSONArray)toReturn);
+			else if (JSONArray.class.isInstance(toReturn) || JSONObject.class.isInstance(toReturn))				
+				toReturn = context.evaluateString(scope, "(" + toReturn.toString() + ")", "<cmd>", 1, null);
+			
+			if (JSONObject.NULL == toReturn)
+				toReturn = null;
+
+			if (dataFromParent.has("CacheID")) {
 				
+				// Objects that the parent process says are immutable are sealed and shared with all scopes from the same parent scope
+				if (dataFromParent.optBoolean("SharedCache"))
+					parentScope.getSharedCachedObjects().putSealed(dataFromParent.get("CacheID"), toReturn);
 				else
-					argumentsForJSON.put(argumentIndex, argument);
+					cachedObjects.put(dataFromParent.get("CacheID"), toReturn);
 			}
 			
-			JSONObject data = new JSONObject();
-			data.put("FunctionName", functionName);
-			data.put("Arguments", argumentsForJSON);
+			return toReturn;
+
+		} else if (dataFromParent.has("Eval")) {
+			//Object toReturn = context.evaluateString(scope, dataFromParent.getString("Eval"), "<cmd>", 1, null);
+			NativeFunction toCall = compiledJavascriptTracker.getGetOrCompileScript(dataFromParent.getString("Eval"));
+			Object toReturn = toCall.call(context, scope, scope, null);
+
+			// Evaluated objects can close over this scope, so they're never shared
+			if (dataFromParent.has("CacheID"))
+				cachedObjects.put(dataFromParent.get("CacheID"), toReturn);
+			
+			return toReturn;
+			
+		} else if (dataFromParent.has("CacheID")) {
+			Object cacheID = dataFromParent.get("CacheID");
 			
-			sendCommand("CallParentFunction", threadID, data);
+			ParentObjectCache.Hit hit = cachedObjects.get(cacheID);
+			if (null == hit)
+				hit = parentScope.getSharedCachedObjects().get(cacheID);
 			
-			Object monitorObject = new Object();
+			if (null == hit)
+				throw new CachedObjectEvictedException(cacheID);
 			
-			do
-			{
+			return hit.value;
+		}
+		else
+			return Undefined.instance;
+	}
+	
+	// Thrown when the parent process refers to a cached object that isn't in the cache
+	private static class CachedObjectEvictedException extends Exception {
+		
+		private static final long serialVersionUID = 1L;
+		
+		CachedObjectEvictedException(Object cacheID) {
+			super("Cached object " + cacheID.toString() + " was evicted");
+			this.cacheID = cacheID;
+		}
+		
+		final Object cacheID;
+	}
+	
+	// A call to a parent function that was sent without waiting for the response
+	class PendingParentFunctionCall {
+		
+		PendingParentFunctionCall(int callID, List<Object> callbackIDs, Object[] args, String functionName) {
+			this.callID = callID;
+			this.callbackIDs = callbackIDs;
+			this.args = args;
+			this.functionName = functionName;
+		}
+		
+		final int callID;
+		private final List<Object> callbackIDs;
+		private final Object[] args;
+		private final String functionName;
+		private JSONObject dataFromParent = null;
+		private boolean resultDecoded = false;
+		private Object result;
+		
+		// The queue of the thread that's waiting on this call, which might not be the thread that made the call
+		private BlockingQueue<JSONObject> waitingInCommands = null;
+		
+		synchronized boolean isComplete() {
+			return null != dataFromParent;
+		}
+		
+		synchronized JSONObject getDataFromParent() {
+			return dataFromParent;
+		}
+		
+		// Returns the queue that was waiting before
+		synchronized BlockingQueue<JSONObject> setWaitingInCommands(BlockingQueue<JSONObject> waitingInCommands) {
+			BlockingQueue<JSONObject> previousWaitingInCommands = this.waitingInCommands;
+			this.waitingInCommands = waitingInCommands;
+			return previousWaitingInCommands;
+		}
+		
+		// The parent process is done with the call, so its callbacks can't be called anymore unless it retained them
+		void complete(JSONObject dataFromParent) {
+			
+			retainCallbacks(dataFromParent);
+			callbacks.removeAll(callbackIDs);
+			
+			synchronized (this) {
+				this.dataFromParent = dataFromParent;
 				
-				try {
+				// Wakes the thread that's waiting on this call
+				if (null != waitingInCommands)
+					waitingInCommands.add(PENDING_CALL_COMPLETE);
+			}
+		}
+		
+		// Blocks until the parent responds and then returns the result, or throws the parent's exception
+		Object waitForResult(Context context) throws Exception {
+			
+			synchronized (this) {
+				if (resultDecoded)
+					return result;
+			}
+			
+			// This might not be the thread that made the call
+			Object threadID = threadIDStack.get().peek();
+			Object toReturn;
+			
+			boolean registered = startThread(threadID);
+			
+			try {
+				toReturn = decodeParentResponse(context, waitForParentResponse(threadID, this));
+			} catch (CachedObjectEvictedException coee) {
+				// The object has to be sent again, so the call is repeated without pipelining
+				toReturn = callFunctionInParentProcess(context, args, functionName, threadID, coee.cacheID);
+			} finally {
+				if (registered)
+					finishThread(threadID);
+			}
+			
+			synchronized (this) {
+				result = toReturn;
+				resultDecoded = true;
+			}
+			
+			return toReturn;
+		}
+	}
+	
+	// Lets javascript call a function in the parent process without blocking; returns an object whose wait() returns the result and
+	// whose then(callback) calls the callback with the result after the command's Javascript returns
+	private class AsyncParentProcessFunctionCaller implements Callable {
+
+		@Override
+		public Object call(Context context, Scriptable scope, Scriptable thisObj, Object[] args) {
+
+			Object threadID = threadIDStack.get().peek();
+			
+			try {
+				if (args.length < 1)
+					throw new IllegalArgumentException("callParentFunctionAsync requires the name of the function to call");
+				
+				String functionName = Context.toString(args[0]);
+				if (!parentScope.getFunctions().contains(functionName))
+					throw new IllegalArgumentException(functionName + " is not a parent function");
+				
+				Object[] functionArgs = new Object[args.length - 1];
+				System.arraycopy(args, 1, functionArgs, 0, functionArgs.length);
+				
+				final PendingParentFunctionCall pendingCall = callFunctionInParentProcessAsync(context, functionArgs, functionName, threadID);
+				
+				Scriptable toReturn = context.newObject(scope);
+				
+				toReturn.put("wait", toReturn, new Callable() {
 					
-					synchronized(monitorObject) {
-						synchronized(monitorObjectsByThreadID) {
-							monitorObjectsByThreadID.put(threadID, monitorObject);
+					@Override
+					public Object call(Context context, Scriptable scope, Scriptable thisObj, Object[] args) {
+						try {
+							return pendingCall.waitForResult(context);
+						} catch (JavaScriptException je) {
+							throw je;
+						} catch (Exception e) {
+							Context.throwAsScriptRuntimeEx(e);
+							throw new RuntimeException(e);
 						}
-					
-						monitorObject.wait();
-					}
-					
-				} finally {
-					synchronized(monitorObjectsByThreadID) {
-						monitorObjectsByThreadID.remove(threadID);
 					}
-				}
+				});
 				
-				// pull inCommand out of a map and then re-call handle, unless a response is returned
-				JSONObject inCommand = inCommandByThreadID.get(threadID);
-				inCommandByThreadID.remove(threadID);
-	
-				// If the command is a response to the function call, return the data, else, handle the command
-				if (inCommand.getString("Command").equals("RespondCallParentFunction")) {
-					
-					JSONObject dataFromParent = inCommand.getJSONObject("Data");
+				// then() doesn't wait; the callback runs once the command's Javascript returns, so calls made after then() are still
+				// pipelined with this one
+				toReturn.put("then", toReturn, new Callable() {
 					
-					if (dataFromParent.has("Exception")) {
+					@Override
+					public Object call(Context context, final Scriptable scope, Scriptable thisObj, Object[] args) {
 						
-						// Try to throw the exception in Javascript
-						Scriptable exceptionScope = parentScope.createDummyScope(context);
-						exceptionScope.put("toThrow", exceptionScope, dataFromParent.get("Exception").toString());
-						throwFunction.call(context, exceptionScope, exceptionScope, null);
+						if ((args.length < 1) || !(args[0] instanceof Function))
+							throw Context.reportRuntimeError("then requires a callback");
 						
-						// if that didn't throw, then throw a meaner exception
-						throw new RuntimeException(dataFromParent.get("Exception").toString());
-					}
-					else if (dataFromParent.has("Result")) {
-						Object toReturn = dataFromParent.get("Result");
-		
-						// If the object is a JSONArray or JSONObject, then it can't be directly consumed in Rhino and must be
-						// re-de-serialized in Rhino
-						if (JSONArray.class.isInstance(toReturn) || JSONObject.class.isInstance(toReturn))				
-							toReturn = context.evaluateString(scope, "(" + toReturn.toString() + ")", "<cmd>", 1, null);
-						
-						if (JSONObject.NULL == toReturn)
-							toReturn = null;
-
-						if (dataFromParent.has("CacheID"))
-							cachedObjects.put(dataFromParent.get("CacheID"), toReturn);
-						
-						return toReturn;
-
-					} else if (dataFromParent.has("Eval")) {
-						//Object toReturn = context.evaluateString(scope, dataFromParent.getString("Eval"), "<cmd>", 1, null);
-						NativeFunction toCall = compiledJavascriptTracker.getGetOrCompileScript(dataFromParent.getString("Eval"));
-						Object toReturn = toCall.call(context, scope, scope, null);
-
-						if (dataFromParent.has("CacheID"))
-							cachedObjects.put(dataFromParent.get("CacheID"), toReturn);
+						final Function callback = (Function)args[0];
 						
-						return toReturn;
+						thenCallbacksStack.get().peek().add(new Runnable() {
+							
+							@Override
+							public void run() {
+								Context context = Context.getCurrentContext();
+								
+								try {
+									Object result = pendingCall.waitForResult(context);
+									callback.call(context, scope, scope, new Object[] { result });
+								} catch (RuntimeException re) {
+									throw re;
+								} catch (Exception e) {
+									Context.throwAsScriptRuntimeEx(e);
+									throw new RuntimeException(e);
+								}
+							}
+						});
 						
-					} else if (dataFromParent.has("CacheID"))
-						return cachedObjects.get(dataFromParent.get("CacheID"));
-					else
 						return Undefined.instance;
-				}
+					}
+				});
 				
-				handle(inCommand);
-	
-			} while (true);
-		} finally {
-			// clean up old callbacks
-			// At some time there might be a way for the parent process to hold onto callbacks in the "heap"
-			
-			for (Object callbackID : callbackIDs)
-				callbacks.remove(callbackID);
+				return toReturn;
+				
+			} catch (JavaScriptException je) {
+				throw je;
+			} catch (Exception e) {
+				Context.throwAsScriptRuntimeEx(e);
+				throw new RuntimeException(e);
+			}
 		}
 	}
 	
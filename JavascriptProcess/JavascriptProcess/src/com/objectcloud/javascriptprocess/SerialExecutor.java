@@ -0,0 +1,92 @@
+package com.objectcloud.javascriptprocess;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.json.JSONObject;
+
+// Runs tasks one at a time, in the order that they're submitted, on a shared executor
+// Each scope has one, so commands for a scope never run at the same time, but different scopes still run in parallel
+// A SerialExecutor only holds one of the shared executor's threads while it has tasks
+public class SerialExecutor implements Executor {
+
+	public SerialExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	private final Executor executor;
+	private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+	private boolean running = false;
+
+	@Override
+	public void execute(Runnable task) {
+
+		synchronized (tasks) {
+			tasks.add(task);
+
+			if (running)
+				return;
+
+			running = true;
+		}
+
+		schedule();
+	}
+
+	// True when no task is running or waiting to run
+	public boolean isIdle() {
+		synchronized (tasks) {
+			return !running;
+		}
+	}
+
+	private void schedule() {
+
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				runNextTask();
+			}
+		});
+	}
+
+	// Only one task runs per turn on the shared executor, so a busy scope can't keep other scopes from running
+	private void runNextTask() {
+
+		while (true) {
+			Runnable task;
+
+			synchronized (tasks) {
+				task = tasks.poll();
+			}
+
+			try {
+				task.run();
+			} catch (RuntimeException re) {
+				StringBuilder toReturn = new StringBuilder();
+				toReturn.append(re.getMessage());
+
+				for (StackTraceElement ste : re.getStackTrace())
+					toReturn.append("\n" + ste.toString());
+
+				System.err.println(JSONObject.quote(toReturn.toString()));
+			}
+
+			synchronized (tasks) {
+				if (tasks.isEmpty()) {
+					running = false;
+					return;
+				}
+			}
+
+			// Once the shared executor is shut down, the remaining tasks finish on this thread
+			try {
+				schedule();
+				return;
+			} catch (RejectedExecutionException ree) { }
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package com.objectcloud.javascriptprocess;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+
+import org.json.JSONObject;
+
+// Listens on a loopback port instead of using stdin and stdout, so that the parent process can open several connections at once
+// Each connection gets its own IOPump, with its own framing, writer, parent scopes and scopes; every connection shares RootScope
+// and the compiled Javascript.  Once listening, the port is written to stdout as {"Port": n}, so that the parent process can use
+// port 0 to let the OS pick a free port.  The server runs until stdin closes, which happens when the parent process exits
+// Any local process can connect to a loopback port, so the parent process picks a random token and writes it as the first line
+// on stdin.  The first line on each connection must be the same token, otherwise the connection is closed before any command
+// is read
+public class SocketIOPumpServer {
+
+	// Set with -Dobjectcloud.pump.port; -1 means that stdin and stdout are used
+	public static final int PORT = Integer.getInteger("objectcloud.pump.port", -1);
+
+	// Tokens that are shorter than this are refused, because they could be guessed
+	static final int MIN_TOKEN_LENGTH = 16;
+
+	// Longer lines aren't read while looking for the token
+	static final int MAX_TOKEN_LENGTH = 1024;
+
+	// A connection that doesn't send the token in this long is closed
+	static final int TOKEN_TIMEOUT_MILLIS = 10000;
+
+	public SocketIOPumpServer(int port, InputStream lifetimeStream) {
+		this.port = port;
+		this.lifetimeStream = lifetimeStream;
+	}
+
+	private final int port;
+	private final InputStream lifetimeStream;
+	private byte[] token;
+
+	public void start() throws Exception {
+
+		String tokenLine = readLine(lifetimeStream);
+		if ((null == tokenLine) || (tokenLine.length() < MIN_TOKEN_LENGTH))
+			throw new IOException("The first line on stdin must be a token of at least " + MIN_TOKEN_LENGTH + " characters");
+
+		token = tokenLine.getBytes("UTF-8");
+
+		final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+
+		try {
+			// Only processes on this machine can connect
+			serverSocketChannel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+
+			JSONObject listening = new JSONObject();
+			listening.put("Port", serverSocketChannel.socket().getLocalPort());
+			System.out.print(listening.toString() + "\r\n");
+			System.out.flush();
+
+			Thread acceptThread = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					acceptConnections(serverSocketChannel);
+				}
+			}, "SocketIOPumpServer accept");
+
+			acceptThread.setDaemon(true);
+			acceptThread.start();
+
+			// Nothing is read from stdin, it's only watched so that the server stops when the parent process goes away
+			byte[] buffer = new byte[256];
+			while (lifetimeStream.read(buffer) >= 0);
+
+		} finally {
+			serverSocketChannel.close();
+		}
+	}
+
+	private void acceptConnections(ServerSocketChannel serverSocketChannel) {
+
+		while (serverSocketChannel.isOpen()) {
+			final SocketChannel socketChannel;
+
+			try {
+				socketChannel = serverSocketChannel.accept();
+			} catch (IOException ioe) {
+				// The server is closing
+				return;
+			}
+
+			Thread connectionThread = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					serve(socketChannel);
+				}
+			}, "SocketIOPumpServer connection");
+
+			connectionThread.setDaemon(true);
+			connectionThread.start();
+		}
+	}
+
+	// Runs an IOPump until the connection sends {} or closes
+	private void serve(SocketChannel socketChannel) {
+
+		try {
+			socketChannel.socket().setTcpNoDelay(true);
+
+			// The socket's own streams are used because streams from Channels serialize reads and writes on a blocking channel
+			InputStream inStream = socketChannel.socket().getInputStream();
+
+			socketChannel.socket().setSoTimeout(TOKEN_TIMEOUT_MILLIS);
+			String tokenLine = readLine(inStream);
+			socketChannel.socket().setSoTimeout(0);
+
+			// MessageDigest.isEqual takes as long to refuse a token no matter how much of it is right
+			if ((null == tokenLine) || !MessageDigest.isEqual(token, tokenLine.getBytes("UTF-8"))) {
+				System.err.println(JSONObject.quote("Refused a connection from " + socketChannel.socket().getRemoteSocketAddress() + " that didn't send the token"));
+				return;
+			}
+
+			new IOPump(inStream, socketChannel.socket().getOutputStream()).start();
+
+		} catch (Exception e) {
+			StringBuilder toReturn = new StringBuilder();
+			toReturn.append(e.getMessage());
+
+			for (StackTraceElement ste : e.getStackTrace())
+				toReturn.append("\n" + ste.toString());
+
+			System.err.println(JSONObject.quote(toReturn.toString()));
+
+		} finally {
+			try {
+				socketChannel.close();
+			} catch (IOException ioe) { }
+		}
+	}
+
+	// Reads a line a byte at a time, so that nothing after it is buffered; returns null if the stream ends first or the line is too long
+	private static String readLine(InputStream inStream) throws IOException {
+
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		for (int b = inStream.read(); '\n' != b; b = inStream.read()) {
+			if ((b < 0) || (line.size() >= MAX_TOKEN_LENGTH))
+				return null;
+
+			if ('\r' != b)
+				line.write(b);
+		}
+
+		return line.toString("UTF-8");
+	}
+}
@@ -0,0 +1,175 @@
+package com.objectcloud.javascriptprocess;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+
+// Decodes UTF-8 from the parent process without depending on the platform's default charset
+// Runs of ASCII, which is nearly everything in the protocol, are copied straight from the byte buffer without going through a
+// CharsetDecoder; malformed bytes become U+FFFD, as they would with InputStreamReader
+public class Utf8Reader extends Reader {
+
+	public Utf8Reader(InputStream inStream) {
+		this.inStream = inStream;
+	}
+
+	private final InputStream inStream;
+	private final byte[] buffer = new byte[8192];
+	private int position = 0;
+	private int limit = 0;
+
+	// The low surrogate of a 4-byte sequence, when there was no room for it in the last read
+	private int pendingLowSurrogate = -1;
+
+	private static final char REPLACEMENT = '\ufffd';
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+
+		if (len == 0)
+			return 0;
+
+		int written = 0;
+
+		if (pendingLowSurrogate >= 0) {
+			cbuf[off + written++] = (char)pendingLowSurrogate;
+			pendingLowSurrogate = -1;
+		}
+
+		while (written < len) {
+
+			if (position >= limit) {
+				// Only block for more bytes if nothing has been decoded yet
+				if ((written > 0) && (inStream.available() <= 0))
+					break;
+
+				if (!fill())
+					break;
+			}
+
+			// ASCII fast path
+			int end = Math.min(limit, position + (len - written));
+			while ((position < end) && (buffer[position] >= 0))
+				cbuf[off + written++] = (char)buffer[position++];
+
+			if ((written < len) && (position < limit) && (buffer[position] < 0))
+				written += decodeMultiByte(cbuf, off + written, len - written);
+		}
+
+		return written == 0 ? -1 : written;
+	}
+
+	// Decodes one multi-byte sequence; returns the number of chars written, which is 0 if there's no room for a surrogate pair
+	// A malformed sequence becomes one U+FFFD for the bytes up to where it went wrong, the same as the JDK's UTF-8 decoder
+	private int decodeMultiByte(char[] cbuf, int off, int len) throws IOException {
+
+		int lead = buffer[position] & 0xff;
+		int length;
+		int codePoint;
+
+		// C0 and C1 can only start overlong encodings, and F5 and up can only start code points above U+10FFFF
+		if ((lead >= 0xc2) && (lead <= 0xdf)) {
+			length = 2;
+			codePoint = lead & 0x1f;
+		} else if ((lead & 0xf0) == 0xe0) {
+			length = 3;
+			codePoint = lead & 0x0f;
+		} else if ((lead >= 0xf0) && (lead <= 0xf4)) {
+			length = 4;
+			codePoint = lead & 0x07;
+		} else {
+			position++;
+			cbuf[off] = REPLACEMENT;
+			return 1;
+		}
+
+		// The sequence might be split across reads
+		if (position + length > limit)
+			compactAndFill(length);
+
+		position++;
+
+		for (int ctr = 1; ctr < length; ctr++) {
+			if ((position >= limit) || !isContinuation(lead, ctr, buffer[position] & 0xff)) {
+				cbuf[off] = REPLACEMENT;
+				return 1;
+			}
+
+			codePoint = (codePoint << 6) | (buffer[position++] & 0x3f);
+		}
+
+		// Surrogates aren't valid UTF-8
+		if ((codePoint >= 0xd800) && (codePoint <= 0xdfff)) {
+			cbuf[off] = REPLACEMENT;
+			return 1;
+		}
+
+		if (codePoint < 0x10000) {
+			cbuf[off] = (char)codePoint;
+			return 1;
+		}
+
+		cbuf[off] = Character.highSurrogate(codePoint);
+
+		if (len > 1) {
+			cbuf[off + 1] = Character.lowSurrogate(codePoint);
+			return 2;
+		}
+
+		pendingLowSurrogate = Character.lowSurrogate(codePoint);
+		return 1;
+	}
+
+	// The range of the second byte is narrower after some leads, which rules out overlong encodings and code points above U+10FFFF
+	private static boolean isContinuation(int lead, int index, int b) {
+
+		if ((b & 0xc0) != 0x80)
+			return false;
+
+		if (index == 1) {
+			if (lead == 0xe0)
+				return b >= 0xa0;
+			if (lead == 0xf0)
+				return b >= 0x90;
+			if (lead == 0xf4)
+				return b <= 0x8f;
+		}
+
+		return true;
+	}
+
+	private boolean fill() throws IOException {
+
+		int read = inStream.read(buffer, 0, buffer.length);
+
+		if (read <= 0)
+			return false;
+
+		position = 0;
+		limit = read;
+		return true;
+	}
+
+	// Moves what's left of the buffer to its start and reads until there are at least minimum bytes, or the stream ends
+	private void compactAndFill(int minimum) throws IOException {
+
+		int remaining = limit - position;
+		System.arraycopy(buffer, position, buffer, 0, remaining);
+		position = 0;
+		limit = remaining;
+
+		while (limit < minimum) {
+			int read = inStream.read(buffer, limit, buffer.length - limit);
+
+			if (read <= 0)
+				return;
+
+			limit += read;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		inStream.close();
+	}
+}
@@ -0,0 +1,151 @@
+package com.objectcloud.javascriptprocess;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+// Encodes UTF-8 to the parent process without depending on the platform's default charset
+// Callers already lock on the writer while they write a command, so nothing here is synchronized.  Strings are encoded straight
+// into the byte buffer, without copying them to a char[] first, and ASCII takes one store per char
+public class Utf8Writer extends Writer {
+
+	public Utf8Writer(OutputStream outStream) {
+		this.outStream = outStream;
+	}
+
+	private final OutputStream outStream;
+	private final byte[] buffer = new byte[8192];
+	private int position = 0;
+
+	// A high surrogate that ended the last write, whose low surrogate will start the next one
+	private char pendingHighSurrogate = 0;
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+
+		int end = off + len;
+		int ctr = off;
+
+		while (ctr < end) {
+
+			// The char after a high surrogate has to go through write(int)
+			if (0 != pendingHighSurrogate) {
+				write(cbuf[ctr++]);
+				continue;
+			}
+
+			// ASCII fast path
+			int asciiEnd = Math.min(end, ctr + (buffer.length - position));
+			char c;
+			while ((ctr < asciiEnd) && ((c = cbuf[ctr]) < 0x80)) {
+				buffer[position++] = (byte)c;
+				ctr++;
+			}
+
+			if (position == buffer.length)
+				flushBuffer();
+
+			if ((ctr < end) && (cbuf[ctr] >= 0x80))
+				write(cbuf[ctr++]);
+		}
+	}
+
+	@Override
+	public void write(String str) throws IOException {
+		write(str, 0, str.length());
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+
+		int end = off + len;
+		int ctr = off;
+
+		while (ctr < end) {
+
+			// The char after a high surrogate has to go through write(int)
+			if (0 != pendingHighSurrogate) {
+				write(str.charAt(ctr++));
+				continue;
+			}
+
+			// ASCII fast path
+			int asciiEnd = Math.min(end, ctr + (buffer.length - position));
+			char c;
+			while ((ctr < asciiEnd) && ((c = str.charAt(ctr)) < 0x80)) {
+				buffer[position++] = (byte)c;
+				ctr++;
+			}
+
+			if (position == buffer.length)
+				flushBuffer();
+
+			if ((ctr < end) && (str.charAt(ctr) >= 0x80))
+				write(str.charAt(ctr++));
+		}
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+
+		if (position + 4 > buffer.length)
+			flushBuffer();
+
+		if (0 != pendingHighSurrogate) {
+			char high = pendingHighSurrogate;
+			pendingHighSurrogate = 0;
+
+			if (Character.isLowSurrogate((char)c)) {
+				int codePoint = Character.toCodePoint(high, (char)c);
+				buffer[position++] = (byte)(0xf0 | (codePoint >> 18));
+				buffer[position++] = (byte)(0x80 | ((codePoint >> 12) & 0x3f));
+				buffer[position++] = (byte)(0x80 | ((codePoint >> 6) & 0x3f));
+				buffer[position++] = (byte)(0x80 | (codePoint & 0x3f));
+				return;
+			}
+
+			// An unpaired surrogate is written as '?', as OutputStreamWriter would
+			buffer[position++] = '?';
+			write(c);
+			return;
+		}
+
+		if (c < 0x80)
+			buffer[position++] = (byte)c;
+
+		else if (c < 0x800) {
+			buffer[position++] = (byte)(0xc0 | (c >> 6));
+			buffer[position++] = (byte)(0x80 | (c & 0x3f));
+
+		} else if (Character.isHighSurrogate((char)c))
+			pendingHighSurrogate = (char)c;
+
+		else if (Character.isLowSurrogate((char)c))
+			buffer[position++] = '?';
+
+		else {
+			buffer[position++] = (byte)(0xe0 | (c >> 12));
+			buffer[position++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+			buffer[position++] = (byte)(0x80 | (c & 0x3f));
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		if (position > 0) {
+			outStream.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+		outStream.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		outStream.close();
+	}
+}
@@ -0,0 +1,228 @@
+package org.json;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The map that a JSONObject keeps its properties in. Most JSON objects
+ * have only a few keys, so the keys and values are kept in two flat arrays
+ * and looked up with a linear scan, which is faster than hashing for a
+ * handful of keys and doesn't allocate an entry per key. Above
+ * MAX_FLAT_SIZE keys, the properties move to a LinkedHashMap.
+ * <p>
+ * Keys are kept in the order that they were put, in both forms.
+ */
+final class CompactMap extends AbstractMap<String, Object> {
+
+    /**
+     * The most keys that are kept in the flat arrays.
+     */
+    static final int MAX_FLAT_SIZE = 8;
+
+    private String[] keys;
+    private Object[] values;
+    private int      size;
+
+    /**
+     * The properties, once there are more than MAX_FLAT_SIZE of them.
+     */
+    private LinkedHashMap<String, Object> hashMap;
+
+
+    private int indexOf(Object key) {
+        for (int i = 0; i < this.size; i += 1) {
+            String k = this.keys[i];
+            if (k == key || k.equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    public int size() {
+        return this.hashMap != null ? this.hashMap.size() : this.size;
+    }
+
+
+    public boolean containsKey(Object key) {
+        return this.hashMap != null ?
+            this.hashMap.containsKey(key) : indexOf(key) >= 0;
+    }
+
+
+    public Object get(Object key) {
+        if (this.hashMap != null) {
+            return this.hashMap.get(key);
+        }
+        int i = indexOf(key);
+        return i >= 0 ? this.values[i] : null;
+    }
+
+
+    public Object put(String key, Object value) {
+        if (this.hashMap != null) {
+            return this.hashMap.put(key, value);
+        }
+        int i = indexOf(key);
+        if (i >= 0) {
+            Object old = this.values[i];
+            this.values[i] = value;
+            return old;
+        }
+        if (this.size == MAX_FLAT_SIZE) {
+            this.hashMap = new LinkedHashMap<String, Object>();
+            for (i = 0; i < this.size; i += 1) {
+                this.hashMap.put(this.keys[i], this.values[i]);
+            }
+            this.keys = null;
+            this.values = null;
+            this.size = 0;
+            return this.hashMap.put(key, value);
+        }
+        if (this.keys == null) {
+            this.keys = new String[4];
+            this.values = new Object[4];
+        } else if (this.size == this.keys.length) {
+            String[] newKeys = new String[MAX_FLAT_SIZE];
+            Object[] newValues = new Object[MAX_FLAT_SIZE];
+            System.arraycopy(this.keys, 0, newKeys, 0, this.size);
+            System.arraycopy(this.values, 0, newValues, 0, this.size);
+            this.keys = newKeys;
+            this.values = newValues;
+        }
+        this.keys[this.size] = key;
+        this.values[this.size] = value;
+        this.size += 1;
+        return null;
+    }
+
+
+    public Object remove(Object key) {
+        if (this.hashMap != null) {
+            return this.hashMap.remove(key);
+        }
+        int i = indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        Object old = this.values[i];
+        removeAt(i);
+        return old;
+    }
+
+
+    private void removeAt(int i) {
+        int moved = this.size - i - 1;
+        System.arraycopy(this.keys, i + 1, this.keys, i, moved);
+        System.arraycopy(this.values, i + 1, this.values, i, moved);
+        this.size -= 1;
+        this.keys[this.size] = null;
+        this.values[this.size] = null;
+    }
+
+
+    public void clear() {
+        this.hashMap = null;
+        this.keys = null;
+        this.values = null;
+        this.size = 0;
+    }
+
+
+    public Set<Map.Entry<String, Object>> entrySet() {
+        if (this.hashMap != null) {
+            return this.hashMap.entrySet();
+        }
+        return new AbstractSet<Map.Entry<String, Object>>() {
+
+            public int size() {
+                return CompactMap.this.size();
+            }
+
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                return new FlatIterator();
+            }
+        };
+    }
+
+
+    /**
+     * Iterates over the flat arrays. The entries write through to the map.
+     */
+    private final class FlatIterator
+            implements Iterator<Map.Entry<String, Object>> {
+
+        private int next = 0;
+        private int last = -1;
+
+        public boolean hasNext() {
+            return this.next < CompactMap.this.size;
+        }
+
+        public Map.Entry<String, Object> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            this.last = this.next;
+            this.next += 1;
+
+            final int i = this.last;
+            return new Map.Entry<String, Object>() {
+
+                public String getKey() {
+                    return CompactMap.this.keys[i];
+                }
+
+                public Object getValue() {
+                    return CompactMap.this.values[i];
+                }
+
+                public Object setValue(Object value) {
+                    Object old = CompactMap.this.values[i];
+                    CompactMap.this.values[i] = value;
+                    return old;
+                }
+
+                /*
+                 * equals and hashCode follow the Map.Entry contract, so
+                 * these entries compare equal to any other map's.
+                 */
+                public boolean equals(Object o) {
+                    if (!(o instanceof Map.Entry)) {
+                        return false;
+                    }
+                    Map.Entry<?, ?> e = (Map.Entry<?, ?>)o;
+                    Object value = getValue();
+                    return getKey().equals(e.getKey()) &&
+                        (value == null ? e.getValue() == null :
+                            value.equals(e.getValue()));
+                }
+
+                public int hashCode() {
+                    Object value = getValue();
+                    return getKey().hashCode() ^
+                        (value == null ? 0 : value.hashCode());
+                }
+
+                public String toString() {
+                    return getKey() + "=" + getValue();
+                }
+            };
+        }
+
+        public void remove() {
+            if (this.last < 0) {
+                throw new IllegalStateException();
+            }
+            removeAt(this.last);
+            this.next = this.last;
+            this.last = -1;
+        }
+    }
+}
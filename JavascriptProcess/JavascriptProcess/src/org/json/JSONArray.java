@@ -28,6 +28,8 @@ import java.io.IOException;
 import java.io.Writer;
 import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
@@ -84,10 +86,38 @@ public class JSONArray implements Iterable<Object> {
 
 
     /**
-     * The arrayList where the JSONArray's properties are kept.
+     * The arrayList where the JSONArray's properties are kept. It is null
+     * while a parsed array holds only numbers, which are kept unboxed in
+     * ints, longs or doubles instead.
      */
     private ArrayList<Object> myArrayList;
 
+    /**
+     * The numbers of an array of integers that all fit in an int.
+     */
+    private int[] ints;
+
+    /**
+     * The numbers of an array of integers, some of which need a long.
+     */
+    private long[] longs;
+
+    /**
+     * The numbers of an array of numbers that aren't all integers.
+     */
+    private double[] doubles;
+
+    /**
+     * Which of the doubles were parsed as integers, so that they are
+     * returned as Integer or Long. Null while none were.
+     */
+    private BitSet integerDoubles;
+
+    /**
+     * How many of the numbers are used.
+     */
+    private int numbersLength;
+
 
     /**
      * Construct an empty JSONArray.
@@ -102,7 +132,6 @@ public class JSONArray implements Iterable<Object> {
      * @throws JSONException If there is a syntax error.
      */
     public JSONArray(JSONTokener x) throws JSONException {
-        this();
         char c = x.nextClean();
         char q;
         if (c == '[') {
@@ -113,16 +142,31 @@ public class JSONArray implements Iterable<Object> {
             throw x.syntaxError("A JSONArray text must start with '['");
         }
         if (x.nextClean() == ']') {
+            this.myArrayList = new ArrayList<Object>();
             return;
         }
         x.back();
         for (;;) {
-            if (x.nextClean() == ',') {
+            c = x.nextClean();
+            if (c == ',') {
                 x.back();
-                this.myArrayList.add(null);
+                addParsed(null);
+            } else if ((c >= '0' && c <= '9') || c == '-') {
+
+                /*
+                 * Numbers are read without boxing them, as long as the
+                 * array holds nothing else.
+                 */
+                StringBuilder sb = x.nextUnquotedText(c);
+                long l = JSONObject.parsePlainInteger(sb);
+                if (l != JSONObject.NOT_A_PLAIN_INTEGER) {
+                    addParsedInteger(l);
+                } else {
+                    addParsed(x.unquotedTextToValue(sb));
+                }
             } else {
                 x.back();
-                this.myArrayList.add(x.nextValue());
+                addParsed(x.nextValue());
             }
             c = x.nextClean();
             switch (c) {
@@ -146,6 +190,153 @@ public class JSONArray implements Iterable<Object> {
     }
 
 
+    /**
+     * The largest integer that a double holds exactly.
+     */
+    private static final long MAX_EXACT_DOUBLE = 1L << 53;
+
+
+    /**
+     * Add a value while parsing, keeping the array unboxed while it only
+     * holds numbers.
+     */
+    private void addParsed(Object value) {
+        if (this.myArrayList == null) {
+            if (value instanceof Integer || value instanceof Long) {
+                addParsedInteger(((Number)value).longValue());
+                return;
+            }
+            if (value instanceof Double && widenToDoubles()) {
+                addParsedDouble(((Double)value).doubleValue(), false);
+                return;
+            }
+            box();
+        }
+        this.myArrayList.add(value);
+    }
+
+
+    /**
+     * Add a number to the doubles, remembering if it was an integer.
+     */
+    private void addParsedDouble(double d, boolean isInteger) {
+        if (this.doubles == null) {
+            this.doubles = new double[10];
+        } else if (this.numbersLength == this.doubles.length) {
+            this.doubles = Arrays.copyOf(this.doubles,
+                    this.numbersLength * 2);
+        }
+        if (isInteger) {
+            if (this.integerDoubles == null) {
+                this.integerDoubles = new BitSet();
+            }
+            this.integerDoubles.set(this.numbersLength);
+        }
+        this.doubles[this.numbersLength++] = d;
+    }
+
+
+    /**
+     * Move the integers that were parsed so far into the doubles, so that
+     * an array that mixes integers with other numbers, such as the 1 that
+     * a writer sends for 1.0, stays unboxed.
+     * @return false if an integer is too large for a double to hold
+     * exactly, in which case the array must be boxed.
+     */
+    private boolean widenToDoubles() {
+        if (this.ints == null && this.longs == null) {
+            return true;
+        }
+        if (this.longs != null) {
+            for (int i = 0; i < this.numbersLength; i += 1) {
+                if (Math.abs(this.longs[i]) > MAX_EXACT_DOUBLE) {
+                    return false;
+                }
+            }
+        }
+        double[] widened = new double[Math.max(10, this.numbersLength * 2)];
+        for (int i = 0; i < this.numbersLength; i += 1) {
+            widened[i] = this.ints != null ? this.ints[i] : this.longs[i];
+        }
+        this.integerDoubles = new BitSet();
+        this.integerDoubles.set(0, this.numbersLength);
+        this.doubles = widened;
+        this.ints = null;
+        this.longs = null;
+        return true;
+    }
+
+
+    private void addParsedInteger(long l) {
+        if (this.myArrayList == null && this.doubles != null &&
+                Math.abs(l) <= MAX_EXACT_DOUBLE) {
+            addParsedDouble(l, true);
+            return;
+        }
+        if (this.myArrayList == null && this.doubles == null) {
+            if (this.longs == null && l == (int)l) {
+                if (this.ints == null) {
+                    this.ints = new int[10];
+                } else if (this.numbersLength == this.ints.length) {
+                    this.ints = Arrays.copyOf(this.ints,
+                            this.numbersLength * 2);
+                }
+                this.ints[this.numbersLength++] = (int)l;
+                return;
+            }
+            if (this.longs == null) {
+                this.longs = new long[Math.max(10, this.numbersLength * 2)];
+                if (this.ints != null) {
+                    for (int i = 0; i < this.numbersLength; i += 1) {
+                        this.longs[i] = this.ints[i];
+                    }
+                    this.ints = null;
+                }
+            } else if (this.numbersLength == this.longs.length) {
+                this.longs = Arrays.copyOf(this.longs,
+                        this.numbersLength * 2);
+            }
+            this.longs[this.numbersLength++] = l;
+            return;
+        }
+        box();
+        this.myArrayList.add(l == (int)l ?
+                (Object)Integer.valueOf((int)l) : (Object)Long.valueOf(l));
+    }
+
+
+    /**
+     * Box the numbers of a numeric array into myArrayList, so that the
+     * array can hold any value.
+     */
+    private void box() {
+        if (this.myArrayList != null) {
+            return;
+        }
+        ArrayList<Object> list =
+            new ArrayList<Object>(Math.max(10, this.numbersLength));
+        for (int i = 0; i < this.numbersLength; i += 1) {
+            list.add(opt(i));
+        }
+        this.myArrayList = list;
+        this.ints = null;
+        this.longs = null;
+        this.doubles = null;
+        this.integerDoubles = null;
+        this.numbersLength = 0;
+    }
+
+
+    /**
+     * Determine if the array was parsed as numbers only, and keeps them
+     * unboxed.
+     * @return true if the array holds only unboxed numbers.
+     */
+    public boolean isNumeric() {
+        return this.myArrayList == null;
+    }
+
+
     /**
      * Construct a JSONArray from a source JSON text.
      * @param source     A string that begins with
@@ -240,6 +431,11 @@ public class JSONArray implements Iterable<Object> {
      *  be converted to a number.
      */
     public double getDouble(int index) throws JSONException {
+        if (this.myArrayList == null && index >= 0 &&
+                index < this.numbersLength) {
+            return this.ints != null ? this.ints[index] :
+                this.longs != null ? this.longs[index] : this.doubles[index];
+        }
         Object o = get(index);
         try {
             return o instanceof Number ?
@@ -262,6 +458,9 @@ public class JSONArray implements Iterable<Object> {
      *  if the value cannot be converted to a number.
      */
     public int getInt(int index) throws JSONException {
+        if (this.ints != null && index >= 0 && index < this.numbersLength) {
+            return this.ints[index];
+        }
         Object o = get(index);
         return o instanceof Number ?
                 ((Number)o).intValue() : (int)getDouble(index);
@@ -311,6 +510,12 @@ public class JSONArray implements Iterable<Object> {
      *  be converted to a number.
      */
     public long getLong(int index) throws JSONException {
+        if (this.ints != null && index >= 0 && index < this.numbersLength) {
+            return this.ints[index];
+        }
+        if (this.longs != null && index >= 0 && index < this.numbersLength) {
+            return this.longs[index];
+        }
         Object o = get(index);
         return o instanceof Number ?
                 ((Number)o).longValue() : (long)getDouble(index);
@@ -354,7 +559,7 @@ public class JSONArray implements Iterable<Object> {
             if (i > 0) {
                 sb.append(separator);
             }
-            sb.append(JSONObject.valueToString(this.myArrayList.get(i)));
+            sb.append(JSONObject.valueToString(opt(i)));
         }
         return sb.toString();
     }
@@ -366,7 +571,8 @@ public class JSONArray implements Iterable<Object> {
      * @return The length (or size).
      */
     public int length() {
-        return this.myArrayList.size();
+        return this.myArrayList != null ?
+            this.myArrayList.size() : this.numbersLength;
     }
 
 
@@ -377,8 +583,26 @@ public class JSONArray implements Iterable<Object> {
      *              object at that index.
      */
     public Object opt(int index) {
-        return (index < 0 || index >= length()) ?
-            null : this.myArrayList.get(index);
+        if (index < 0 || index >= length()) {
+            return null;
+        }
+        if (this.myArrayList != null) {
+            return this.myArrayList.get(index);
+        }
+        if (this.ints != null) {
+            return Integer.valueOf(this.ints[index]);
+        }
+        if (this.longs != null) {
+            long l = this.longs[index];
+            return l == (int)l ?
+                (Object)Integer.valueOf((int)l) : (Object)Long.valueOf(l);
+        }
+        if (this.integerDoubles != null && this.integerDoubles.get(index)) {
+            long l = (long)this.doubles[index];
+            return l == (int)l ?
+                (Object)Integer.valueOf((int)l) : (Object)Long.valueOf(l);
+        }
+        return Double.valueOf(this.doubles[index]);
     }
 
 
@@ -640,6 +864,7 @@ public class JSONArray implements Iterable<Object> {
      * @return this.
      */
     public JSONArray put(Object value) {
+        box();
         this.myArrayList.add(value);
         return this;
     }
@@ -754,6 +979,7 @@ public class JSONArray implements Iterable<Object> {
             throw new JSONException("JSONArray[" + index + "] not found.");
         }
         if (index < length()) {
+            box();
             this.myArrayList.set(index, value);
         } else {
             while (index != length()) {
@@ -773,6 +999,7 @@ public class JSONArray implements Iterable<Object> {
      */
     public Object remove(int index) {
     	Object o = opt(index);
+        box();
         this.myArrayList.remove(index);
         return o;
     }
@@ -853,7 +1080,7 @@ public class JSONArray implements Iterable<Object> {
         int i;
         StringBuffer sb = new StringBuffer("[");
         if (len == 1) {
-            sb.append(JSONObject.valueToString(this.myArrayList.get(0),
+            sb.append(JSONObject.valueToString(opt(0),
                     indentFactor, indent));
         } else {
             int newindent = indent + indentFactor;
@@ -865,7 +1092,7 @@ public class JSONArray implements Iterable<Object> {
                 for (int j = 0; j < newindent; j += 1) {
                     sb.append(' ');
                 }
-                sb.append(JSONObject.valueToString(this.myArrayList.get(i),
+                sb.append(JSONObject.valueToString(opt(i),
                         indentFactor, newindent));
             }
             sb.append('\n');
@@ -898,14 +1125,7 @@ public class JSONArray implements Iterable<Object> {
                 if (b) {
                     writer.write(',');
                 }
-                Object v = this.myArrayList.get(i);
-                if (v instanceof JSONObject) {
-                    ((JSONObject)v).write(writer);
-                } else if (v instanceof JSONArray) {
-                    ((JSONArray)v).write(writer);
-                } else {
-                    writer.write(JSONObject.valueToString(v));
-                }
+                JSONObject.writeValue(opt(i), writer);
                 b = true;
             }
             writer.write(']');
@@ -917,6 +1137,7 @@ public class JSONArray implements Iterable<Object> {
 
 	@Override
 	public Iterator<Object> iterator() {
+		box();
 		return this.myArrayList.iterator();
 	}
 }
\ No newline at end of file
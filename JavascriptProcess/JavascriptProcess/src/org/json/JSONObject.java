@@ -30,7 +30,6 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Method;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.TreeSet;
@@ -141,11 +140,98 @@ public class JSONObject {
     public static final Object NULL = new Null();
 
 
+    /**
+     * Keys that parsed JSONObjects share one String instance of, instead of
+     * allocating a new String for every occurrence. This is an open
+     * addressed hash table whose length is a power of two; it is replaced,
+     * never changed, when keys are added.
+     */
+    private static volatile String[] internedKeys = new String[0];
+
+
+    /**
+     * Add keys that occur in most of the JSON text that will be parsed,
+     * such as the names in a protocol, so that parsing doesn't allocate
+     * them.
+     * @param keys The keys.
+     */
+    public static synchronized void internKeys(String... keys) {
+        String[] old = internedKeys;
+        int count = keys.length;
+        for (int i = 0; i < old.length; i += 1) {
+            if (old[i] != null) {
+                count += 1;
+            }
+        }
+        int length = 16;
+        while (length < count * 2) {
+            length *= 2;
+        }
+        String[] table = new String[length];
+        for (int i = 0; i < old.length; i += 1) {
+            if (old[i] != null) {
+                addInternedKey(table, old[i]);
+            }
+        }
+        for (int i = 0; i < keys.length; i += 1) {
+            addInternedKey(table, keys[i]);
+        }
+        internedKeys = table;
+    }
+
+    private static void addInternedKey(String[] table, String key) {
+        int i = key.hashCode() & (table.length - 1);
+        while (table[i] != null) {
+            if (table[i].equals(key)) {
+                return;
+            }
+            i = (i + 1) & (table.length - 1);
+        }
+        table[i] = key;
+    }
+
+
+    /**
+     * Get a key as a String, using the shared instance if the key was
+     * interned with internKeys.
+     * @param text The key's characters.
+     * @return A String.
+     */
+    static String internKey(CharSequence text) {
+        String[] table = internedKeys;
+        if (table.length > 0) {
+            int len = text.length();
+            int hash = 0;
+            for (int i = 0; i < len; i += 1) {
+                hash = 31 * hash + text.charAt(i);
+            }
+            int i = hash & (table.length - 1);
+            String key;
+            while ((key = table[i]) != null) {
+                if (key.length() == len && contentEquals(key, text)) {
+                    return key;
+                }
+                i = (i + 1) & (table.length - 1);
+            }
+        }
+        return text.toString();
+    }
+
+    private static boolean contentEquals(String key, CharSequence text) {
+        for (int i = key.length() - 1; i >= 0; i -= 1) {
+            if (key.charAt(i) != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
     /**
      * Construct an empty JSONObject.
      */
     public JSONObject() {
-        this.map = new HashMap<String, Object>();
+        this.map = new CompactMap();
     }
 
 
@@ -192,7 +278,7 @@ public class JSONObject {
                 return;
             default:
                 x.back();
-                key = x.nextValue().toString();
+                key = x.nextKey();
             }
 
             /*
@@ -238,7 +324,7 @@ public class JSONObject {
      * @throws JSONException 
      */
     public JSONObject(Map<String, Object> map) {
-        this.map = new HashMap<String, Object>();
+        this.map = new CompactMap();
         if (map != null) {
             Iterator<Map.Entry<String, Object>> i = map.entrySet().iterator();
             while (i.hasNext()) {
@@ -1106,58 +1192,139 @@ public class JSONObject {
             return "\"\"";
         }
 
-        char         b;
-        char         c = 0;
-        int          i;
-        int          len = string.length();
-        StringBuffer sb = new StringBuffer(len + 4);
-        String       t;
+        int           len = string.length();
+        StringBuilder sb = new StringBuilder(len + 4);
+        int           runStart = 0;
+        char          b;
+        char          c = 0;
+        String        escape;
 
         sb.append('"');
-        for (i = 0; i < len; i += 1) {
+        for (int i = 0; i < len; i += 1) {
             b = c;
             c = string.charAt(i);
-            switch (c) {
-            case '\\':
-            case '"':
-                sb.append('\\');
-                sb.append(c);
-                break;
-            case '/':
-                if (b == '<') {
-                    sb.append('\\');
-                }
-                sb.append(c);
-                break;
-            case '\b':
-                sb.append("\\b");
-                break;
-            case '\t':
-                sb.append("\\t");
-                break;
-            case '\n':
-                sb.append("\\n");
-                break;
-            case '\f':
-                sb.append("\\f");
-                break;
-            case '\r':
-                sb.append("\\r");
-                break;
-            default:
-                if (c < ' ' || (c >= '\u0080' && c < '\u00a0') ||
-                               (c >= '\u2000' && c < '\u2100')) {
-                    t = "000" + Integer.toHexString(c);
-                    sb.append("\\u" + t.substring(t.length() - 4));
-                } else {
-                    sb.append(c);
-                }
+            escape = escape(b, c);
+            if (escape != null) {
+                sb.append(string, runStart, i);
+                sb.append(escape);
+                runStart = i + 1;
             }
         }
+        sb.append(string, runStart, len);
         sb.append('"');
         return sb.toString();
     }
 
+
+    /**
+     * Write a string in double quotes with backslash sequences in all the
+     * right places, the same as {@link #quote(String)}, without building
+     * an intermediate String. Runs of characters that don't need escaping
+     * are written to the writer in one call.
+     * @param string A String
+     * @param w The writer.
+     * @return The writer.
+     * @throws IOException
+     */
+    public static Writer quote(String string, Writer w) throws IOException {
+        if (string == null || string.length() == 0) {
+            w.write("\"\"");
+            return w;
+        }
+
+        int    len = string.length();
+        int    runStart = 0;
+        char   b;
+        char   c = 0;
+        String escape;
+
+        w.write('"');
+        for (int i = 0; i < len; i += 1) {
+            b = c;
+            c = string.charAt(i);
+            escape = escape(b, c);
+            if (escape != null) {
+                if (i > runStart) {
+                    w.write(string, runStart, i - runStart);
+                }
+                w.write(escape);
+                runStart = i + 1;
+            }
+        }
+        if (len > runStart) {
+            w.write(string, runStart, len - runStart);
+        }
+        w.write('"');
+        return w;
+    }
+
+
+    /**
+     * Escape sequences for the characters below 0x80, or null for the
+     * characters that are written as they are. '/' is handled separately,
+     * because it is only escaped after '<'.
+     */
+    private static final String[] ASCII_ESCAPES = new String[0x80];
+
+    /**
+     * Escape sequences for 0x80 through 0x9f.
+     */
+    private static final String[] C1_ESCAPES = new String[0x20];
+
+    /**
+     * Escape sequences for 0x2000 through 0x20ff.
+     */
+    private static final String[] GENERAL_PUNCTUATION_ESCAPES =
+            new String[0x100];
+
+    static {
+        for (char c = 0; c < ' '; c += 1) {
+            ASCII_ESCAPES[c] = unicodeEscape(c);
+        }
+        ASCII_ESCAPES['\b'] = "\\b";
+        ASCII_ESCAPES['\t'] = "\\t";
+        ASCII_ESCAPES['\n'] = "\\n";
+        ASCII_ESCAPES['\f'] = "\\f";
+        ASCII_ESCAPES['\r'] = "\\r";
+        ASCII_ESCAPES['"'] = "\\\"";
+        ASCII_ESCAPES['\\'] = "\\\\";
+
+        for (int i = 0; i < C1_ESCAPES.length; i += 1) {
+            C1_ESCAPES[i] = unicodeEscape((char)('\u0080' + i));
+        }
+        for (int i = 0; i < GENERAL_PUNCTUATION_ESCAPES.length; i += 1) {
+            GENERAL_PUNCTUATION_ESCAPES[i] =
+                    unicodeEscape((char)('\u2000' + i));
+        }
+    }
+
+    private static String unicodeEscape(char c) {
+        String t = "000" + Integer.toHexString(c);
+        return "\\u" + t.substring(t.length() - 4);
+    }
+
+    /**
+     * Get the escape sequence for a character in a quoted string.
+     * @param b The previous character.
+     * @param c The character.
+     * @return The escape sequence, or null if c is written as it is.
+     */
+    private static String escape(char b, char c) {
+        if (c < '\u0080') {
+            if (c == '/') {
+                return b == '<' ? "\\/" : null;
+            }
+            return ASCII_ESCAPES[c];
+        }
+        if (c < '\u00a0') {
+            return C1_ESCAPES[c - '\u0080'];
+        }
+        if (c >= '\u2000' && c < '\u2100') {
+            return GENERAL_PUNCTUATION_ESCAPES[c - '\u2000'];
+        }
+        return null;
+    }
+
     /**
      * Remove a name and its value, if present.
      * @param key The name to be removed.
@@ -1188,6 +1355,24 @@ public class JSONObject {
         if (s.equals("")) {
             return s;
         }
+
+        char b = s.charAt(0);
+
+        /*
+         * Plain decimal integers, by far the most common numbers, are
+         * converted without going through Long's parser or exceptions.
+         * Small values come from Integer's cache of boxes.
+         */
+        if ((b >= '0' && b <= '9') || b == '-') {
+            long l = parsePlainInteger(s);
+            if (l != NOT_A_PLAIN_INTEGER) {
+                if (l == (int)l) {
+                    return Integer.valueOf((int)l);
+                }
+                return Long.valueOf(l);
+            }
+        }
+
         if (s.equalsIgnoreCase("true")) {
             return Boolean.TRUE;
         }
@@ -1207,12 +1392,11 @@ public class JSONObject {
          * non-JSON forms as long as it accepts all correct JSON forms.
          */
 
-        char b = s.charAt(0);
         if ((b >= '0' && b <= '9') || b == '.' || b == '-' || b == '+') {
             if (b == '0' && s.length() > 2 &&
                         (s.charAt(1) == 'x' || s.charAt(1) == 'X')) {
                 try {
-                    return new Integer(Integer.parseInt(s.substring(2), 16));
+                    return Integer.valueOf(Integer.parseInt(s.substring(2), 16));
                 } catch (Exception ignore) {
                 }
             }
@@ -1220,11 +1404,11 @@ public class JSONObject {
                 if (s.indexOf('.') > -1 || s.indexOf('e') > -1 || s.indexOf('E') > -1) {
                     return Double.valueOf(s);
                 } else {
-                    Long myLong = new Long(s);
-                    if (myLong.longValue() == myLong.intValue()) {
-                        return new Integer(myLong.intValue());
+                    long myLong = Long.parseLong(s);
+                    if (myLong == (int)myLong) {
+                        return Integer.valueOf((int)myLong);
                     } else {
-                        return myLong;
+                        return Long.valueOf(myLong);
                     }
                 }
             }  catch (Exception ignore) {
@@ -1234,6 +1418,43 @@ public class JSONObject {
     }
 
 
+    /**
+     * Returned by parsePlainInteger for text that isn't a plain integer.
+     * No integer of 18 digits or fewer has this value.
+     */
+    static final long NOT_A_PLAIN_INTEGER = Long.MIN_VALUE;
+
+    /**
+     * Convert an optional '-' followed by 1 to 18 decimal digits to a long.
+     * 18 digits can't overflow, so anything longer is left to Long's
+     * parser.
+     * @param s A String.
+     * @return The value, or NOT_A_PLAIN_INTEGER.
+     */
+    static long parsePlainInteger(CharSequence s) {
+        int     len = s.length();
+        int     i = 0;
+        boolean negative = false;
+        long    l = 0;
+
+        if (len > 0 && s.charAt(0) == '-') {
+            negative = true;
+            i = 1;
+        }
+        if (len == i || len - i > 18) {
+            return NOT_A_PLAIN_INTEGER;
+        }
+        for (; i < len; i += 1) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return NOT_A_PLAIN_INTEGER;
+            }
+            l = l * 10 + (c - '0');
+        }
+        return negative ? -l : l;
+    }
+
+
     /**
      * Throw an exception if the object is an NaN or infinite number.
      * @param o The object to test.
@@ -1440,6 +1661,36 @@ public class JSONObject {
     }
 
 
+    /**
+     * Write a value as JSON text to a writer, the same as valueToString
+     * would make it. Strings, JSONObjects and JSONArrays are written
+     * without building a String.
+     * <p>
+     * Warning: This method assumes that the data structure is acyclical.
+     * @param value The value to be serialized.
+     * @param writer The writer.
+     * @return The writer.
+     * @throws JSONException If the value is or contains an invalid number.
+     */
+    public static Writer writeValue(Object value, Writer writer)
+            throws JSONException {
+        try {
+            if (value instanceof JSONObject) {
+                ((JSONObject)value).write(writer);
+            } else if (value instanceof JSONArray) {
+                ((JSONArray)value).write(writer);
+            } else if (value instanceof String) {
+                quote((String)value, writer);
+            } else {
+                writer.write(valueToString(value));
+            }
+            return writer;
+        } catch (IOException exception) {
+            throw new JSONException(exception);
+        }
+    }
+
+
     /**
      * Make a prettyprinted JSON text of an object value.
      * <p>
@@ -1562,16 +1813,9 @@ public class JSONObject {
                     writer.write(',');
                 }
                 Object k = keys.next();
-                writer.write(quote(k.toString()));
+                quote(k.toString(), writer);
                 writer.write(':');
-                Object v = this.map.get(k);
-                if (v instanceof JSONObject) {
-                    ((JSONObject)v).write(writer);
-                } else if (v instanceof JSONArray) {
-                    ((JSONArray)v).write(writer);
-                } else {
-                    writer.write(valueToString(v));
-                }
+                writeValue(this.map.get(k), writer);
                 b = true;
             }
             writer.write('}');
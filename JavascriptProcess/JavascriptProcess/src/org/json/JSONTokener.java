@@ -45,6 +45,8 @@ public class JSONTokener {
     private char 	previous;
     private Reader 	reader;
     private boolean usePrevious;
+    private final StringBuilder unquotedText = new StringBuilder();
+    private final StringBuilder stringText = new StringBuilder();
 
 
     /**
@@ -238,8 +240,34 @@ public class JSONTokener {
      * @throws JSONException Unterminated string.
      */
     public String nextString(char quote) throws JSONException {
+        return nextStringText(quote).toString();
+    }
+
+
+    /**
+     * Get the next value as a key. Quoted keys that were interned with
+     * JSONObject.internKeys are returned without allocating a String.
+     * @return A key.
+     * @throws JSONException
+     */
+    String nextKey() throws JSONException {
+        char c = nextClean();
+        if (c == '"' || c == '\'') {
+            return JSONObject.internKey(nextStringText(c));
+        }
+        back();
+        return nextValue().toString();
+    }
+
+
+    /**
+     * Accumulate the characters of a string, up to the close quote
+     * character. The buffer is reused by the next call.
+     */
+    private StringBuilder nextStringText(char quote) throws JSONException {
         char c;
-        StringBuffer sb = new StringBuffer();
+        StringBuilder sb = this.stringText;
+        sb.setLength(0);
         for (;;) {
             c = next();
             switch (c) {
@@ -280,7 +308,7 @@ public class JSONTokener {
                 break;
             default:
                 if (c == quote) {
-                    return sb.toString();
+                    return sb;
                 }
                 sb.append(c);
             }
@@ -341,7 +369,6 @@ public class JSONTokener {
      */
     public Object nextValue() throws JSONException {
         char c = nextClean();
-        String s;
 
         switch (c) {
             case '"':
@@ -365,14 +392,28 @@ public class JSONTokener {
          * formatting character.
          */
 
-        StringBuffer sb = new StringBuffer();
-        while (c >= ' ' && ",:]}/\\\"[{;=#".indexOf(c) < 0) {
-            sb.append(c);
-            c = next();
+        return unquotedTextToValue(nextUnquotedText(c));
+    }
+
+
+    /**
+     * Convert unquoted text from nextUnquotedText to a value.
+     */
+    Object unquotedTextToValue(StringBuilder sb) throws JSONException {
+
+        /*
+         * Plain integers are converted straight from the buffer, without
+         * making a String.
+         */
+        long l = JSONObject.parsePlainInteger(sb);
+        if (l != JSONObject.NOT_A_PLAIN_INTEGER) {
+            if (l == (int)l) {
+                return Integer.valueOf((int)l);
+            }
+            return Long.valueOf(l);
         }
-        back();
 
-        s = sb.toString().trim();
+        String s = sb.toString().trim();
         if (s.equals("")) {
             throw syntaxError("Missing value");
         }
@@ -380,6 +421,67 @@ public class JSONTokener {
     }
 
 
+    /**
+     * Get the next value as a double, without boxing it. This is for
+     * callers that know that the next value is a number, such as a
+     * numeric array.
+     *
+     * @return A double.
+     * @throws JSONException If the next value is not a number.
+     */
+    public double nextDouble() throws JSONException {
+        StringBuilder sb = nextUnquotedText(nextClean());
+
+        long l = JSONObject.parsePlainInteger(sb);
+        if (l != JSONObject.NOT_A_PLAIN_INTEGER) {
+            return l;
+        }
+
+        String s = sb.toString().trim();
+        char   b = s.length() > 0 ? s.charAt(0) : 0;
+        if ((b >= '0' && b <= '9') || b == '.' || b == '-' || b == '+') {
+            try {
+                return Double.parseDouble(s);
+            } catch (NumberFormatException ignore) {
+            }
+        }
+        throw syntaxError("Expected a number and instead saw '" + s + "'");
+    }
+
+
+    /**
+     * Accumulate characters, starting with c, until the end of the text
+     * or a formatting character. The buffer is reused by the next call.
+     */
+    StringBuilder nextUnquotedText(char c) throws JSONException {
+        StringBuilder sb = this.unquotedText;
+        sb.setLength(0);
+        while (c >= ' ' && !isDelimiter(c)) {
+            sb.append(c);
+            c = next();
+        }
+        back();
+        return sb;
+    }
+
+
+    /**
+     * The characters, besides controls, that end unquoted text.
+     */
+    private static final boolean[] DELIMITERS = new boolean[128];
+
+    static {
+        String delimiters = ",:]}/\\\"[{;=#";
+        for (int i = 0; i < delimiters.length(); i += 1) {
+            DELIMITERS[delimiters.charAt(i)] = true;
+        }
+    }
+
+    private static boolean isDelimiter(char c) {
+        return c < 128 && DELIMITERS[c];
+    }
+
+
     /**
      * Skip characters until the next character is the requested character.
      * If the requested character is not found, no characters are skipped.
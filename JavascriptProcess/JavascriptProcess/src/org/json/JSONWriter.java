@@ -208,7 +208,7 @@ public class JSONWriter {
                 if (this.comma) {
                     this.writer.write(',');
                 }
-                this.writer.write(JSONObject.quote(s));
+                JSONObject.quote(s, this.writer);
                 this.writer.write(':');
                 this.comma = false;
                 this.mode = 'o';
@@ -0,0 +1,105 @@
+package com.objectcloud.javascriptprocess;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+
+// Compares reading argument names from Rhino's metadata with the toSource() parsing that CreateScope used to do, for a scope
+// with many large functions.  Run with ./test/run.sh ArgumentNamesBenchmark
+public class ArgumentNamesBenchmark {
+
+	static final int NUM_FUNCTIONS = 200;
+	static final int STATEMENTS_PER_FUNCTION = 100;
+	static final int ROUNDS = 10;
+
+	public static void main(String[] args) {
+
+		Context context = Context.enter();
+
+		try {
+			Scriptable scope = context.initStandardObjects();
+			List<Function> functions = createFunctions(context, scope);
+
+			// Both ways must agree before their times mean anything
+			for (Function function : functions)
+				if (!getArgumentNamesFromSource(context, function).equals(ScopeWrapper.getArgumentNames(context, function))) {
+					System.out.println("The argument names from the metadata don't match the source");
+					System.exit(1);
+				}
+
+			for (int round = 0; round < ROUNDS; round++) {
+
+				long start = System.nanoTime();
+				int numNames = 0;
+
+				for (Function function : functions)
+					numNames += getArgumentNamesFromSource(context, function).size();
+
+				long sourceNanos = System.nanoTime() - start;
+
+				start = System.nanoTime();
+
+				for (Function function : functions)
+					numNames += ScopeWrapper.getArgumentNames(context, function).size();
+
+				long metadataNanos = System.nanoTime() - start;
+
+				System.out.println(String.format(
+						"round %d: toSource() %.1f us/function, metadata %.2f us/function (%d names)",
+						round,
+						sourceNanos / 1000.0 / functions.size(),
+						metadataNanos / 1000.0 / functions.size(),
+						numNames));
+			}
+
+		} finally {
+			Context.exit();
+		}
+	}
+
+	// Functions of STATEMENTS_PER_FUNCTION statements each, so that decompiling them costs what it does for real scripts
+	private static List<Function> createFunctions(Context context, Scriptable scope) {
+
+		StringBuilder script = new StringBuilder();
+
+		for (int functionCtr = 0; functionCtr < NUM_FUNCTIONS; functionCtr++) {
+			script.append("function f" + functionCtr + "(first, second, third) {\n");
+			script.append("var total = 0;\n");
+
+			for (int statementCtr = 0; statementCtr < STATEMENTS_PER_FUNCTION; statementCtr++)
+				script.append("if (first > " + statementCtr + ") { total += second * " + statementCtr + " + third.length; }\n");
+
+			script.append("return total;\n}\n");
+		}
+
+		context.evaluateString(scope, script.toString(), "<benchmark>", 1, null);
+
+		List<Function> functions = new ArrayList<Function>();
+
+		for (int functionCtr = 0; functionCtr < NUM_FUNCTIONS; functionCtr++)
+			functions.add((Function)scope.get("f" + functionCtr, scope));
+
+		return functions;
+	}
+
+	// What CreateScope did before argument names came from the metadata
+	private static List<String> getArgumentNamesFromSource(Context context, Function javascriptMethod) {
+
+		Function toSourceFunction = (Function)javascriptMethod.getPrototype().get("toSource", javascriptMethod);
+		String unbrokenArgs = (String)toSourceFunction.call(context, javascriptMethod, javascriptMethod, new Object[] { javascriptMethod });
+
+		unbrokenArgs = unbrokenArgs.substring(unbrokenArgs.indexOf('(') + 1);
+		unbrokenArgs = unbrokenArgs.substring(0, unbrokenArgs.indexOf(')'));
+
+		List<String> argumentNames = new ArrayList<String>();
+
+		if (unbrokenArgs.length() > 0)
+			for (String arg : unbrokenArgs.split(","))
+				argumentNames.add(arg.trim());
+
+		return argumentNames;
+	}
+}
@@ -0,0 +1,108 @@
+package com.objectcloud.javascriptprocess;
+
+import static com.objectcloud.javascriptprocess.PumpHarness.check;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.Random;
+
+// Times Base64's encoder and decoder against java.util.Base64 at 64 B, 4 KB and 4 MB, in MB/s of raw bytes, after checking that
+// they give the same results.  Run with ./test/run.sh Base64Benchmark
+// To compare with an earlier build of Base64, such as the one that worked 3 bytes at a time, pass its classes directory:
+//   java -cp <classpath> com.objectcloud.javascriptprocess.Base64Benchmark /path/to/earlier/classes
+public class Base64Benchmark {
+
+	static final int[] SIZES = { 64, 4 * 1024, 4 * 1024 * 1024 };
+
+	// About how many bytes are encoded or decoded for each timing
+	static final int BYTES = 256 * 1024 * 1024;
+
+	static final int ROUNDS = 3;
+
+	// Calls one implementation, so that each one is timed by the same loop
+	private interface Codec {
+		String name();
+		byte[] encode(byte[] source) throws Exception;
+		byte[] decode(byte[] encoded) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		Codec[] codecs = new Codec[args.length > 0 ? 3 : 2];
+
+		codecs[0] = new Codec() {
+			public String name() { return "Base64"; }
+			public byte[] encode(byte[] source) throws Exception { return Base64.encodeBytesToBytes(source, 0, source.length, Base64.NO_OPTIONS); }
+			public byte[] decode(byte[] encoded) throws Exception { return Base64.decode(encoded, 0, encoded.length, Base64.NO_OPTIONS); }
+		};
+
+		codecs[1] = new Codec() {
+			public String name() { return "java.util"; }
+			public byte[] encode(byte[] source) { return java.util.Base64.getEncoder().encode(source); }
+			public byte[] decode(byte[] encoded) { return java.util.Base64.getDecoder().decode(encoded); }
+		};
+
+		if (args.length > 0)
+			codecs[2] = loadEarlierBuild(args[0]);
+
+		Random random = new Random(5);
+
+		for (int size : SIZES) {
+
+			byte[] source = new byte[size];
+			random.nextBytes(source);
+
+			byte[] expected = java.util.Base64.getEncoder().encode(source);
+
+			for (Codec codec : codecs) {
+				check(Arrays.equals(expected, codec.encode(source)), codec.name() + " encoded " + size + " bytes differently");
+				check(Arrays.equals(source, codec.decode(expected)), codec.name() + " didn't decode " + size + " bytes");
+			}
+
+			int calls = Math.max(4, BYTES / size);
+
+			for (int round = 0; round < ROUNDS; round++) {
+				for (Codec codec : codecs) {
+
+					long start = System.nanoTime();
+					for (int ctr = 0; ctr < calls; ctr++)
+						codec.encode(source);
+					long encodeNanos = System.nanoTime() - start;
+
+					start = System.nanoTime();
+					for (int ctr = 0; ctr < calls; ctr++)
+						codec.decode(expected);
+					long decodeNanos = System.nanoTime() - start;
+
+					System.out.println(String.format("%-9s %8d bytes: encode %7.1f MB/s, decode %7.1f MB/s",
+							codec.name(), size, megabytesPerSecond(size, calls, encodeNanos), megabytesPerSecond(size, calls, decodeNanos)));
+				}
+
+				System.out.println();
+			}
+		}
+	}
+
+	private static double megabytesPerSecond(int size, int calls, long nanos) {
+		return (double)size * calls / (1024 * 1024) / (nanos / 1000000000.0);
+	}
+
+	// Loads Base64 from another build in its own class loader, so that it doesn't conflict with this build's
+	private static Codec loadEarlierBuild(String classesDirectory) throws Exception {
+
+		ClassLoader classLoader = new URLClassLoader(new URL[] { new File(classesDirectory).toURI().toURL() }, null);
+		Class<?> base64Class = classLoader.loadClass(Base64.class.getName());
+
+		final Method encode = base64Class.getMethod("encodeBytesToBytes", byte[].class, int.class, int.class, int.class);
+		final Method decode = base64Class.getMethod("decode", byte[].class, int.class, int.class, int.class);
+
+		return new Codec() {
+			public String name() { return "earlier"; }
+			public byte[] encode(byte[] source) throws Exception { return (byte[])encode.invoke(null, source, 0, source.length, Base64.NO_OPTIONS); }
+			public byte[] decode(byte[] encoded) throws Exception { return (byte[])decode.invoke(null, encoded, 0, encoded.length, Base64.NO_OPTIONS); }
+		};
+	}
+}
@@ -0,0 +1,106 @@
+package com.objectcloud.javascriptprocess;
+
+import static com.objectcloud.javascriptprocess.PumpHarness.check;
+
+import java.util.Random;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+// Compares RootScope's native btoa and atob with the keyStr/charAt Javascript that scripts used before, on binary strings of several
+// sizes; both must give the same results.  Run with ./test/run.sh Base64ScriptBenchmark
+public class Base64ScriptBenchmark {
+
+	static final int[] SIZES = { 64, 4096, 65536 };
+
+	// About how many bytes are encoded for each timing
+	static final int BYTES = 4 * 1024 * 1024;
+
+	static final String JAVASCRIPT_BASE64 =
+		"var keyStr = 'ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/=';\n" +
+		"function jsEncode(input) {\n" +
+		"  var output = '', i = 0;\n" +
+		"  while (i < input.length) {\n" +
+		"    var chr1 = input.charCodeAt(i++), chr2 = input.charCodeAt(i++), chr3 = input.charCodeAt(i++);\n" +
+		"    var enc1 = chr1 >> 2, enc2 = ((chr1 & 3) << 4) | (chr2 >> 4), enc3 = ((chr2 & 15) << 2) | (chr3 >> 6), enc4 = chr3 & 63;\n" +
+		"    if (isNaN(chr2)) { enc3 = enc4 = 64; } else if (isNaN(chr3)) { enc4 = 64; }\n" +
+		"    output = output + keyStr.charAt(enc1) + keyStr.charAt(enc2) + keyStr.charAt(enc3) + keyStr.charAt(enc4);\n" +
+		"  }\n" +
+		"  return output;\n" +
+		"}\n" +
+		"function jsDecode(input) {\n" +
+		"  var output = '', i = 0;\n" +
+		"  input = input.replace(/[^A-Za-z0-9\\+\\/\\=]/g, '');\n" +
+		"  while (i < input.length) {\n" +
+		"    var enc1 = keyStr.indexOf(input.charAt(i++)), enc2 = keyStr.indexOf(input.charAt(i++));\n" +
+		"    var enc3 = keyStr.indexOf(input.charAt(i++)), enc4 = keyStr.indexOf(input.charAt(i++));\n" +
+		"    output = output + String.fromCharCode((enc1 << 2) | (enc2 >> 4));\n" +
+		"    if (enc3 != 64) { output = output + String.fromCharCode(((enc2 & 15) << 4) | (enc3 >> 2)); }\n" +
+		"    if (enc4 != 64) { output = output + String.fromCharCode(((enc3 & 3) << 6) | enc4); }\n" +
+		"  }\n" +
+		"  return output;\n" +
+		"}\n";
+
+	public static void main(String[] args) {
+
+		Context context = Context.enter();
+
+		try {
+			// Set up the same way as the scopes that scripts run in
+			Scriptable scope = context.newObject(RootScope.getScope());
+			scope.setPrototype(RootScope.getScope());
+			scope.setParentScope(null);
+
+			context.evaluateString(scope, JAVASCRIPT_BASE64, "<benchmark>", 1, null);
+
+			Random random = new Random(4);
+
+			for (int size : SIZES) {
+
+				StringBuilder binary = new StringBuilder(size);
+				for (int ctr = 0; ctr < size; ctr++)
+					binary.append((char)random.nextInt(256));
+
+				Object[] arguments = new Object[] { binary.toString() };
+				int calls = Math.max(2, BYTES / size / (size > 4096 ? 64 : 8));
+
+				String jsEncoded = (String)time(context, scope, "jsEncode", arguments, calls);
+				String encoded = (String)time(context, scope, "btoa", arguments, calls);
+				check(jsEncoded.equals(encoded), "btoa and the Javascript encoder differ for " + size + " bytes");
+
+				Object[] encodedArguments = new Object[] { encoded };
+				check(binary.toString().equals(time(context, scope, "jsDecode", encodedArguments, calls)), "The Javascript decoder didn't round trip");
+				check(binary.toString().equals(time(context, scope, "atob", encodedArguments, calls)), "atob didn't round trip " + size + " bytes");
+
+				System.out.println();
+			}
+
+		} finally {
+			Context.exit();
+		}
+	}
+
+	private static Object time(Context context, Scriptable scope, String functionName, Object[] arguments, int calls) {
+
+		Function function = (Function)ScriptableObject.getProperty(scope, functionName);
+		Object result = null;
+
+		// Warms up the function, so the timing is closer to a long-running sub process
+		for (int ctr = 0; ctr < Math.min(calls, 10); ctr++)
+			result = function.call(context, scope, scope, arguments);
+
+		long start = System.nanoTime();
+
+		for (int ctr = 0; ctr < calls; ctr++)
+			result = function.call(context, scope, scope, arguments);
+
+		long nanos = System.nanoTime() - start;
+
+		System.out.println(String.format("%-8s %6d bytes: %10.1f us/call (%d calls)",
+				functionName, ((String)arguments[0]).length(), nanos / 1000.0 / calls, calls));
+
+		return result;
+	}
+}
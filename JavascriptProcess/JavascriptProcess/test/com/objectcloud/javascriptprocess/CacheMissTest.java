@@ -0,0 +1,58 @@
+package com.objectcloud.javascriptprocess;
+
+import static com.objectcloud.javascriptprocess.PumpHarness.check;
+
+import org.json.JSONObject;
+
+// When the parent process refers to a cached object that the sub process no longer has, the call is sent again with CacheMiss
+// The cache only holds one object here, so caching a second object evicts the first
+public class CacheMissTest {
+
+	public static void main(String[] args) throws Exception {
+
+		PumpHarness pump = new PumpHarness("-Dobjectcloud.objectcache.maxentries=1");
+
+		pump.send("{\"ParentScopeID\":1,\"ThreadID\":1,\"Data\":{\"Functions\":[\"aaa\"],\"Scripts\":[" +
+				JSONObject.quote("function get() { return aaa().x; }") + "]}}");
+		pump.receive("RespondCreateParentScope");
+
+		pump.send("{\"ParentScopeID\":1,\"ScopeID\":7,\"Command\":\"CreateScope\",\"ThreadID\":2,\"Data\":{}}");
+		pump.receive("RespondCreateScope");
+
+		// The object is sent once with its CacheID, and then only the CacheID is needed
+		check(1 == call(pump, "{\"Result\":{\"x\":1},\"CacheID\":5}", null), "The object wasn't returned");
+		check(1 == call(pump, "{\"CacheID\":5}", null), "The cached object wasn't used");
+
+		// Caching another object evicts the first, so referring to it again is a miss
+		check(2 == call(pump, "{\"Result\":{\"x\":2},\"CacheID\":6}", null), "The second object wasn't returned");
+		check(3 == call(pump, "{\"CacheID\":5}", "{\"Result\":{\"x\":3},\"CacheID\":5}"), "The evicted object wasn't sent again");
+
+		// An object that was never cached is a miss too
+		check(4 == call(pump, "{\"CacheID\":99}", "{\"Result\":{\"x\":4}}"), "The unknown object wasn't sent again");
+
+		pump.close();
+		System.out.println("ok");
+	}
+
+	// Calls get(), answering the parent function call with response; when onCacheMiss isn't null, the sub process must send the
+	// call again with CacheMiss, which is then answered with onCacheMiss
+	private static int call(PumpHarness pump, String response, String onCacheMiss) throws Exception {
+
+		pump.send("{\"ScopeID\":7,\"Command\":\"CallFunctionInScope\",\"ThreadID\":11,\"Data\":{\"FunctionName\":\"get\",\"Arguments\":[]}}");
+
+		check(!pump.receive("CallParentFunction").getJSONObject("Data").has("CacheMiss"), "The first call can't be a cache miss");
+		pump.send("{\"ScopeID\":7,\"Command\":\"RespondCallParentFunction\",\"ThreadID\":11,\"Data\":" + response + "}");
+
+		if (null != onCacheMiss) {
+			JSONObject retry = pump.receive("CallParentFunction").getJSONObject("Data");
+			check(new JSONObject(response).get("CacheID").equals(retry.opt("CacheMiss")), "Expected a CacheMiss, got " + retry);
+
+			pump.send("{\"ScopeID\":7,\"Command\":\"RespondCallParentFunction\",\"ThreadID\":11,\"Data\":" + onCacheMiss + "}");
+		}
+
+		JSONObject result = pump.receive("RespondCallFunctionInScope").getJSONObject("Data");
+		check(result.has("Result"), "The call failed: " + result);
+
+		return result.getInt("Result");
+	}
+}
@@ -0,0 +1,119 @@
+package com.objectcloud.javascriptprocess;
+
+import static com.objectcloud.javascriptprocess.PumpHarness.check;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+
+// Round trips org.json and Javascript values through MessagePack, directly and through the sub process
+public class MessagePackTest {
+
+	public static void main(String[] args) throws Exception {
+
+		roundTripsJSON();
+		packsJavascript();
+		roundTripsThroughSubProcess();
+
+		System.out.println("ok");
+	}
+
+	// Every size of string, integer and container that MessagePack has a different format for
+	private static void roundTripsJSON() throws Exception {
+
+		JSONObject value = new JSONObject();
+		value.put("empty", "");
+		value.put("unicode", "héllo 日本 😀");
+		value.put("str8", repeat('a', 200));
+		value.put("str16", repeat('b', 70000));
+		value.put("fixints", new JSONArray("[0,1,127,-1,-32]"));
+		value.put("ints", new JSONArray("[128,255,256,65535,65536,-33,-128,-129,-32768,-32769,2147483647,-2147483648]"));
+		value.put("longs", new JSONArray("[2147483648,-2147483649,9007199254740993,-9223372036854775808]"));
+		value.put("doubles", new JSONArray("[1.5,-0.25,1e300,2.0]"));
+		value.put("literals", new JSONArray("[true,false,null]"));
+		value.put("nested", new JSONObject("{\"a\":[{\"b\":[]},{}],\"c\":{\"d\":null}}"));
+
+		JSONArray array16 = new JSONArray();
+		for (int i = 0; i < 20; i++)
+			array16.put("item" + i);
+		value.put("array16", array16);
+
+		JSONObject map16 = new JSONObject();
+		for (int i = 0; i < 20; i++)
+			map16.put("key" + i, i);
+		value.put("map16", map16);
+
+		Object decoded = MessagePack.decode(MessagePack.encode(value));
+		check(value.toString().equals(decoded.toString()), "The JSON didn't round trip: " + decoded);
+	}
+
+	// Javascript values are packed the way JSON.stringify writes them; holes and undefined in arrays become nil
+	private static void packsJavascript() throws Exception {
+
+		Context context = Context.enter();
+
+		try {
+			Scriptable scope = context.initStandardObjects();
+
+			Object array = context.evaluateString(scope, "var x = [1,,3,undefined]; x[6] = 'z'; x", "<test>", 1, null);
+			Object decoded = MessagePack.decode(MessagePack.encode(new MessagePack.JavascriptValue(array)));
+			check("[1,null,3,null,null,null,\"z\"]".equals(decoded.toString()), "Array holes weren't packed as nil: " + decoded);
+
+			Object object = context.evaluateString(scope, "({ s: 'x', n: 1.5, i: 3, b: true, nil: null, u: undefined, a: [{ d: 1 }] })", "<test>", 1, null);
+			decoded = MessagePack.decode(MessagePack.encode(new MessagePack.JavascriptValue(object)));
+			check("{\"s\":\"x\",\"n\":1.5,\"i\":3,\"b\":true,\"nil\":null,\"a\":[{\"d\":1}]}".equals(decoded.toString()), "Not packed like JSON.stringify: " + decoded);
+
+			// And back to the same Javascript object, less the undefined property
+			scope.put("v", scope, MessagePack.toJavascript(context, scope, decoded));
+			Object described = context.evaluateString(scope, "v.s + v.n + v.i + v.b + v.nil + ('u' in v) + v.a[0].d", "<test>", 1, null);
+			check("x1.53truenullfalse1".equals(Context.toString(described)), "Not converted back to the same Javascript: " + described);
+
+		} finally {
+			Context.exit();
+		}
+	}
+
+	// A command whose Data is MessagePack gets its response as MessagePack too
+	private static void roundTripsThroughSubProcess() throws Exception {
+
+		PumpHarness pump = new PumpHarness();
+
+		pump.send("{\"ParentScopeID\":1,\"ThreadID\":1,\"Data\":{\"Functions\":[],\"Scripts\":[" +
+				JSONObject.quote("function echo(value) { return value; }") + "]}}");
+		pump.receive("RespondCreateParentScope");
+
+		pump.send("{\"ParentScopeID\":1,\"ScopeID\":7,\"Command\":\"CreateScope\",\"ThreadID\":2,\"Data\":{}}");
+		pump.receive("RespondCreateScope");
+
+		JSONObject argument = new JSONObject("{\"s\":\"héllo\",\"n\":[1,2.5,-3],\"o\":{\"t\":true,\"z\":null}}");
+
+		JSONObject data = new JSONObject();
+		data.put("FunctionName", "echo");
+		data.put("Arguments", new JSONArray().put(argument));
+
+		JSONObject command = new JSONObject();
+		command.put("ScopeID", 7);
+		command.put("Command", "CallFunctionInScope");
+		command.put("ThreadID", 11);
+		command.put("DataFormat", MessagePack.DATA_FORMAT);
+		command.put("Data", Base64.encodeBytes(MessagePack.encode(data)));
+		pump.send(command.toString());
+
+		JSONObject response = pump.receive("RespondCallFunctionInScope");
+		check(MessagePack.DATA_FORMAT.equals(response.optString("DataFormat")), "The response isn't MessagePack: " + response);
+
+		MessagePack.decodeData(response);
+		Object result = response.getJSONObject("Data").get("Result");
+		check(argument.toString().equals(result.toString()), "The sub process didn't echo the argument: " + result);
+
+		pump.close();
+	}
+
+	private static String repeat(char c, int count) {
+		StringBuilder builder = new StringBuilder(count);
+		for (int i = 0; i < count; i++)
+			builder.append(c);
+		return builder.toString();
+	}
+}
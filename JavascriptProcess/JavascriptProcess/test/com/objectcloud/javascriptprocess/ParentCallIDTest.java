@@ -0,0 +1,67 @@
+package com.objectcloud.javascriptprocess;
+
+import static com.objectcloud.javascriptprocess.PumpHarness.check;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+// Asynchronous calls to the parent process are matched to their responses by CallID, so the responses can come back in any order
+public class ParentCallIDTest {
+
+	public static void main(String[] args) throws Exception {
+
+		PumpHarness pump = new PumpHarness();
+
+		pump.send("{\"ParentScopeID\":1,\"ThreadID\":1,\"Data\":{\"Functions\":[\"aaa\"],\"Scripts\":[" +
+				JSONObject.quote(
+						"function both() { var a = callParentFunctionAsync('aaa', 1); var b = callParentFunctionAsync('aaa', 2); return [b.wait(), a.wait()]; }" +
+						"function once() { return aaa(3); }") +
+				"]}}");
+		pump.receive("RespondCreateParentScope");
+
+		pump.send("{\"ParentScopeID\":1,\"ScopeID\":7,\"Command\":\"CreateScope\",\"ThreadID\":2,\"Data\":{}}");
+		pump.receive("RespondCreateScope");
+
+		// Both calls are sent before either waits
+		pump.send("{\"ScopeID\":7,\"Command\":\"CallFunctionInScope\",\"ThreadID\":11,\"Data\":{\"FunctionName\":\"both\",\"Arguments\":[]}}");
+
+		JSONObject first = pump.receive("CallParentFunction").getJSONObject("Data");
+		JSONObject second = pump.receive("CallParentFunction").getJSONObject("Data");
+
+		check(first.has("CallID") && second.has("CallID"), "Asynchronous calls must have a CallID");
+		check(!first.get("CallID").equals(second.get("CallID")), "Each asynchronous call must have its own CallID");
+
+		// Responding in the opposite order must still give each call its own result
+		respond(pump, 11, second);
+		respond(pump, 11, first);
+
+		JSONArray results = pump.receive("RespondCallFunctionInScope").getJSONObject("Data").getJSONArray("Result");
+		check(20 == results.getInt(0) && 10 == results.getInt(1), "Responses went to the wrong calls: " + results);
+
+		// Synchronous calls don't need a CallID
+		pump.send("{\"ScopeID\":7,\"Command\":\"CallFunctionInScope\",\"ThreadID\":12,\"Data\":{\"FunctionName\":\"once\",\"Arguments\":[]}}");
+
+		JSONObject call = pump.receive("CallParentFunction").getJSONObject("Data");
+		check(!call.has("CallID"), "Synchronous calls shouldn't have a CallID");
+
+		respond(pump, 12, call);
+
+		JSONObject result = pump.receive("RespondCallFunctionInScope").getJSONObject("Data");
+		check(30 == result.getInt("Result"), "Wrong result for a synchronous call: " + result);
+
+		pump.close();
+		System.out.println("ok");
+	}
+
+	// The result is ten times the call's argument, so that the test can tell which call each result came from
+	private static void respond(PumpHarness pump, int threadID, JSONObject call) throws Exception {
+
+		JSONObject data = new JSONObject();
+		data.put("Result", call.getJSONArray("Arguments").getInt(0) * 10);
+
+		if (call.has("CallID"))
+			data.put("CallID", call.get("CallID"));
+
+		pump.send("{\"ScopeID\":7,\"Command\":\"RespondCallParentFunction\",\"ThreadID\":" + threadID + ",\"Data\":" + data + "}");
+	}
+}
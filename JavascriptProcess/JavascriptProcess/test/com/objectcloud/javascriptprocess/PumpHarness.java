@@ -0,0 +1,136 @@
+package com.objectcloud.javascriptprocess;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+// Runs IOPump in its own JVM, the way that the parent process does, so that tests can send it commands and read what it sends back
+// The JVM options are how tests set IOPump's limits, such as -Dobjectcloud.scope.maxlive=1
+// IOPump runs in a temporary directory, which is deleted on close(), so that the compiled Javascript it caches isn't left behind
+class PumpHarness {
+
+	static final long RECEIVE_TIMEOUT_SECONDS = 10;
+
+	PumpHarness(String... jvmOptions) throws IOException {
+
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+
+		for (String jvmOption : jvmOptions)
+			command.add(jvmOption);
+
+		// The class path is made absolute because IOPump runs in another directory
+		StringBuilder classPath = new StringBuilder();
+		for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+			if (classPath.length() > 0)
+				classPath.append(File.pathSeparator);
+
+			classPath.append(new File(entry).getAbsolutePath());
+		}
+
+		command.add("-cp");
+		command.add(classPath.toString());
+		command.add(IOPump.class.getName());
+
+		workingDirectory = Files.createTempDirectory("pumpharness").toFile();
+
+		ProcessBuilder processBuilder = new ProcessBuilder(command);
+		processBuilder.directory(workingDirectory);
+		processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+		process = processBuilder.start();
+
+		writer = new Utf8Writer(process.getOutputStream());
+
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+
+		Thread readerThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					String line;
+					while (null != (line = reader.readLine()))
+						received.add(new JSONObject(line));
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+
+		readerThread.setDaemon(true);
+		readerThread.start();
+	}
+
+	private final File workingDirectory;
+	private final Process process;
+	private final Writer writer;
+	private final BlockingQueue<JSONObject> received = new LinkedBlockingQueue<JSONObject>();
+
+	// Sends one command; the JSON is easier to read in tests than building JSONObjects
+	void send(String json) throws IOException {
+		writer.write(json);
+		writer.write('\n');
+		writer.flush();
+	}
+
+	// Returns the next command that IOPump sends
+	JSONObject receive() throws InterruptedException {
+
+		JSONObject inCommand = received.poll(RECEIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		check(null != inCommand, "Timed out waiting for the sub process");
+
+		return inCommand;
+	}
+
+	// Returns the next command with the name, skipping the others, such as ScopeEvicted, that can arrive at any time
+	// The skipped commands are only shown if the command never arrives
+	JSONObject receive(String commandName) throws InterruptedException {
+
+		List<JSONObject> skipped = new ArrayList<JSONObject>();
+
+		while (true) {
+			JSONObject inCommand = received.poll(RECEIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			check(null != inCommand, "Timed out waiting for " + commandName + " from the sub process; skipped " + skipped);
+
+			if (commandName.equals(inCommand.optString("Command")))
+				return inCommand;
+
+			skipped.add(inCommand);
+		}
+	}
+
+	// Ends the sub process the way that the parent process does
+	void close() throws IOException, InterruptedException {
+		send("{}");
+		process.waitFor();
+
+		delete(workingDirectory);
+	}
+
+	private static void delete(File file) throws IOException {
+
+		File[] children = file.listFiles();
+		if (null != children)
+			for (File child : children)
+				delete(child);
+
+		Files.delete(file.toPath());
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition) {
+			System.out.println("FAILED: " + message);
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package com.objectcloud.javascriptprocess;
+
+import static com.objectcloud.javascriptprocess.PumpHarness.check;
+
+import org.json.JSONObject;
+
+// Only one scope can be live here, so creating a second scope evicts the first
+// Commands for an evicted scope are answered with ScopeEvicted and the command's CallID, and CreateScope brings the scope back
+// Each scope has a getter that throws, which the size in ScopeEvicted must be measured without
+public class ScopeEvictionTest {
+
+	public static void main(String[] args) throws Exception {
+
+		PumpHarness pump = new PumpHarness("-Dobjectcloud.scope.maxlive=1");
+
+		pump.send("{\"ParentScopeID\":1,\"ThreadID\":1,\"Data\":{\"Functions\":[],\"Scripts\":[" +
+				JSONObject.quote("function g() { return 'g'; }") + "," +
+				JSONObject.quote("var trap = {}; trap.__defineGetter__('value', function() { throw 'The getter ran'; });") + "]}}");
+		pump.receive("RespondCreateParentScope");
+
+		pump.send("{\"ParentScopeID\":1,\"ScopeID\":7,\"Command\":\"CreateScope\",\"ThreadID\":2,\"Data\":{}}");
+		pump.receive("RespondCreateScope");
+
+		pump.send("{\"ParentScopeID\":1,\"ScopeID\":8,\"Command\":\"CreateScope\",\"ThreadID\":3,\"Data\":{}}");
+
+		JSONObject evicted = pump.receive("ScopeEvicted");
+		check(7 == evicted.getInt("ScopeID"), "The wrong scope was evicted: " + evicted);
+		check("Capacity".equals(evicted.getJSONObject("Data").optString("Reason")), "Wrong reason: " + evicted);
+
+		// Measuring the scope mustn't run its getters
+		check(evicted.getJSONObject("Data").getLong("EstimatedSize") > 0, "The scope wasn't measured: " + evicted);
+
+		// The response must say why, and carry the CallID so that the parent process can match it to the call
+		pump.send("{\"ScopeID\":7,\"Command\":\"CallFunctionInScope\",\"ThreadID\":11,\"Data\":{\"FunctionName\":\"g\",\"Arguments\":[],\"CallID\":5}}");
+
+		JSONObject response = pump.receive("RespondCallFunctionInScope");
+		JSONObject data = response.getJSONObject("Data");
+		check(7 == response.getInt("ScopeID") && 11 == response.getInt("ThreadID"), "The response went to the wrong call: " + response);
+		check("Capacity".equals(data.optString("ScopeEvicted")), "The response doesn't say that the scope was evicted: " + data);
+		check(5 == data.optInt("CallID"), "The response doesn't have the CallID: " + data);
+
+		// A scope that never existed isn't reported as evicted
+		pump.send("{\"ScopeID\":9,\"Command\":\"CallFunctionInScope\",\"ThreadID\":12,\"Data\":{\"FunctionName\":\"g\",\"Arguments\":[]}}");
+
+		data = pump.receive("RespondCallFunctionInScope").getJSONObject("Data");
+		check(data.has("Exception") && !data.has("ScopeEvicted"), "An unknown scope was reported as evicted: " + data);
+
+		// Creating the scope again makes it usable
+		pump.send("{\"ParentScopeID\":1,\"ScopeID\":7,\"Command\":\"CreateScope\",\"ThreadID\":2,\"Data\":{}}");
+		pump.receive("RespondCreateScope");
+
+		pump.send("{\"ScopeID\":7,\"Command\":\"CallFunctionInScope\",\"ThreadID\":11,\"Data\":{\"FunctionName\":\"g\",\"Arguments\":[]}}");
+
+		data = pump.receive("RespondCallFunctionInScope").getJSONObject("Data");
+		check("g".equals(data.opt("Result")), "The recreated scope didn't work: " + data);
+
+		pump.close();
+		System.out.println("ok");
+	}
+}
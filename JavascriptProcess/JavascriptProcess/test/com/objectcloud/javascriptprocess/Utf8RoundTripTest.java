@@ -0,0 +1,102 @@
+package com.objectcloud.javascriptprocess;
+
+import static com.objectcloud.javascriptprocess.PumpHarness.check;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Random;
+
+// Utf8Writer and Utf8Reader must give the same results as the JDK's UTF-8 writer and reader, no matter how the text is split up
+// between calls; the strings mix ASCII with two, three and four byte characters, lone surrogates, and characters that JSON escapes
+public class Utf8RoundTripTest {
+
+	static final char[] CHARS = { 'a', 'b', '"', '\n', 'é', '日', (char)0xd83d, (char)0xde00 };
+
+	public static void main(String[] args) throws Exception {
+
+		Random random = new Random(3);
+
+		for (int test = 0; test < 100000; test++)
+			roundTrip(random, randomString(random));
+
+		// Long runs of ASCII go through the bulk copies
+		for (int test = 0; test < 100; test++)
+			roundTrip(random, randomString(random) + new String(new char[10000]).replace('\0', 'x') + randomString(random));
+
+		for (int test = 0; test < 100000; test++)
+			readsMalformed(random);
+
+		System.out.println("ok");
+	}
+
+	private static String randomString(Random random) {
+
+		StringBuilder builder = new StringBuilder();
+		int length = random.nextInt(30);
+
+		for (int charCtr = 0; charCtr < length; charCtr++)
+			builder.append(CHARS[random.nextInt(CHARS.length)]);
+
+		return builder.toString();
+	}
+
+	private static void roundTrip(Random random, String string) throws Exception {
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		Writer jdkWriter = new OutputStreamWriter(expected, "UTF-8");
+		jdkWriter.write(string);
+		jdkWriter.flush();
+
+		// The string is written in two parts, one as a String and the other as a char[], so that surrogate pairs get split
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		Writer writer = new Utf8Writer(written);
+		int cut = random.nextInt(string.length() + 1);
+
+		if (random.nextBoolean()) {
+			writer.write(string, 0, cut);
+			writer.write(string.toCharArray(), cut, string.length() - cut);
+		} else {
+			writer.write(string.toCharArray(), 0, cut);
+			writer.write(string.substring(cut));
+		}
+
+		writer.flush();
+
+		check(Arrays.equals(expected.toByteArray(), written.toByteArray()), "Utf8Writer wrote " + Arrays.toString(string.toCharArray()) + " differently");
+
+		check(new String(expected.toByteArray(), "UTF-8").equals(read(random, new Utf8Reader(new ByteArrayInputStream(written.toByteArray())))),
+				"Utf8Reader read " + Arrays.toString(string.toCharArray()) + " differently");
+	}
+
+	// Malformed bytes must become the same U+FFFDs that InputStreamReader gives
+	private static void readsMalformed(Random random) throws Exception {
+
+		byte[] bytes = new byte[random.nextInt(20)];
+
+		for (int byteCtr = 0; byteCtr < bytes.length; byteCtr++)
+			bytes[byteCtr] = random.nextBoolean() ? (byte)('a' + random.nextInt(26)) : (byte)(0x80 + random.nextInt(0x80));
+
+		String expected = read(random, new InputStreamReader(new ByteArrayInputStream(bytes), "UTF-8"));
+		String actual = read(random, new Utf8Reader(new ByteArrayInputStream(bytes)));
+
+		check(expected.equals(actual), "Utf8Reader read " + Arrays.toString(bytes) + " as " + actual + " instead of " + expected);
+	}
+
+	// Reads with a small buffer, so that characters are split between reads
+	private static String read(Random random, Reader reader) throws Exception {
+
+		StringBuilder builder = new StringBuilder();
+		char[] buffer = new char[1 + random.nextInt(5)];
+		int read;
+
+		while ((read = reader.read(buffer, 0, buffer.length)) > 0)
+			builder.append(buffer, 0, read);
+
+		return builder.toString();
+	}
+}
@@ -0,0 +1,110 @@
+package org.json;
+
+import java.io.StringWriter;
+import java.util.Iterator;
+
+/**
+ * Parsed arrays of numbers are kept unboxed, but must behave exactly like
+ * boxed arrays: the same values, of the same types, and the same text.
+ */
+public class NumericJSONArrayTest {
+
+    public static void main(String[] args) throws Exception {
+
+        // The text, what it writes back as, whether it stays unboxed, and
+        // the type of each element
+        check("[]", "[]", false, "");
+        check("[1,2,3]", "[1,2,3]", true, "III");
+        check("[1,3000000000,-4]", "[1,3000000000,-4]", true, "ILI");
+        check("[3000000000,1]", "[3000000000,1]", true, "LI");
+        check("[1.5,2.5]", "[1.5,2.5]", true, "DD");
+        check("[-0,-1.0]", "[0,-1]", true, "ID");
+        check("[1e3,2]", "[1000,2]", true, "DI");
+
+        // Integers mixed with doubles, such as the 1 that .NET writes for
+        // 1.0, stay unboxed and keep their types
+        check("[1,2.5,3]", "[1,2.5,3]", true, "IDI");
+        check("[2.5,1,3]", "[2.5,1,3]", true, "DII");
+        check("[1,5000000000,2.5]", "[1,5000000000,2.5]", true, "ILD");
+
+        // A double can't hold every long, so those arrays are boxed
+        check("[1,9007199254740993,2.5]", "[1,9007199254740993,2.5]", false, "ILD");
+        check("[2.5,9007199254740993]", "[2.5,9007199254740993]", false, "DL");
+
+        // Anything that isn't a number boxes the array
+        check("[1,\"a\"]", "[1,\"a\"]", false, "IS");
+        check("[1,null,2]", "[1,null,2]", false, "INI");
+        check("[1,[2,3]]", "[1,[2,3]]", false, "IA");
+
+        // The typed getters read the numbers without boxing them
+        JSONArray mixed = new JSONArray("[1,2.5,3000000000]");
+        assertTrue(mixed.getInt(0) == 1 && mixed.getDouble(1) == 2.5 &&
+            mixed.getLong(2) == 3000000000L && mixed.getInt(1) == 2,
+            "Wrong typed values from " + mixed);
+
+        // Changing a numeric array boxes it without losing anything
+        JSONArray array = new JSONArray("[5,6.5,7]");
+        array.put("x");
+        assertTrue("[5,6.5,7,\"x\"]".equals(array.toString()) &&
+            !array.isNumeric(), "put() lost numbers: " + array);
+
+        array = new JSONArray("[5,6,7]");
+        array.remove(1);
+        assertTrue("[5,7]".equals(array.toString()),
+            "remove() lost numbers: " + array);
+
+        array = new JSONArray("[5,6.5,7]");
+        array.put(1, 8);
+        assertTrue("[5,8,7]".equals(array.toString()),
+            "put(index) lost numbers: " + array);
+
+        System.out.println("ok");
+    }
+
+    private static void check(String text, String expected, boolean numeric,
+            String types) throws Exception {
+
+        JSONArray array = new JSONArray(text);
+
+        assertTrue(expected.equals(array.toString()),
+            text + " was written as " + array);
+        assertTrue(numeric == array.isNumeric(), text +
+            (numeric ? " should" : " shouldn't") + " be numeric");
+        assertTrue(types.equals(types(array)),
+            text + " has the types " + types(array) + " instead of " + types);
+
+        StringWriter writer = new StringWriter();
+        array.write(writer);
+        assertTrue(expected.equals(writer.toString()),
+            text + " was written to a Writer as " + writer);
+
+        // The iterator must give the same values as opt()
+        int index = 0;
+        for (Iterator<Object> values = array.iterator(); values.hasNext();
+                index += 1) {
+            assertTrue(values.next().equals(array.opt(index)),
+                text + " iterates differently at " + index);
+        }
+    }
+
+    private static String types(JSONArray array) {
+        StringBuilder types = new StringBuilder();
+        for (int i = 0; i < array.length(); i += 1) {
+            Object value = array.opt(i);
+            types.append(value instanceof Integer ? 'I' :
+                value instanceof Long ? 'L' :
+                value instanceof Double ? 'D' :
+                value instanceof String ? 'S' :
+                value instanceof JSONArray ? 'A' :
+                value == JSONObject.NULL ? 'N' : '?');
+        }
+        return types.toString();
+    }
+
+    private static void assertTrue(boolean condition, String message) {
+        if (!condition) {
+            System.out.println("FAILED: " + message);
+            System.exit(1);
+        }
+    }
+}
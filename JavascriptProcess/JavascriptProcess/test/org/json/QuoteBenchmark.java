@@ -0,0 +1,193 @@
+package org.json;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * Compares JSONObject.quote with the quoting that it replaced, first for
+ * identical output on random strings and then for speed on the kinds of
+ * strings that the sub process sends. Run with
+ * ./test/run.sh QuoteBenchmark
+ */
+public class QuoteBenchmark {
+
+    /**
+     * About how many chars are quoted for each timing, so that short and
+     * long strings take about as long.
+     */
+    private static final int CHARS = 20000000;
+
+    public static void main(String[] args) throws IOException {
+        checkOutput();
+
+        StringBuilder ascii = new StringBuilder();
+        while (ascii.length() < 10000) {
+            ascii.append("The quick brown fox jumps over the lazy dog. ");
+        }
+
+        String[][] payloads = {
+            { "key", "FunctionName" },
+            { "value", "Hello world, this is an ordinary string value " +
+                "with a \"quote\" and a newline\n in it" },
+            { "10k ASCII", ascii.toString() },
+            { "HTML", "<div class=\"a\"><a href=\"/b\">c</a></div>\r\n" +
+                "<script>var d = '</script>';</script>" },
+            { "escapes", "\t\u0001\u0002\u001f\b\f\u0085\u2028\u2029" },
+            { "non-ASCII", "Grüße aus Köln, 日本語のテキスト, 😀 emoji" }
+        };
+
+        for (int round = 0; round < 3; round += 1) {
+            for (int i = 0; i < payloads.length; i += 1) {
+                time(payloads[i][0], payloads[i][1]);
+            }
+            System.out.println();
+        }
+    }
+
+    /**
+     * The new quoting must give exactly what the old one did.
+     */
+    private static void checkOutput() throws IOException {
+        Random random = new Random(1);
+        char[] pool = ("ab</\"\\\n\r\t\b\f\u0001\u001f\u0080\u009f\u00a0" +
+            "\u1fff\u2000\u20ff\u2100\u00e9\ud83d\ude00").toCharArray();
+
+        for (int test = 0; test < 200000; test += 1) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(20);
+            for (int i = 0; i < length; i += 1) {
+                sb.append(pool[random.nextInt(pool.length)]);
+            }
+            String string = sb.toString();
+
+            String expected = oldQuote(string);
+            StringWriter writer = new StringWriter();
+            JSONObject.quote(string, writer);
+
+            if (!expected.equals(JSONObject.quote(string)) ||
+                    !expected.equals(writer.toString())) {
+                System.out.println("FAILED: " + expected + " was quoted as " +
+                    JSONObject.quote(string) + " and " + writer);
+                System.exit(1);
+            }
+        }
+    }
+
+    private static void time(String name, String string) throws IOException {
+        int calls = Math.max(1000, CHARS / (string.length() + 10));
+        int length = 0;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < calls; i += 1) {
+            length += oldQuote(string).length();
+        }
+        long oldNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < calls; i += 1) {
+            length += JSONObject.quote(string).length();
+        }
+        long newNanos = System.nanoTime() - start;
+
+        // Writing to a Writer skips the String, as the protocol writer does
+        Writer writer = new NullWriter();
+        start = System.nanoTime();
+        for (int i = 0; i < calls; i += 1) {
+            JSONObject.quote(string, writer);
+        }
+        long writerNanos = System.nanoTime() - start;
+
+        System.out.println(String.format(
+            "%-10s old %8.1f ns, new %8.1f ns, to a Writer %8.1f ns (%d)",
+            name, (double)oldNanos / calls, (double)newNanos / calls,
+            (double)writerNanos / calls, length));
+    }
+
+    /**
+     * Counts what's written, so that writing costs almost nothing.
+     */
+    private static class NullWriter extends Writer {
+        long count;
+
+        public void write(char[] cbuf, int off, int len) {
+            this.count += len;
+        }
+
+        public void write(String str, int off, int len) {
+            this.count += len;
+        }
+
+        public void write(int c) {
+            this.count += 1;
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+    }
+
+
+    /**
+     * JSONObject.quote as it was before it copied unescaped runs in bulk.
+     */
+    static String oldQuote(String string) {
+        if (string == null || string.length() == 0) {
+            return "\"\"";
+        }
+
+        char         b;
+        char         c = 0;
+        int          i;
+        int          len = string.length();
+        StringBuffer sb = new StringBuffer(len + 4);
+        String       t;
+
+        sb.append('"');
+        for (i = 0; i < len; i += 1) {
+            b = c;
+            c = string.charAt(i);
+            switch (c) {
+            case '\\':
+            case '"':
+                sb.append('\\');
+                sb.append(c);
+                break;
+            case '/':
+                if (b == '<') {
+                    sb.append('\\');
+                }
+                sb.append(c);
+                break;
+            case '\b':
+                sb.append("\\b");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\f':
+                sb.append("\\f");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            default:
+                if (c < ' ' || (c >= '\u0080' && c < '\u00a0') ||
+                               (c >= '\u2000' && c < '\u2100')) {
+                    t = "000" + Integer.toHexString(c);
+                    sb.append("\\u" + t.substring(t.length() - 4));
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        sb.append('"');
+        return sb.toString();
+    }
+}
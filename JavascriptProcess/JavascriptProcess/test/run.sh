@@ -0,0 +1,40 @@
+#!/bin/bash
+
+# Compiles the sub process with its tests and runs every *Test class, or runs the named test and benchmark classes:
+#   ./test/run.sh
+#   ./test/run.sh ArgumentNamesBenchmark QuoteBenchmark
+# Each class has a main method and exits with a non-zero status when a check fails
+
+cd "$(dirname "$0")/.."
+
+OUT=$(mktemp -d)
+trap 'rm -rf "$OUT"' EXIT
+
+CLASSPATH="$OUT:../js.jar:Classes"
+
+javac -nowarn -encoding UTF-8 -cp "$CLASSPATH" -d "$OUT" $(find src test -name '*.java') || exit 1
+
+if [ $# -eq 0 ]; then
+	NAMES=$(find test -name '*Test.java' -exec basename {} .java \; | sort)
+else
+	NAMES="$@"
+fi
+
+FAILED=0
+
+for NAME in $NAMES; do
+	SOURCE=$(find test -name "$NAME.java" | head -n 1)
+
+	if [ -z "$SOURCE" ]; then
+		echo "No test named $NAME"
+		FAILED=1
+		continue
+	fi
+
+	CLASS=$(echo "${SOURCE#test/}" | sed -e 's/\.java$//' -e 's/\//./g')
+
+	echo "== $CLASS"
+	java -cp "$CLASSPATH" "$CLASS" || FAILED=1
+done
+
+exit $FAILED
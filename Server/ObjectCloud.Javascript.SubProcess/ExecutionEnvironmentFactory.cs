@@ -48,7 +48,7 @@ namespace ObjectCloud.Javascript.SubProcess
                 {
                     ParentScopeFactories.Enqueue(new ParentScopeFactory(
                         FileHandlerFactoryLocator,
-                        new SubProcess(FileHandlerFactoryLocator)));
+                        CreateSubProcess()));
                 });
         }
 
@@ -62,6 +62,42 @@ namespace ObjectCloud.Javascript.SubProcess
         }
         private int _NumSubProcesses = 2;
 
+        /// <summary>
+        /// The number of sub processes that share each Java process as channels.  When more than 1, the sub processes share the
+        /// compiled Javascript and the JIT-compiled code of their Java process
+        /// </summary>
+        public int ChannelsPerSubProcess
+        {
+            get { return _ChannelsPerSubProcess; }
+            set { _ChannelsPerSubProcess = value; }
+        }
+        private int _ChannelsPerSubProcess = 1;
+
+        /// <summary>
+        /// The multiplexed sub process that new channels are opened on
+        /// </summary>
+        private SubProcess MultiplexedSubProcess = null;
+        private object MultiplexedSubProcessKey = new object();
+
+        /// <summary>
+        /// Starts a sub process, or when ChannelsPerSubProcess is more than 1, opens a channel on a Java process that has room for one
+        /// </summary>
+        /// <returns></returns>
+        private SubProcess CreateSubProcess()
+        {
+            if (ChannelsPerSubProcess <= 1)
+                return new SubProcess(FileHandlerFactoryLocator);
+
+            lock (MultiplexedSubProcessKey)
+            {
+                if ((null != MultiplexedSubProcess) && MultiplexedSubProcess.Alive && (MultiplexedSubProcess.NumChannels < ChannelsPerSubProcess))
+                    return MultiplexedSubProcess.OpenChannel();
+
+                MultiplexedSubProcess = new SubProcess(FileHandlerFactoryLocator, true);
+                return MultiplexedSubProcess;
+            }
+        }
+
         private LockFreeQueue<ParentScopeFactory> ParentScopeFactories = new LockFreeQueue<ParentScopeFactory>();
 
         /// <summary>
@@ -76,13 +112,24 @@ namespace ObjectCloud.Javascript.SubProcess
 
             while ((!ParentScopeFactories.Dequeue(out parentScopeFactory)) && (DateTime.UtcNow < timeout));
 
+            // Skip over sub processes that say they're busy, unless they all are
+            for (int ctr = 1; (null != parentScopeFactory) && parentScopeFactory.SubProcess.Busy && (ctr < NumSubProcesses); ctr++)
+            {
+                ParentScopeFactory nextParentScopeFactory;
+                if (!ParentScopeFactories.Dequeue(out nextParentScopeFactory))
+                    break;
+
+                ParentScopeFactories.Enqueue(parentScopeFactory);
+                parentScopeFactory = nextParentScopeFactory;
+            }
+
             // if spinning occurs for too long, then a new sub process is created
             if (null == parentScopeFactory)
-                parentScopeFactory = new ParentScopeFactory(FileHandlerFactoryLocator, new SubProcess(FileHandlerFactoryLocator));
+                parentScopeFactory = new ParentScopeFactory(FileHandlerFactoryLocator, CreateSubProcess());
 
             // If the process died, restart it
             if (!parentScopeFactory.SubProcess.Alive)
-                parentScopeFactory = new ParentScopeFactory(FileHandlerFactoryLocator, new SubProcess(FileHandlerFactoryLocator));
+                parentScopeFactory = new ParentScopeFactory(FileHandlerFactoryLocator, CreateSubProcess());
 
             ParentScopeFactories.Enqueue(parentScopeFactory);
 
@@ -334,7 +334,8 @@ namespace ObjectCloud.Javascript.SubProcess
             if (ScopeWrapper.Disposed)
                 throw new ObjectDisposedException(FileContainer.FullPath + "'s javascript scope is disposed");
 			
-			if (!ScopeWrapper.SubProcess.Alive)
+			// If the sub process is gone or it evicted the scope, the scope has to be re-created
+			if ((!ScopeWrapper.SubProcess.Alive) || ScopeWrapper.Evicted)
 			{
 				FileContainer.WebHandler.ResetExecutionEnvironment();
 				
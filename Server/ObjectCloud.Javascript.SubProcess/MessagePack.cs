@@ -0,0 +1,338 @@
+// Copyright 2009 - 2012 Andrew Rondeau
+// This code is released under the Simple Public License (SimPL) 2.0.  Some additional privelages are granted.
+// For more information, see either DefaultFiles/Docs/license.wchtml or /Docs/license.wchtml
+
+using System;
+using System.Collections;
+using System.Collections.Generic;
+using System.IO;
+using System.Text;
+
+using JsonFx.Json;
+
+namespace ObjectCloud.Javascript.SubProcess
+{
+    /// <summary>
+    /// Encodes and decodes command Data as MessagePack, so that numbers don't go through decimal text and strings aren't escaped.
+    /// Decoded values are the same types that JsonReader returns: Dictionary&lt;string, object&gt;, object[], string, int, long,
+    /// double, bool and null
+    /// </summary>
+    public static class MessagePack
+    {
+        /// <summary>
+        /// The value of DataFormat on commands whose Data is Base64-encoded MessagePack
+        /// </summary>
+        public const string DataFormat = "MessagePack";
+
+        /// <summary>
+        /// Encodes the value.  Types that MessagePack doesn't know about are encoded as JsonWriter would serialize them
+        /// </summary>
+        /// <param name="value"></param>
+        /// <returns></returns>
+        public static byte[] Encode(object value)
+        {
+            using (MemoryStream stream = new MemoryStream())
+            {
+                Pack(stream, value);
+                return stream.ToArray();
+            }
+        }
+
+        /// <summary>
+        /// Decodes the value
+        /// </summary>
+        /// <param name="bytes"></param>
+        /// <returns></returns>
+        public static object Decode(byte[] bytes)
+        {
+            int position = 0;
+            object toReturn = Unpack(bytes, ref position);
+
+            if (position != bytes.Length)
+                throw new JavascriptException("Unexpected bytes after the MessagePack value");
+
+            return toReturn;
+        }
+
+        private static void Pack(Stream stream, object value)
+        {
+            if (null == value)
+                stream.WriteByte(0xc0);
+
+            else if (value is bool)
+                stream.WriteByte(((bool)value) ? (byte)0xc3 : (byte)0xc2);
+
+            else if (value is string)
+                PackString(stream, (string)value);
+
+            else if ((value is int) || (value is long) || (value is short) || (value is sbyte) || (value is byte) || (value is ushort) || (value is uint))
+                PackLong(stream, Convert.ToInt64(value));
+
+            else if ((value is double) || (value is float) || (value is decimal) || (value is ulong))
+                PackDouble(stream, Convert.ToDouble(value));
+
+            else if (value is IDictionary<string, object>)
+            {
+                IDictionary<string, object> dictionary = (IDictionary<string, object>)value;
+
+                PackHeader(stream, dictionary.Count, 0x80, 0xde, 0xdf);
+
+                foreach (KeyValuePair<string, object> kvp in dictionary)
+                {
+                    PackString(stream, kvp.Key);
+                    Pack(stream, kvp.Value);
+                }
+            }
+
+            else if (value is IDictionary)
+            {
+                IDictionary dictionary = (IDictionary)value;
+
+                PackHeader(stream, dictionary.Count, 0x80, 0xde, 0xdf);
+
+                foreach (DictionaryEntry entry in dictionary)
+                {
+                    PackString(stream, entry.Key.ToString());
+                    Pack(stream, entry.Value);
+                }
+            }
+
+            else if (value is IEnumerable)
+            {
+                List<object> items = new List<object>();
+                foreach (object item in (IEnumerable)value)
+                    items.Add(item);
+
+                PackHeader(stream, items.Count, 0x90, 0xdc, 0xdd);
+
+                foreach (object item in items)
+                    Pack(stream, item);
+            }
+
+            // Anything else is sent the same way that JsonWriter would send it
+            else
+            {
+                object jsoned = JsonReader.Deserialize<object>(JsonWriter.Serialize(value));
+
+                if ((null != jsoned) && (jsoned.GetType() == value.GetType()))
+                    PackString(stream, value.ToString());
+                else
+                    Pack(stream, jsoned);
+            }
+        }
+
+        private static void PackLong(Stream stream, long value)
+        {
+            if ((value >= -32) && (value <= 127))
+                stream.WriteByte((byte)value);
+
+            else if ((value >= int.MinValue) && (value <= int.MaxValue))
+            {
+                stream.WriteByte(0xd2);
+                WriteBigEndian(stream, value, 4);
+            }
+
+            else
+            {
+                stream.WriteByte(0xd3);
+                WriteBigEndian(stream, value, 8);
+            }
+        }
+
+        private static void PackDouble(Stream stream, double value)
+        {
+            // Whole numbers are sent as integers, because that's how JsonWriter writes them
+            if ((value == Math.Floor(value)) && (Math.Abs(value) < 9007199254740992d))
+                PackLong(stream, (long)value);
+
+            else
+            {
+                stream.WriteByte(0xcb);
+                WriteBigEndian(stream, BitConverter.DoubleToInt64Bits(value), 8);
+            }
+        }
+
+        private static void PackString(Stream stream, string value)
+        {
+            byte[] utf8 = Encoding.UTF8.GetBytes(value);
+
+            if (utf8.Length < 32)
+                stream.WriteByte((byte)(0xa0 | utf8.Length));
+
+            else if (utf8.Length <= 0xff)
+            {
+                stream.WriteByte(0xd9);
+                stream.WriteByte((byte)utf8.Length);
+            }
+
+            else if (utf8.Length <= 0xffff)
+            {
+                stream.WriteByte(0xda);
+                WriteBigEndian(stream, utf8.Length, 2);
+            }
+
+            else
+            {
+                stream.WriteByte(0xdb);
+                WriteBigEndian(stream, utf8.Length, 4);
+            }
+
+            stream.Write(utf8, 0, utf8.Length);
+        }
+
+        private static void PackHeader(Stream stream, int count, byte fixType, byte type16, byte type32)
+        {
+            if (count < 16)
+                stream.WriteByte((byte)(fixType | count));
+
+            else if (count <= 0xffff)
+            {
+                stream.WriteByte(type16);
+                WriteBigEndian(stream, count, 2);
+            }
+
+            else
+            {
+                stream.WriteByte(type32);
+                WriteBigEndian(stream, count, 4);
+            }
+        }
+
+        private static void WriteBigEndian(Stream stream, long value, int numBytes)
+        {
+            for (int shift = (numBytes - 1) * 8; shift >= 0; shift -= 8)
+                stream.WriteByte((byte)(value >> shift));
+        }
+
+        private static object Unpack(byte[] bytes, ref int position)
+        {
+            int type = ReadByte(bytes, ref position);
+
+            if (type <= 0x7f)
+                return type;
+
+            if (type >= 0xe0)
+                return (int)(sbyte)type;
+
+            if ((type & 0xe0) == 0xa0)
+                return ReadString(bytes, ref position, type & 0x1f);
+
+            if ((type & 0xf0) == 0x90)
+                return ReadArray(bytes, ref position, type & 0x0f);
+
+            if ((type & 0xf0) == 0x80)
+                return ReadMap(bytes, ref position, type & 0x0f);
+
+            switch (type)
+            {
+                case 0xc0: return null;
+                case 0xc2: return false;
+                case 0xc3: return true;
+
+                case 0xc4: return Convert.ToBase64String(ReadBytes(bytes, ref position, (int)ReadBigEndian(bytes, ref position, 1)));
+                case 0xc5: return Convert.ToBase64String(ReadBytes(bytes, ref position, (int)ReadBigEndian(bytes, ref position, 2)));
+                case 0xc6: return Convert.ToBase64String(ReadBytes(bytes, ref position, (int)ReadBigEndian(bytes, ref position, 4)));
+
+                case 0xca: return (double)BitConverter.ToSingle(BitConverter.GetBytes((int)ReadBigEndian(bytes, ref position, 4)), 0);
+                case 0xcb: return BitConverter.Int64BitsToDouble(ReadBigEndian(bytes, ref position, 8));
+
+                case 0xcc: return (int)ReadBigEndian(bytes, ref position, 1);
+                case 0xcd: return (int)ReadBigEndian(bytes, ref position, 2);
+                case 0xce: return ToNumber(ReadBigEndian(bytes, ref position, 4));
+                case 0xcf: return ToNumber(ReadBigEndian(bytes, ref position, 8));
+
+                case 0xd0: return (int)(sbyte)ReadBigEndian(bytes, ref position, 1);
+                case 0xd1: return (int)(short)ReadBigEndian(bytes, ref position, 2);
+                case 0xd2: return (int)ReadBigEndian(bytes, ref position, 4);
+                case 0xd3: return ToNumber(ReadBigEndian(bytes, ref position, 8));
+
+                case 0xd9: return ReadString(bytes, ref position, (int)ReadBigEndian(bytes, ref position, 1));
+                case 0xda: return ReadString(bytes, ref position, (int)ReadBigEndian(bytes, ref position, 2));
+                case 0xdb: return ReadString(bytes, ref position, (int)ReadBigEndian(bytes, ref position, 4));
+
+                case 0xdc: return ReadArray(bytes, ref position, (int)ReadBigEndian(bytes, ref position, 2));
+                case 0xdd: return ReadArray(bytes, ref position, (int)ReadBigEndian(bytes, ref position, 4));
+
+                case 0xde: return ReadMap(bytes, ref position, (int)ReadBigEndian(bytes, ref position, 2));
+                case 0xdf: return ReadMap(bytes, ref position, (int)ReadBigEndian(bytes, ref position, 4));
+            }
+
+            throw new JavascriptException("Unsupported MessagePack type 0x" + type.ToString("x") + " at " + (position - 1).ToString());
+        }
+
+        private static object ToNumber(long value)
+        {
+            if ((value >= int.MinValue) && (value <= int.MaxValue))
+                return (int)value;
+
+            return value;
+        }
+
+        private static object[] ReadArray(byte[] bytes, ref int position, int count)
+        {
+            object[] toReturn = new object[count];
+
+            for (int ctr = 0; ctr < count; ctr++)
+                toReturn[ctr] = Unpack(bytes, ref position);
+
+            return toReturn;
+        }
+
+        private static Dictionary<string, object> ReadMap(byte[] bytes, ref int position, int count)
+        {
+            Dictionary<string, object> toReturn = new Dictionary<string, object>(count);
+
+            for (int ctr = 0; ctr < count; ctr++)
+            {
+                string key = Convert.ToString(Unpack(bytes, ref position));
+                toReturn[key] = Unpack(bytes, ref position);
+            }
+
+            return toReturn;
+        }
+
+        private static string ReadString(byte[] bytes, ref int position, int length)
+        {
+            CheckAvailable(bytes, position, length);
+
+            string toReturn = Encoding.UTF8.GetString(bytes, position, length);
+            position += length;
+
+            return toReturn;
+        }
+
+        private static byte[] ReadBytes(byte[] bytes, ref int position, int length)
+        {
+            CheckAvailable(bytes, position, length);
+
+            byte[] toReturn = new byte[length];
+            Array.Copy(bytes, position, toReturn, 0, length);
+            position += length;
+
+            return toReturn;
+        }
+
+        private static int ReadByte(byte[] bytes, ref int position)
+        {
+            CheckAvailable(bytes, position, 1);
+            return bytes[position++];
+        }
+
+        private static long ReadBigEndian(byte[] bytes, ref int position, int numBytes)
+        {
+            CheckAvailable(bytes, position, numBytes);
+
+            long toReturn = 0;
+            for (int ctr = 0; ctr < numBytes; ctr++)
+                toReturn = (toReturn << 8) | bytes[position++];
+
+            return toReturn;
+        }
+
+        private static void CheckAvailable(byte[] bytes, int position, int length)
+        {
+            if ((length < 0) || (position + length > bytes.Length))
+                throw new JavascriptException("MessagePack data ends too soon");
+        }
+    }
+}
@@ -40,6 +40,14 @@ namespace ObjectCloud.Javascript.SubProcess
         }
         private readonly int _ScopeId;
 
+        /// <summary>
+        /// True if the sub process disposed the scope on its own, in which case the scope must be re-created
+        /// </summary>
+        public bool Evicted
+        {
+            get { return _SubProcess.IsScopeEvicted(ScopeId); }
+        }
+
         public SubProcess SubProcess
         {
             get { return _SubProcess; }
@@ -98,6 +106,31 @@ namespace ObjectCloud.Javascript.SubProcess
             }
         }
 
+        /// <summary>
+        /// Forgets a cache ID after the sub process evicts its object, so that the object is sent again
+        /// </summary>
+        /// <param name="cacheId"></param>
+        public void ForgetCacheID(object cacheId)
+        {
+            CacheIDsByKeyLock.EnterWriteLock();
+
+            try
+            {
+                List<object> keysToRemove = new List<object>();
+
+                foreach (KeyValuePair<object, KeyValuePair<object, DateTime>> cacheIdKVP in CacheIDsByKey)
+                    if (cacheIdKVP.Value.Key.ToString() == cacheId.ToString())
+                        keysToRemove.Add(cacheIdKVP.Key);
+
+                foreach (object key in keysToRemove)
+                    CacheIDsByKey.Remove(key);
+            }
+            finally
+            {
+                CacheIDsByKeyLock.ExitWriteLock();
+            }
+        }
+
         /// <summary>
         /// Creates a scope wrapper
         /// </summary>
@@ -131,7 +164,7 @@ namespace ObjectCloud.Javascript.SubProcess
 
             CacheIDsByKey = new Dictionary<object, KeyValuePair<object, DateTime>>();
 
-            _SubProcess.RegisterParentFunctionDelegate(ScopeId, CallParentFunction);
+            _SubProcess.RegisterParentFunctionDelegate(ScopeId, CallParentFunction, ForgetCacheID);
             FunctionCallers = new Dictionary<string, FunctionCaller>();
 
             SubProcess.CreateScopeResults data = FunctionCaller.UseTemporaryCaller<SubProcess.CreateScopeResults>(
@@ -90,13 +90,27 @@ namespace ObjectCloud.Javascript.SubProcess
         }*/
 
         public SubProcess(FileHandlerFactoryLocator fileHandlerFactoryLocator)
+            : this(fileHandlerFactoryLocator, false) { }
+
+        /// <summary>
+        /// Starts a sub process.  When multiplexed is true, this object is the sub process's first channel, and OpenChannel adds more
+        /// channels that share the sub process's JVM
+        /// </summary>
+        /// <param name="fileHandlerFactoryLocator"></param>
+        /// <param name="multiplexed"></param>
+        public SubProcess(FileHandlerFactoryLocator fileHandlerFactoryLocator, bool multiplexed)
         {
+            string arguments = "-cp ." + Path.DirectorySeparatorChar + "js.jar -jar JavascriptProcess.jar " + Process.GetCurrentProcess().Id.ToString();
+            if (multiplexed)
+                arguments = "-Dobjectcloud.pump.multiplex=true " + arguments;
+
             _Process = new Process();
-            _Process.StartInfo = new ProcessStartInfo("java", "-cp ." + Path.DirectorySeparatorChar + "js.jar -jar JavascriptProcess.jar " + Process.GetCurrentProcess().Id.ToString());
+            _Process.StartInfo = new ProcessStartInfo("java", arguments);
             _Process.StartInfo.RedirectStandardInput = true;
             _Process.StartInfo.RedirectStandardOutput = true;
             _Process.StartInfo.RedirectStandardError = true;
             _Process.StartInfo.UseShellExecute = false;
+            _Process.StartInfo.StandardOutputEncoding = Encoding.UTF8;
             _Process.EnableRaisingEvents = true;
             _Process.Exited += new EventHandler(Process_Exited);
 
@@ -116,7 +130,10 @@ namespace ObjectCloud.Javascript.SubProcess
                 using (TimedLock.Lock(SubProcessIdWriteStream))
                     SubProcessIdWriteStream.WriteLine(_Process.Id.ToString());
 
-            JSONSender = new JsonWriter(_Process.StandardInput);
+            // The sub process always reads and writes UTF-8, no matter what the console's code page is
+            StreamWriter standardInput = new StreamWriter(_Process.StandardInput.BaseStream, new UTF8Encoding(false));
+            standardInput.AutoFlush = true;
+            JSONSender = new JsonWriter(standardInput);
 
             // Failed attempt to handle processes without Threads
             _Process.ErrorDataReceived += new DataReceivedEventHandler(Process_ErrorDataReceived);
@@ -124,6 +141,113 @@ namespace ObjectCloud.Javascript.SubProcess
 
             using (TimedLock.Lock(SubProcesses))
                 SubProcesses.Add(_Process);
+
+            if (multiplexed)
+            {
+                _ChannelId = 1;
+                Channels = new Dictionary<int, SubProcess>();
+                Channels[_ChannelId.Value] = this;
+            }
+        }
+
+        /// <summary>
+        /// Creates a channel that shares the host's JVM
+        /// </summary>
+        /// <param name="host"></param>
+        /// <param name="channelId"></param>
+        private SubProcess(SubProcess host, int channelId)
+        {
+            Host = host;
+            _ChannelId = channelId;
+            _Process = host._Process;
+            JSONSender = host.JSONSender;
+            SendKey = host.SendKey;
+            RespondKey = host.RespondKey;
+            ResponsePulsers = host.ResponsePulsers;
+            Channels = host.Channels;
+        }
+
+        /// <summary>
+        /// The sub process that started the JVM that this channel uses, or null if this object started the JVM
+        /// </summary>
+        private SubProcess Host = null;
+
+        /// <summary>
+        /// The open channels to the JVM, by channel ID, or null if the sub process isn't multiplexed.  Shared by all of the JVM's channels
+        /// </summary>
+        private Dictionary<int, SubProcess> Channels = null;
+
+        /// <summary>
+        /// The ID that the next channel will have.  Only used on the host
+        /// </summary>
+        private int NextChannelId = 2;
+
+        /// <summary>
+        /// The channel that this object sends its commands on, or null if the sub process isn't multiplexed
+        /// </summary>
+        public int? ChannelId
+        {
+            get { return _ChannelId; }
+        }
+        private int? _ChannelId = null;
+
+        /// <summary>
+        /// The number of open channels to this object's JVM
+        /// </summary>
+        public int NumChannels
+        {
+            get
+            {
+                if (null == Channels)
+                    return 1;
+
+                lock (Channels)
+                    return Channels.Count;
+            }
+        }
+
+        /// <summary>
+        /// Opens another channel to this object's JVM.  The returned object is used like any other sub process, with its own parent
+        /// scopes and scopes, but it shares the JVM, and with it the compiled Javascript.  Disposing the channel only closes the channel;
+        /// disposing the object that started the JVM ends all of its channels
+        /// </summary>
+        /// <returns></returns>
+        public SubProcess OpenChannel()
+        {
+            SubProcess host = null != Host ? Host : this;
+
+            if (null == Channels)
+                throw new InvalidOperationException("The sub process isn't multiplexed");
+
+            host.CheckIfAbortedOrDisposed();
+
+            lock (Channels)
+            {
+                SubProcess channel = new SubProcess(host, host.NextChannelId);
+                host.NextChannelId++;
+
+                Channels[channel._ChannelId.Value] = channel;
+                return channel;
+            }
+        }
+
+        /// <summary>
+        /// Returns the channel that a command from the sub process is for
+        /// </summary>
+        /// <param name="inCommand"></param>
+        /// <returns></returns>
+        private SubProcess GetChannel(Dictionary<string, object> inCommand)
+        {
+            object channelId;
+            if ((null != Channels) && inCommand.TryGetValue("ChannelID", out channelId))
+                lock (Channels)
+                {
+                    SubProcess channel;
+                    if (Channels.TryGetValue(Convert.ToInt32(channelId), out channel))
+                        return channel;
+                }
+
+            return this;
         }
 
         /// <summary>
@@ -160,6 +284,20 @@ namespace ObjectCloud.Javascript.SubProcess
                     Dispose();
                     Aborted = true;
                 }
+
+                // All of the JVM's channels are gone with it
+                if (null != Channels)
+                    lock (Channels)
+                    {
+                        foreach (SubProcess channel in Channels.Values)
+                            if (channel != this)
+                            {
+                                channel.Disposed = true;
+                                channel.Aborted = true;
+                            }
+
+                        Channels.Clear();
+                    }
             }
             catch (Exception ex)
             {
@@ -219,6 +357,11 @@ namespace ObjectCloud.Javascript.SubProcess
         /// </summary>
         Dictionary<int, CallParentFunctionDelegate> ParentFunctionDelegatesByScopeId = new Dictionary<int, CallParentFunctionDelegate>();
 
+        /// <summary>
+        /// Callback for when the sub process evicted an object that the parent function referred to by its cache ID
+        /// </summary>
+        Dictionary<int, CacheMissDelegate> CacheMissDelegatesByScopeId = new Dictionary<int, CacheMissDelegate>();
+
         ReaderWriterLockSlim ParentFunctionDelegatesByScopeIdLock = new ReaderWriterLockSlim();
 
         /// <summary>
@@ -227,11 +370,28 @@ namespace ObjectCloud.Javascript.SubProcess
         /// <param name="scopeId"></param>
         /// <param name="callParentFunctionDelegate"></param>
         public void RegisterParentFunctionDelegate(int scopeId, CallParentFunctionDelegate parentFunctionDelegate)
+        {
+            RegisterParentFunctionDelegate(scopeId, parentFunctionDelegate, null);
+        }
+
+        /// <summary>
+        /// Registers a callback for when the javascript in the scope calls a parent function, and a callback for when the sub process
+        /// no longer has a cached object
+        /// </summary>
+        /// <param name="scopeId"></param>
+        /// <param name="callParentFunctionDelegate"></param>
+        /// <param name="cacheMissDelegate"></param>
+        public void RegisterParentFunctionDelegate(int scopeId, CallParentFunctionDelegate parentFunctionDelegate, CacheMissDelegate cacheMissDelegate)
         {
             ParentFunctionDelegatesByScopeIdLock.EnterWriteLock();
             try
             {
                 ParentFunctionDelegatesByScopeId[scopeId] = parentFunctionDelegate;
+
+                if (null != cacheMissDelegate)
+                    CacheMissDelegatesByScopeId[scopeId] = cacheMissDelegate;
+                else
+                    CacheMissDelegatesByScopeId.Remove(scopeId);
             }
             finally
             {
@@ -305,8 +465,71 @@ namespace ObjectCloud.Javascript.SubProcess
             command["ParentScopeID"] = parentScopeId;
             command["ThreadID"] = threadID;
 
-            using (TimedLock.Lock(SendKey))
-                JSONSender.Write(command);
+            lock (KnownFunctionsByParentScopeId)
+                KnownFunctionsByParentScopeId.Remove(parentScopeId);
+
+            WriteCommand(command);
+        }
+
+        /// <summary>
+        /// When true, the functions that the sub process last described for each parent scope are kept, and CreateScope tells the
+        /// sub process their fingerprint so that it only sends the functions that changed
+        /// </summary>
+        public bool CacheFunctions
+        {
+            get { return _CacheFunctions; }
+            set { _CacheFunctions = value; }
+        }
+        private bool _CacheFunctions = true;
+
+        /// <summary>
+        /// The fingerprint and Functions of the last scope that was created from each parent scope
+        /// </summary>
+        private Dictionary<int, KeyValuePair<string, Dictionary<string, object>>> KnownFunctionsByParentScopeId =
+            new Dictionary<int, KeyValuePair<string, Dictionary<string, object>>>();
+
+        /// <summary>
+        /// Returns the Functions that describe the new scope, filling in what the sub process left out because it was already known
+        /// </summary>
+        /// <param name="parentScopeId"></param>
+        /// <param name="knownFunctions">What was known when CreateScope was sent</param>
+        /// <param name="dataToReturn"></param>
+        /// <returns></returns>
+        private Dictionary<string, object> GetFunctions(
+            int parentScopeId, KeyValuePair<string, Dictionary<string, object>> knownFunctions, Dictionary<string, object> dataToReturn)
+        {
+            object fingerprint;
+            if (!dataToReturn.TryGetValue("FunctionsFingerprint", out fingerprint))
+                return (Dictionary<string, object>)dataToReturn["Functions"];
+
+            Dictionary<string, object> functions;
+            object functionsObj;
+
+            // No Functions means that the known functions are the same
+            if (!dataToReturn.TryGetValue("Functions", out functionsObj))
+                functions = knownFunctions.Value;
+
+            // A delta only has the functions that are new or changed since the known functions
+            else if (dataToReturn.ContainsKey("FunctionsDeltaFrom"))
+            {
+                functions = new Dictionary<string, object>(knownFunctions.Value);
+
+                foreach (KeyValuePair<string, object> functionKVP in (IEnumerable<KeyValuePair<string, object>>)functionsObj)
+                    functions[functionKVP.Key] = functionKVP.Value;
+
+                object removedFunctions;
+                if (dataToReturn.TryGetValue("RemovedFunctions", out removedFunctions))
+                    foreach (object functionName in (IEnumerable)removedFunctions)
+                        functions.Remove(functionName.ToString());
+            }
+
+            else
+                functions = (Dictionary<string, object>)functionsObj;
+
+            lock (KnownFunctionsByParentScopeId)
+                KnownFunctionsByParentScopeId[parentScopeId] = new KeyValuePair<string, Dictionary<string, object>>(fingerprint.ToString(), functions);
+
+            return functions;
         }
         
         /// <summary>
@@ -323,15 +546,25 @@ namespace ObjectCloud.Javascript.SubProcess
             Dictionary<string, object> command = CreateCommand(scopeId, threadID, "CreateScope", data);
             command["ParentScopeID"] = parentScopeId;
 
+            // The sub process only sends the functions that aren't known; an empty fingerprint asks for all of them
+            KeyValuePair<string, Dictionary<string, object>> knownFunctions = new KeyValuePair<string, Dictionary<string, object>>("", null);
+            if (CacheFunctions)
+            {
+                lock (KnownFunctionsByParentScopeId)
+                    KnownFunctionsByParentScopeId.TryGetValue(parentScopeId, out knownFunctions);
+
+                command["KnownFunctionsFingerprint"] = null != knownFunctions.Key ? knownFunctions.Key : "";
+            }
+
             Dictionary<string, object> dataToReturn = SendCommandAndHandleResponse(command, scopeId);
 
             CreateScopeResults toReturn = new CreateScopeResults();
             toReturn.Results = (object[])dataToReturn["Results"];
 
-            object functionsObj = dataToReturn["Functions"];
+            Dictionary<string, object> functionsObj = GetFunctions(parentScopeId, knownFunctions, dataToReturn);
             Dictionary<string, CreateScopeFunctionInfo> functionsToReturn = new Dictionary<string, CreateScopeFunctionInfo>();
 
-            foreach (KeyValuePair<string, object> functionKVP in (IEnumerable<KeyValuePair<string, object>>)functionsObj)
+            foreach (KeyValuePair<string, object> functionKVP in functionsObj)
             {
                 CreateScopeFunctionInfo functionInfo = new CreateScopeFunctionInfo();
                 Dictionary<string, object> value = (Dictionary<string, object>)functionKVP.Value;
@@ -370,10 +603,16 @@ namespace ObjectCloud.Javascript.SubProcess
             if (Aborted || Disposed)
                 return;
 
+            // If the sub process already evicted the scope, then there's nothing to clean up
+            lock (EvictedScopeIds)
+                if (EvictedScopeIds.Remove(scopeId))
+                    return;
+
             ParentFunctionDelegatesByScopeIdLock.EnterWriteLock();
             try
             {
                 ParentFunctionDelegatesByScopeId.Remove(scopeId);
+                CacheMissDelegatesByScopeId.Remove(scopeId);
             }
             finally
             {
@@ -382,8 +621,7 @@ namespace ObjectCloud.Javascript.SubProcess
 
             Dictionary<string, object> command = CreateCommand(scopeId, threadID, "DisposeScope", new Dictionary<string, object>());
 
-            using (TimedLock.Lock(SendKey))
-                JSONSender.Write(command);
+            WriteCommand(command);
         }
 
         /// <summary>
@@ -430,6 +668,76 @@ namespace ObjectCloud.Javascript.SubProcess
             return dataToReturn["Result"];
         }
 
+        /// <summary>
+        /// A command that's sent to the sub process as part of a batch
+        /// </summary>
+        public struct BatchCommand
+        {
+            public BatchCommand(string command, Dictionary<string, object> data)
+            {
+                _Command = command;
+                _Data = data;
+            }
+
+            /// <summary>
+            /// The command's name, such as CreateScope, CallFunctionInScope or DisposeScope
+            /// </summary>
+            public string Command
+            {
+                get { return _Command; }
+            }
+            private readonly string _Command;
+
+            /// <summary>
+            /// The command's data
+            /// </summary>
+            public Dictionary<string, object> Data
+            {
+                get { return _Data; }
+            }
+            private readonly Dictionary<string, object> _Data;
+        }
+
+        /// <summary>
+        /// Runs several commands for a scope, in order, with one round trip to the sub process.  The sub process stops at the first
+        /// command that fails, in which case that command's exception is thrown
+        /// </summary>
+        /// <param name="scopeId"></param>
+        /// <param name="parentScopeId">Used if the batch creates the scope</param>
+        /// <param name="threadID"></param>
+        /// <param name="commands"></param>
+        /// <returns>The data of each command's response, in the order that the commands were sent.  A DisposeScope has no response</returns>
+        /// <exception cref="ObjectDisposedException">Thrown if the sub process was disposed through normal execution.</exception>
+        /// <exception cref="AbortedException">Thrown if the sub process aborted anormally.  Callers should recover from this error condition</exception>
+        public Dictionary<string, object>[] RunBatch(int scopeId, int parentScopeId, object threadID, IEnumerable<BatchCommand> commands)
+        {
+            CheckIfAbortedOrDisposed();
+
+            List<Dictionary<string, object>> commandsToSend = new List<Dictionary<string, object>>();
+            foreach (BatchCommand batchCommand in commands)
+            {
+                Dictionary<string, object> commandToSend = new Dictionary<string, object>();
+                commandToSend["Command"] = batchCommand.Command;
+                commandToSend["Data"] = batchCommand.Data;
+
+                commandsToSend.Add(commandToSend);
+            }
+
+            Dictionary<string, object> data = new Dictionary<string, object>();
+            data["Commands"] = commandsToSend;
+
+            Dictionary<string, object> command = CreateCommand(scopeId, threadID, "Batch", data);
+            command["ParentScopeID"] = parentScopeId;
+
+            Dictionary<string, object> dataToReturn = SendCommandAndHandleResponse(command, scopeId);
+
+            List<Dictionary<string, object>> toReturn = new List<Dictionary<string, object>>();
+            foreach (object response in (IEnumerable)dataToReturn["Responses"])
+                toReturn.Add((Dictionary<string, object>)((Dictionary<string, object>)response)["Data"]);
+
+            return toReturn.ToArray();
+        }
+
         /// <summary>
         /// Encapsulates callbacks that come from the sub process
         /// </summary>
@@ -469,10 +777,80 @@ namespace ObjectCloud.Javascript.SubProcess
 
             public object Call(IEnumerable<object> arguments)
             {
-                return SubProcess.CallCallback(ScopeId, ThreadId, CallbackId, arguments);
+                // A retained callback can be called from any thread after the original call returns
+                object threadId = _Retained ? Thread.CurrentThread.ManagedThreadId : ThreadId;
+
+                return SubProcess.CallCallback(ScopeId, threadId, CallbackId, arguments);
+            }
+
+            /// <summary>
+            /// True if the callback lives after the call that it was passed to returns
+            /// </summary>
+            public bool Retained
+            {
+                get { return _Retained; }
+            }
+            private bool _Retained = false;
+
+            /// <summary>
+            /// How long a retained callback can go unused before the sub process releases it, or null if it lives until Release is called
+            /// </summary>
+            public TimeSpan? TTL
+            {
+                get { return _TTL; }
+            }
+            private TimeSpan? _TTL = null;
+
+            /// <summary>
+            /// Keeps the callback alive after the call that it was passed to returns, until Release is called
+            /// </summary>
+            public void Retain()
+            {
+                _Retained = true;
+                _TTL = null;
+            }
+
+            /// <summary>
+            /// Keeps the callback alive after the call that it was passed to returns, until Release is called or it goes unused for the TTL
+            /// </summary>
+            /// <param name="ttl"></param>
+            public void Retain(TimeSpan ttl)
+            {
+                _Retained = true;
+                _TTL = ttl;
+            }
+
+            /// <summary>
+            /// Lets the sub process forget a retained callback
+            /// </summary>
+            public void Release()
+            {
+                if (_Retained)
+                    SubProcess.ReleaseCallback(ScopeId, CallbackId);
+
+                _Retained = false;
             }
         }
 
+        /// <summary>
+        /// Lets the sub process forget a callback that was retained
+        /// </summary>
+        /// <param name="scopeId"></param>
+        /// <param name="callbackId"></param>
+        public void ReleaseCallback(int scopeId, object callbackId)
+        {
+            // If the sub process was aborted or disposed, then the callback is already gone
+            if (Aborted || Disposed)
+                return;
+
+            Dictionary<string, object> data = new Dictionary<string, object>();
+            data["CallbackId"] = callbackId;
+
+            Dictionary<string, object> command = CreateCommand(scopeId, Thread.CurrentThread.ManagedThreadId, "ReleaseCallback", data);
+
+            WriteCommand(command);
+        }
+
         /// <summary>
         /// Helper to create a command
         /// </summary>
@@ -493,6 +871,41 @@ namespace ObjectCloud.Javascript.SubProcess
             return command;
         }
 
+        /// <summary>
+        /// When true, the Data of commands for scopes is sent as MessagePack instead of JSON, and the sub process responds the same way.
+        /// Numbers don't go through decimal text and strings don't need escaping
+        /// </summary>
+        public bool UseMessagePack
+        {
+            get { return _UseMessagePack; }
+            set { _UseMessagePack = value; }
+        }
+        private bool _UseMessagePack = false;
+
+        /// <summary>
+        /// Sends a command to the sub process
+        /// </summary>
+        /// <param name="command"></param>
+        private void WriteCommand(Dictionary<string, object> command)
+        {
+            object data;
+            if (UseMessagePack && command.ContainsKey("ScopeID") && command.TryGetValue("Data", out data))
+            {
+                command = new Dictionary<string, object>(command);
+                command["DataFormat"] = MessagePack.DataFormat;
+                command["Data"] = Convert.ToBase64String(MessagePack.Encode(data));
+            }
+
+            if (null != _ChannelId)
+            {
+                command = new Dictionary<string, object>(command);
+                command["ChannelID"] = _ChannelId.Value;
+            }
+
+            using (TimedLock.Lock(SendKey))
+                JSONSender.Write(command);
+        }
+
         /// <summary>
         /// Tracks specific objects while the call static is in Javascript.  Once the callstack leaves Javascript, these objects are forgotten
         /// </summary>
@@ -514,8 +927,7 @@ namespace ObjectCloud.Javascript.SubProcess
             int scopeId)
         {
             // Send the command
-            using (TimedLock.Lock(SendKey))
-                JSONSender.Write(command);
+            WriteCommand(command);
 
             if (null == TrackedObjects)
                 TrackedObjects = new Dictionary<int, object>();
@@ -531,7 +943,12 @@ namespace ObjectCloud.Javascript.SubProcess
 					TimerCallback callback = delegate(object state)
 					{
 						log.Warn("Killing sub-process due to timeout");
-						Dispose();
+
+						// A channel can't end the JVM that it shares, so the timeout ends the whole sub process
+						if (null != Host)
+							Host.Dispose();
+						else
+							Dispose();
 					};
                     
                     // If the thread waits, spin up a timer kill the process in case it runs too long
@@ -573,20 +990,33 @@ namespace ObjectCloud.Javascript.SubProcess
                         Dictionary<string, object> outData = new Dictionary<string, object>();
                         Dictionary<string, object> outCommand = CreateCommand(scopeId, threadId, "RespondCallParentFunction", outData);
 
+                        // Asynchronous calls are matched to their response by the call ID
+                        object callId;
+                        if (dataToReturn.TryGetValue("CallID", out callId))
+                            outData["CallID"] = callId;
+
                         try
                         {
                             CallParentFunctionDelegate callParentFunctionDelegate;
+                            CacheMissDelegate cacheMissDelegate;
 
                             ParentFunctionDelegatesByScopeIdLock.EnterReadLock();
                             try
                             {
                                 callParentFunctionDelegate = ParentFunctionDelegatesByScopeId[scopeId];
+                                CacheMissDelegatesByScopeId.TryGetValue(scopeId, out cacheMissDelegate);
                             }
                             finally
                             {
                                 ParentFunctionDelegatesByScopeIdLock.ExitReadLock();
                             }
 
+                            // If the sub process evicted a cached object, forget about it so that the object is sent again
+                            object cacheMiss;
+                            if (dataToReturn.TryGetValue("CacheMiss", out cacheMiss))
+                                if (null != cacheMissDelegate)
+                                    cacheMissDelegate(cacheMiss);
+
                             object parentFunctionDataToReturn = callParentFunctionDelegate(
                                 functionName,
                                 threadId,
@@ -639,59 +1069,50 @@ namespace ObjectCloud.Javascript.SubProcess
                             outData["Exception"] = jsoned;
                         }
 
-                        using (TimedLock.Lock(SendKey))
-                            JSONSender.Write(outCommand);
-                    }
-                    else
-                    {
-                        object exceptionFromJavascript;
-                        if (dataToReturn.TryGetValue("Exception", out exceptionFromJavascript))
-                        {
-                            if (exceptionFromJavascript is Dictionary<string, object>)
+                        // Callbacks that the parent function retained stay alive in the sub process after the call returns
+                        List<object> retainedCallbackIds = new List<object>();
+                        Dictionary<string, object> callbackTTLs = new Dictionary<string, object>();
+
+                        foreach (object argument in arguments)
+                            if (argument is Callback)
                             {
-                                object parentObjectId;
-                                if (((Dictionary<string, object>)exceptionFromJavascript).TryGetValue("ParentObjectId", out parentObjectId))
-                                    if (TrackedObjects.TryGetValue(Convert.ToInt32(parentObjectId), out exceptionFromJavascript))
-                                        if (exceptionFromJavascript is Exception)
-                                            throw (Exception)exceptionFromJavascript;
-                            }
+                                Callback callback = (Callback)argument;
 
-                            throw new JavascriptException(JsonWriter.Serialize(exceptionFromJavascript));
-                        }
+                                if (callback.Retained)
+                                {
+                                    retainedCallbackIds.Add(callback.CallbackId);
 
-                        object result;
-                        if (dataToReturn.TryGetValue("Result", out result))
-                        {
-                            if (result is Dictionary<string, object>)
-                            {
-                                object parentObjectId;
-                                if (((Dictionary<string, object>)result).TryGetValue("ParentObjectId", out parentObjectId))
-                                    if (TrackedObjects.TryGetValue(Convert.ToInt32(parentObjectId), out result))
-                                        dataToReturn["Result"] = result;
+                                    // Each callback keeps its own TTL; callbacks without one live until they're released
+                                    if (null != callback.TTL)
+                                        callbackTTLs[callback.CallbackId.ToString()] = callback.TTL.Value.TotalSeconds;
+                                }
                             }
-                        }
-                        else
-                            dataToReturn["Result"] = Undefined.Value;
 
-                        if (dataToReturn.TryGetValue("Results", out result))
+                        if (retainedCallbackIds.Count > 0)
                         {
-                            if (result is object[])
-                            {
-                                object[] results = (object[])result;
-                                for (int ctr = 0; ctr < results.Length; ctr++)
-                                    if (results[ctr] is Dictionary<string, object>)
-                                    {
-                                        object parentObjectId;
-                                        if (((Dictionary<string, object>)results[ctr]).TryGetValue("ParentObjectId", out parentObjectId))
-                                        {
-                                            object parentObject;
-                                            if (TrackedObjects.TryGetValue(Convert.ToInt32(parentObjectId), out parentObject))
-                                                results[ctr] = parentObject;
-                                        }
-                                    }
-                            }
+                            outData["RetainCallbacks"] = retainedCallbackIds;
+
+                            if (callbackTTLs.Count > 0)
+                                outData["CallbackTTLs"] = callbackTTLs;
                         }
 
+                        WriteCommand(outCommand);
+                    }
+                    else
+                    {
+                        // The sub process evicted the scope before the command got there
+                        if (dataToReturn.ContainsKey("ScopeEvicted"))
+                            lock (EvictedScopeIds)
+                                EvictedScopeIds.Add(scopeId);
+
+                        // Each response in a batch is resolved in order, so the command that stopped the batch throws its exception
+                        object batchResponses;
+                        if (dataToReturn.TryGetValue("Responses", out batchResponses))
+                            foreach (object batchResponse in (IEnumerable)batchResponses)
+                                ResolveResponseData((Dictionary<string, object>)((Dictionary<string, object>)batchResponse)["Data"]);
+
+                        ResolveResponseData(dataToReturn);
+
                         return dataToReturn;
                     }
                 }
@@ -706,6 +1127,62 @@ namespace ObjectCloud.Javascript.SubProcess
             }
         }
 
+        /// <summary>
+        /// Throws the exception in a response from the sub process, if there is one, and replaces references to objects that were
+        /// tracked while the call was in Javascript with the objects themselves
+        /// </summary>
+        /// <param name="dataToReturn"></param>
+        private void ResolveResponseData(Dictionary<string, object> dataToReturn)
+        {
+            object exceptionFromJavascript;
+            if (dataToReturn.TryGetValue("Exception", out exceptionFromJavascript))
+            {
+                if (exceptionFromJavascript is Dictionary<string, object>)
+                {
+                    object parentObjectId;
+                    if (((Dictionary<string, object>)exceptionFromJavascript).TryGetValue("ParentObjectId", out parentObjectId))
+                        if (TrackedObjects.TryGetValue(Convert.ToInt32(parentObjectId), out exceptionFromJavascript))
+                            if (exceptionFromJavascript is Exception)
+                                throw (Exception)exceptionFromJavascript;
+                }
+
+                throw new JavascriptException(JsonWriter.Serialize(exceptionFromJavascript));
+            }
+
+            object result;
+            if (dataToReturn.TryGetValue("Result", out result))
+            {
+                if (result is Dictionary<string, object>)
+                {
+                    object parentObjectId;
+                    if (((Dictionary<string, object>)result).TryGetValue("ParentObjectId", out parentObjectId))
+                        if (TrackedObjects.TryGetValue(Convert.ToInt32(parentObjectId), out result))
+                            dataToReturn["Result"] = result;
+                }
+            }
+            else
+                dataToReturn["Result"] = Undefined.Value;
+
+            if (dataToReturn.TryGetValue("Results", out result))
+            {
+                if (result is object[])
+                {
+                    object[] results = (object[])result;
+                    for (int ctr = 0; ctr < results.Length; ctr++)
+                        if (results[ctr] is Dictionary<string, object>)
+                        {
+                            object parentObjectId;
+                            if (((Dictionary<string, object>)results[ctr]).TryGetValue("ParentObjectId", out parentObjectId))
+                            {
+                                object parentObject;
+                                if (TrackedObjects.TryGetValue(Convert.ToInt32(parentObjectId), out parentObject))
+                                    results[ctr] = parentObject;
+                            }
+                        }
+                }
+            }
+        }
+
         /// <summary>
         /// Provides syncronization when waiting for a response
         /// </summary>
@@ -747,6 +1224,24 @@ namespace ObjectCloud.Javascript.SubProcess
 
                             Dictionary<string, object> inCommand = JsonReader.Deserialize<Dictionary<string, object>>(inCommandString);
 
+                            object dataFormat;
+                            if (inCommand.TryGetValue("DataFormat", out dataFormat) && MessagePack.DataFormat.Equals(dataFormat))
+                                inCommand["Data"] = MessagePack.Decode(Convert.FromBase64String((string)inCommand["Data"]));
+
+                            // Evictions aren't responses to any thread
+                            if ("ScopeEvicted".Equals(inCommand["Command"]))
+                            {
+                                GetChannel(inCommand).HandleScopeEvicted(inCommand);
+                                continue;
+                            }
+
+                            // Flow control messages aren't responses to any thread either
+                            if ("Busy".Equals(inCommand["Command"]) || "Ready".Equals(inCommand["Command"]))
+                            {
+                                GetChannel(inCommand).HandleFlowControl(inCommand);
+                                continue;
+                            }
+
                             object commandThreadID = inCommand["ThreadID"];
 
                             Wrapped<Dictionary<string, object>> toPulse;
@@ -809,6 +1304,83 @@ namespace ObjectCloud.Javascript.SubProcess
             throw new ObjectDisposedException("The sub processes has exited");
         }
 		
+        /// <summary>
+        /// Scopes that the sub process disposed on its own because they were idle or there were too many
+        /// </summary>
+        private HashSet<int> EvictedScopeIds = new HashSet<int>();
+
+        /// <summary>
+        /// Returns true if the sub process evicted the scope, in which case it must be re-created before it's used again
+        /// </summary>
+        /// <param name="scopeId"></param>
+        /// <returns></returns>
+        public bool IsScopeEvicted(int scopeId)
+        {
+            lock (EvictedScopeIds)
+                return EvictedScopeIds.Contains(scopeId);
+        }
+
+        /// <summary>
+        /// Handles the sub process disposing a scope on its own
+        /// </summary>
+        /// <param name="inCommand"></param>
+        private void HandleScopeEvicted(Dictionary<string, object> inCommand)
+        {
+            int scopeId = Convert.ToInt32(inCommand["ScopeID"]);
+
+            lock (EvictedScopeIds)
+                EvictedScopeIds.Add(scopeId);
+
+            ParentFunctionDelegatesByScopeIdLock.EnterWriteLock();
+            try
+            {
+                ParentFunctionDelegatesByScopeId.Remove(scopeId);
+                CacheMissDelegatesByScopeId.Remove(scopeId);
+            }
+            finally
+            {
+                ParentFunctionDelegatesByScopeIdLock.ExitWriteLock();
+            }
+
+            log.Info("Javascript sub process evicted scope " + scopeId.ToString() + ": " + JsonWriter.Serialize(inCommand["Data"]));
+        }
+
+        /// <summary>
+        /// True when the sub process has more commands in flight than it advertised that it will accept.  Callers that can choose
+        /// between sub processes should prefer one that isn't busy.  Always false unless the sub process is started with
+        /// -Dobjectcloud.pump.maxinflight
+        /// </summary>
+        public bool Busy
+        {
+            get { return _Busy; }
+        }
+        private volatile bool _Busy = false;
+
+        /// <summary>
+        /// How many more commands the sub process said it will accept, as of its last Busy or Ready message, or -1 if the sub
+        /// process doesn't advertise its limit
+        /// </summary>
+        public int Credits
+        {
+            get { return _Credits; }
+        }
+        private volatile int _Credits = -1;
+
+        /// <summary>
+        /// Handles the sub process saying that it's busy or ready for more commands
+        /// </summary>
+        /// <param name="inCommand"></param>
+        private void HandleFlowControl(Dictionary<string, object> inCommand)
+        {
+            Dictionary<string, object> data = (Dictionary<string, object>)inCommand["Data"];
+
+            _Credits = Convert.ToInt32(data["Credits"]);
+            _Busy = "Busy".Equals(inCommand["Command"]);
+
+            if (_Busy)
+                log.Warn("Javascript sub process is busy with " + data["InFlight"].ToString() + " commands in flight");
+        }
+
         /// <summary>
         /// Represents an undefined value
         /// </summary>
@@ -882,6 +1454,26 @@ namespace ObjectCloud.Javascript.SubProcess
 
             Disposed = true;
 
+            // Closing a channel leaves the JVM running for the other channels
+            if (null != Host)
+            {
+                lock (Channels)
+                    Channels.Remove(_ChannelId.Value);
+
+                Dictionary<string, object> closeChannel = new Dictionary<string, object>();
+                closeChannel["ChannelID"] = _ChannelId.Value;
+
+                using (TimedLock.Lock(SendKey))
+                    try
+                    {
+                        JSONSender.Write(closeChannel);
+                    }
+                    catch { }
+
+                GC.SuppressFinalize(this);
+                return;
+            }
+
             using (TimedLock.Lock(SendKey))
                 try
                 {
@@ -928,7 +1520,7 @@ namespace ObjectCloud.Javascript.SubProcess
             {
                 try
                 {
-                    if (!_Process.HasExited)
+                    if ((null == Host) && !_Process.HasExited)
 	                    _Process.Kill();
                 }
                 catch { }
@@ -943,4 +1535,10 @@ namespace ObjectCloud.Javascript.SubProcess
     /// <param name="arguments"></param>
     /// <returns></returns>
     public delegate object CallParentFunctionDelegate(string functionName, object threadId, object[] arguments);
+
+    /// <summary>
+    /// Delegate for when the sub process no longer has an object that was cached
+    /// </summary>
+    /// <param name="cacheId"></param>
+    public delegate void CacheMissDelegate(object cacheId);
 }